@@ -0,0 +1,174 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.core.StatusCodes;
+
+/**
+ * The statistics of the history samples in one aggregate interval.
+ * <p>
+ * The value statistics (sum, minimum, maximum, first and last) are collected
+ * from the samples that are not Bad (or Uncertain, if they are treated as
+ * Bad). A sample whose value is NaN is Bad, whatever its status. The samples
+ * are expected in time order.
+ */
+class AggregateBucket {
+	// The status of a sample, whose value is not a number
+	private static final int NAN_STATUS = new StatusCode(StatusCodes.Bad_NoData).getValueAsIntBits();
+
+	/**
+	 * @return the severity of the status: 0 for Good, 1 for Uncertain and 2
+	 *         for Bad
+	 */
+	static int getSeverity(int status) {
+		final int severity = status >>> 30;
+		return severity > 2 ? 2 : severity;
+	}
+
+	int badCount;
+	int count;
+	double first;
+	long firstTime;
+	double last;
+	long lastTime;
+	double max;
+	long maxTime;
+	double min;
+	long minTime;
+	double sum;
+	int uncertainCount;
+	int worstStatus;
+
+	/**
+	 * Add a sample to the bucket.
+	 *
+	 * @param time
+	 *            the timestamp of the sample
+	 * @param value
+	 *            the value of the sample
+	 * @param status
+	 *            the status code bits of the sample
+	 * @param treatUncertainAsBad
+	 *            whether an Uncertain sample is excluded from the value
+	 *            statistics
+	 */
+	void add(long time, double value, int status, boolean treatUncertainAsBad) {
+		if (Double.isNaN(value) && (getSeverity(status) < 2))
+			// Would turn the sum and the average to NaN
+			status = NAN_STATUS;
+		final int severity = getSeverity(status);
+		if ((count == 0) || (severity > getSeverity(worstStatus)))
+			worstStatus = status;
+		count++;
+		if (severity == 1)
+			uncertainCount++;
+		if ((severity == 2) || ((severity == 1) && treatUncertainAsBad)) {
+			badCount++;
+			return;
+		}
+		addValue(time, value);
+	}
+
+	/**
+	 * @return the number of samples included in the value statistics
+	 */
+	int getValueCount() {
+		return count - badCount;
+	}
+
+	/**
+	 * @return true if no samples have been added
+	 */
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Add the statistics of a later bucket to this one.
+	 *
+	 * @param b
+	 *            the bucket to merge
+	 */
+	void merge(AggregateBucket b) {
+		if (b.isEmpty())
+			return;
+		if (isEmpty() || (getSeverity(b.worstStatus) > getSeverity(worstStatus)))
+			worstStatus = b.worstStatus;
+		if (b.getValueCount() > 0) {
+			if (getValueCount() == 0) {
+				first = b.first;
+				firstTime = b.firstTime;
+				min = b.min;
+				minTime = b.minTime;
+				max = b.max;
+				maxTime = b.maxTime;
+			} else {
+				if (b.min < min) {
+					min = b.min;
+					minTime = b.minTime;
+				}
+				if (b.max > max) {
+					max = b.max;
+					maxTime = b.maxTime;
+				}
+			}
+			last = b.last;
+			lastTime = b.lastTime;
+			sum += b.sum;
+		}
+		count += b.count;
+		badCount += b.badCount;
+		uncertainCount += b.uncertainCount;
+	}
+
+	/**
+	 * Clear the statistics, to reuse the bucket.
+	 */
+	void reset() {
+		count = 0;
+		badCount = 0;
+		uncertainCount = 0;
+		sum = 0;
+		worstStatus = 0;
+	}
+
+	/**
+	 * Add a sample to the value statistics.
+	 */
+	private void addValue(long time, double value) {
+		if (getValueCount() == 1) {
+			first = value;
+			firstTime = time;
+			min = value;
+			minTime = time;
+			max = value;
+			maxTime = time;
+			last = value;
+			lastTime = time;
+		} else {
+			if (value < min) {
+				min = value;
+				minTime = time;
+			}
+			if (value > max) {
+				max = value;
+				maxTime = time;
+			}
+			// A late sample may also end up in a (rollup) bucket
+			if (time < firstTime) {
+				first = value;
+				firstTime = time;
+			}
+			if (time >= lastTime) {
+				last = value;
+				lastTime = time;
+			}
+		}
+		sum += value;
+	}
+}
@@ -0,0 +1,278 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedShort;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.AggregateConfiguration;
+import org.opcfoundation.ua.core.Identifiers;
+import org.opcfoundation.ua.core.StatusCodes;
+
+/**
+ * Calculates history aggregates for ReadProcessed requests.
+ * <p>
+ * The calculator is fed with the samples of one variable in time order and it
+ * calculates all the requested aggregates in the same pass, keeping only the
+ * statistics of the current processing interval in memory. The result is one
+ * DataValue per processing interval for each aggregate.
+ * <p>
+ * The aggregates are simple (non-interpolated) ones: they are calculated from
+ * the samples inside each interval. The quality of the result is determined
+ * from the number of samples (instead of their durations) according to
+ * PercentDataGood and PercentDataBad of the AggregateConfiguration.
+ */
+class AggregateCalculator implements SampleVisitor {
+	/**
+	 * The server default for PercentDataBad and PercentDataGood.
+	 */
+	static final int DEFAULT_PERCENT_DATA = 100;
+
+	/**
+	 * Aggregates supported by the calculator.
+	 */
+	static final List<NodeId> SUPPORTED_AGGREGATES = Arrays.asList(Identifiers.AggregateFunction_Average,
+			Identifiers.AggregateFunction_Count, Identifiers.AggregateFunction_Delta,
+			Identifiers.AggregateFunction_End, Identifiers.AggregateFunction_Maximum,
+			Identifiers.AggregateFunction_MaximumActualTime, Identifiers.AggregateFunction_Minimum,
+			Identifiers.AggregateFunction_MinimumActualTime, Identifiers.AggregateFunction_Range,
+			Identifiers.AggregateFunction_Start, Identifiers.AggregateFunction_WorstQuality);
+
+	// StatusCode info bits for aggregate results
+	private static final int HISTORIAN_CALCULATED = 0x1;
+	private static final int HISTORIAN_PARTIAL = 0x4;
+	private static final int INFO_TYPE_DATA_VALUE = 0x400;
+
+	/**
+	 * @param aggregateType
+	 *            the aggregate function
+	 * @return true if the aggregate is supported by the calculator
+	 */
+	static boolean isSupported(NodeId aggregateType) {
+		return SUPPORTED_AGGREGATES.contains(aggregateType);
+	}
+
+	private final NodeId[] aggregateTypes;
+	private final AggregateBucket bucket = new AggregateBucket();
+	private int bucketIndex;
+	private final long endTime;
+	private final long interval;
+	private final int intervalCount;
+	private final int percentDataBad;
+	private final int percentDataGood;
+	private final DataValue[][] results;
+	private final boolean reverse;
+	private final long startTime;
+	private final boolean treatUncertainAsBad;
+
+	/**
+	 * @param aggregateTypes
+	 *            the aggregates to calculate
+	 * @param startTime
+	 *            the start time of the request (in DateTime ticks)
+	 * @param endTime
+	 *            the end time of the request; if it is before startTime, the
+	 *            results are returned in reverse order
+	 * @param interval
+	 *            the processing interval (in DateTime ticks); 0 to calculate a
+	 *            single value for the whole period
+	 * @param configuration
+	 *            the aggregate configuration of the request
+	 */
+	public AggregateCalculator(NodeId[] aggregateTypes, long startTime, long endTime, long interval,
+			AggregateConfiguration configuration) {
+		super();
+		this.aggregateTypes = aggregateTypes;
+		reverse = endTime < startTime;
+		this.startTime = reverse ? endTime : startTime;
+		this.endTime = reverse ? startTime : endTime;
+		final long duration = this.endTime - this.startTime;
+		this.interval = (interval <= 0) || (interval > duration) ? Math.max(duration, 1) : interval;
+		final long count = (duration + this.interval - 1) / this.interval;
+		if (count > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many processing intervals: " + count);
+		intervalCount = (int) count;
+		if ((configuration == null) || Boolean.TRUE.equals(configuration.getUseServerCapabilitiesDefaults())) {
+			treatUncertainAsBad = false;
+			percentDataBad = DEFAULT_PERCENT_DATA;
+			percentDataGood = DEFAULT_PERCENT_DATA;
+		} else {
+			// UseSlopedExtrapolation does not affect the simple aggregates
+			treatUncertainAsBad = Boolean.TRUE.equals(configuration.getTreatUncertainAsBad());
+			percentDataBad = configuration.getPercentDataBad() == null ? DEFAULT_PERCENT_DATA
+					: configuration.getPercentDataBad().intValue();
+			percentDataGood = configuration.getPercentDataGood() == null ? DEFAULT_PERCENT_DATA
+					: configuration.getPercentDataGood().intValue();
+		}
+		results = new DataValue[aggregateTypes.length][intervalCount];
+	}
+
+	/**
+	 * @return the end of the period to read the samples from (exclusive)
+	 */
+	public long getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * @return the processing interval in DateTime ticks
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Complete the calculation.
+	 *
+	 * @return the results for each aggregate, in the same order as the
+	 *         aggregateTypes
+	 */
+	public DataValue[][] getResults() {
+		while (bucketIndex < intervalCount)
+			closeBucket();
+		if (reverse)
+			for (DataValue[] r : results)
+				for (int i = 0, j = r.length - 1; i < j; i++, j--) {
+					DataValue v = r[i];
+					r[i] = r[j];
+					r[j] = v;
+				}
+		return results;
+	}
+
+	/**
+	 * @return the start of the period to read the samples from (inclusive)
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return whether Uncertain samples are excluded from the values
+	 */
+	public boolean isTreatUncertainAsBad() {
+		return treatUncertainAsBad;
+	}
+
+	@Override
+	public boolean visit(long time, double value, int status) {
+		if (time < startTime)
+			return true;
+		if (time >= endTime)
+			return false;
+		final int index = (int) ((time - startTime) / interval);
+		while (bucketIndex < index)
+			closeBucket();
+		bucket.add(time, value, status, treatUncertainAsBad);
+		return true;
+	}
+
+	/**
+	 * Add the statistics of a pre-calculated bucket, such as one from a
+	 * {@link RollupTier}. The bucket must fit inside a single processing
+	 * interval.
+	 *
+	 * @param bucketStartTime
+	 *            the start time of the bucket
+	 * @param b
+	 *            the bucket to add
+	 */
+	void add(long bucketStartTime, AggregateBucket b) {
+		if ((bucketStartTime < startTime) || (bucketStartTime >= endTime))
+			return;
+		final int index = (int) ((bucketStartTime - startTime) / interval);
+		while (bucketIndex < index)
+			closeBucket();
+		bucket.merge(b);
+	}
+
+	/**
+	 * Calculate the results of the current interval and move to the next one.
+	 */
+	private void closeBucket() {
+		final long intervalStart = startTime + (bucketIndex * interval);
+		final boolean partial = (intervalStart + interval) > endTime;
+		for (int i = 0; i < aggregateTypes.length; i++)
+			results[i][bucketIndex] = getResult(aggregateTypes[i], intervalStart, partial);
+		bucket.reset();
+		bucketIndex++;
+	}
+
+	/**
+	 * @return the status code bits of the result, defined by the share of the
+	 *         samples that are used in the value statistics
+	 */
+	private int getQuality() {
+		final int percentGood = (100 * bucket.getValueCount()) / bucket.count;
+		final int percentBad = 100 - percentGood;
+		if (percentGood >= percentDataGood)
+			return StatusCode.GOOD.getValueAsIntBits();
+		if (percentBad >= percentDataBad)
+			return StatusCode.BAD.getValueAsIntBits();
+		return StatusCodes.Uncertain_DataSubNormal.intValue();
+	}
+
+	private DataValue getResult(NodeId aggregateType, long intervalStart, boolean partial) {
+		final AggregateBucket b = bucket;
+		long time = intervalStart;
+		Object value = null;
+		int status;
+		if (aggregateType.equals(Identifiers.AggregateFunction_Count)) {
+			value = Integer.valueOf(b.getValueCount());
+			status = b.isEmpty() ? StatusCode.GOOD.getValueAsIntBits() : getQuality();
+		} else if (aggregateType.equals(Identifiers.AggregateFunction_WorstQuality)) {
+			if (b.isEmpty())
+				return getNoData(intervalStart);
+			value = new StatusCode(b.worstStatus);
+			status = StatusCode.GOOD.getValueAsIntBits();
+		} else {
+			if (b.getValueCount() == 0)
+				return getNoData(intervalStart);
+			status = getQuality();
+			if (aggregateType.equals(Identifiers.AggregateFunction_Average))
+				value = b.sum / b.getValueCount();
+			else if (aggregateType.equals(Identifiers.AggregateFunction_Delta))
+				value = b.last - b.first;
+			else if (aggregateType.equals(Identifiers.AggregateFunction_End)) {
+				value = b.last;
+				time = b.lastTime;
+			} else if (aggregateType.equals(Identifiers.AggregateFunction_Maximum))
+				value = b.max;
+			else if (aggregateType.equals(Identifiers.AggregateFunction_MaximumActualTime)) {
+				value = b.max;
+				time = b.maxTime;
+			} else if (aggregateType.equals(Identifiers.AggregateFunction_Minimum))
+				value = b.min;
+			else if (aggregateType.equals(Identifiers.AggregateFunction_MinimumActualTime)) {
+				value = b.min;
+				time = b.minTime;
+			} else if (aggregateType.equals(Identifiers.AggregateFunction_Range))
+				value = b.max - b.min;
+			else if (aggregateType.equals(Identifiers.AggregateFunction_Start)) {
+				value = b.first;
+				time = b.firstTime;
+			} else
+				return new DataValue(new StatusCode(StatusCodes.Bad_AggregateNotSupported));
+		}
+		status |= INFO_TYPE_DATA_VALUE | HISTORIAN_CALCULATED;
+		if (partial)
+			status |= HISTORIAN_PARTIAL;
+		final DateTime t = new DateTime(time);
+		return new DataValue(new Variant(value), new StatusCode(status), t, UnsignedShort.ZERO, null, null);
+	}
+
+	private DataValue getNoData(long intervalStart) {
+		return new DataValue(null, new StatusCode(StatusCodes.Bad_NoData), new DateTime(intervalStart),
+				UnsignedShort.ZERO, null, null);
+	}
+}
@@ -0,0 +1,490 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opcfoundation.ua.builtintypes.ExtensionObject;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.QualifiedName;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.ContentFilter;
+import org.opcfoundation.ua.core.ContentFilterElement;
+import org.opcfoundation.ua.core.ElementOperand;
+import org.opcfoundation.ua.core.EventFilter;
+import org.opcfoundation.ua.core.EventFilterResult;
+import org.opcfoundation.ua.core.FilterOperator;
+import org.opcfoundation.ua.core.LiteralOperand;
+import org.opcfoundation.ua.core.SimpleAttributeOperand;
+import org.opcfoundation.ua.encoding.DecodingException;
+
+import com.prosysopc.ua.EventData;
+import com.prosysopc.ua.nodes.UaType;
+import com.prosysopc.ua.server.ContentFilterDefinition;
+import com.prosysopc.ua.server.NodeManagerRoot;
+
+/**
+ * An EventFilter parsed for reading the event history, so that it can be
+ * reused for several reads.
+ * <p>
+ * If the where clause starts with an OfType operator, the event types that
+ * cannot match are recognized from the type hierarchy, and the events of
+ * those types are skipped without evaluating the filter. If the OfType (or
+ * nothing) is all that the where clause contains, the filter does not need
+ * to be evaluated at all.
+ * <p>
+ * The events read from the {@link EventJournal} are evaluated by the filter
+ * itself, since only the stored fields are available for them. This is
+ * supported for the logical, comparison, InList, IsNull and OfType
+ * operators on the stored fields; see {@link #isJournalSupported()}.
+ */
+class CompiledEventFilter {
+	private static final byte TYPE_MATCHES = 1;
+	private static final byte TYPE_NOT_MATCHES = 2;
+	private static final byte TYPE_UNKNOWN = 0;
+
+	/**
+	 * The path of the EventType field of an event.
+	 */
+	static final List<List<QualifiedName>> EVENT_TYPE_PATH = new ArrayList<List<QualifiedName>>();
+	static {
+		EVENT_TYPE_PATH.add(Arrays.asList(new QualifiedName("EventType")));
+	}
+
+	private static void appendKey(StringBuilder key, Object value) {
+		if (value == null)
+			key.append('-');
+		else {
+			// Length prefixed, so that no content can be mistaken for a
+			// separator
+			final String s = value.toString();
+			key.append(value.getClass().getSimpleName()).append(':').append(s.length()).append(':').append(s);
+		}
+	}
+
+	private static void appendKey(StringBuilder key, SimpleAttributeOperand operand) {
+		appendKey(key, operand.getTypeDefinitionId());
+		final QualifiedName[] browsePath = operand.getBrowsePath();
+		if (browsePath == null)
+			key.append('-');
+		else {
+			key.append('[').append(browsePath.length);
+			for (QualifiedName name : browsePath) {
+				appendKey(key, name == null ? null : Integer.valueOf(name.getNamespaceIndex()));
+				appendKey(key, name == null ? null : name.getName());
+			}
+		}
+		appendKey(key, operand.getAttributeId());
+		appendKey(key, operand.getIndexRange());
+	}
+
+	/**
+	 * Append the key of a filter operand.
+	 *
+	 * @return false if the operand has no key
+	 */
+	private static boolean appendKey(StringBuilder key, ExtensionObject extensionObject) {
+		final Object operand;
+		try {
+			operand = extensionObject == null ? null : extensionObject.decode();
+		} catch (DecodingException e) {
+			return false;
+		}
+		if (operand instanceof LiteralOperand) {
+			final Variant variant = ((LiteralOperand) operand).getValue();
+			final Object value = variant == null ? null : variant.getValue();
+			if (value instanceof Object[])
+				appendKey(key.append('L'), Arrays.deepToString((Object[]) value));
+			else if ((value != null) && value.getClass().isArray())
+				return false;
+			else
+				appendKey(key.append('L'), value);
+		} else if (operand instanceof ElementOperand)
+			appendKey(key.append('E'), ((ElementOperand) operand).getIndex());
+		else if (operand instanceof SimpleAttributeOperand)
+			appendKey(key.append('S'), (SimpleAttributeOperand) operand);
+		else
+			return false;
+		return true;
+	}
+
+	/**
+	 * Get a key, which identifies the filter by the content of its select
+	 * and where clauses. The filters that have equal keys compile to the same
+	 * filter.
+	 *
+	 * @param eventFilter
+	 *            the filter
+	 * @return the key, or null if the filter contains operands that cannot be
+	 *         keyed, such as AttributeOperands
+	 */
+	static String getKey(EventFilter eventFilter) {
+		if (eventFilter == null)
+			return "";
+		final StringBuilder key = new StringBuilder();
+		final SimpleAttributeOperand[] selectClauses = eventFilter.getSelectClauses();
+		if (selectClauses != null)
+			for (SimpleAttributeOperand operand : selectClauses) {
+				key.append('S');
+				if (operand != null)
+					appendKey(key, operand);
+			}
+		final ContentFilter where = eventFilter.getWhereClause();
+		final ContentFilterElement[] elements = where == null ? null : where.getElements();
+		if (elements != null)
+			for (ContentFilterElement element : elements) {
+				key.append('W');
+				if (element == null)
+					continue;
+				appendKey(key, element.getFilterOperator());
+				final ExtensionObject[] operands = element.getFilterOperands();
+				if (operands != null)
+					for (ExtensionObject operand : operands)
+						if (!appendKey(key, operand))
+							return null;
+			}
+		return key.toString();
+	}
+
+	private static Integer compare(Object a, Object b) {
+		if ((a == null) || (b == null))
+			return null;
+		if ((a instanceof Number) && (b instanceof Number))
+			return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+		if ((a instanceof Comparable) && a.getClass().equals(b.getClass())) {
+			@SuppressWarnings("unchecked")
+			final int result = ((Comparable<Object>) a).compareTo(b);
+			return result;
+		}
+		return a.equals(b) ? 0 : null;
+	}
+
+	/**
+	 * Compile the where clause for the events of the journal. The operands
+	 * are stored as Variants (literals), Integers (element indexes) or field
+	 * paths.
+	 *
+	 * @return the operands of each element, or null if the where clause
+	 *         cannot be evaluated from the journal
+	 */
+	private static Object[][] compileJournalOperands(ContentFilterElement[] elements) {
+		final Object[][] result = new Object[elements.length][];
+		for (int i = 0; i < elements.length; i++) {
+			final ContentFilterElement element = elements[i];
+			final ExtensionObject[] operands = element == null ? null : element.getFilterOperands();
+			if ((operands == null) || !isJournalOperandCount(element.getFilterOperator(), operands.length))
+				return null;
+			result[i] = new Object[operands.length];
+			for (int k = 0; k < operands.length; k++) {
+				final Object operand;
+				try {
+					operand = operands[k] == null ? null : operands[k].decode();
+				} catch (DecodingException e) {
+					return null;
+				}
+				if (operand instanceof LiteralOperand) {
+					final Variant value = ((LiteralOperand) operand).getValue();
+					result[i][k] = value == null ? Variant.NULL : value;
+				} else if (operand instanceof ElementOperand) {
+					// Only forward references, so that there are no cycles
+					final UnsignedInteger index = ((ElementOperand) operand).getIndex();
+					if ((index == null) || (index.intValue() <= i) || (index.intValue() >= elements.length))
+						return null;
+					result[i][k] = Integer.valueOf(index.intValue());
+				} else if (operand instanceof SimpleAttributeOperand) {
+					final SimpleAttributeOperand attribute = (SimpleAttributeOperand) operand;
+					final QualifiedName[] browsePath = attribute.getBrowsePath();
+					final List<QualifiedName> path = browsePath == null ? new ArrayList<QualifiedName>()
+							: Arrays.asList(browsePath);
+					if (!Attributes.Value.equals(attribute.getAttributeId()) || (attribute.getIndexRange() != null)
+							|| !EventJournal.isStored(path))
+						return null;
+					result[i][k] = path;
+				} else
+					return null;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return true if the operator is supported for the events of the journal
+	 *         with the number of operands
+	 */
+	private static boolean isJournalOperandCount(FilterOperator operator, int count) {
+		if (operator == null)
+			return false;
+		switch (operator) {
+		case IsNull:
+		case Not:
+		case OfType:
+			return count == 1;
+		case And:
+		case Equals:
+		case GreaterThan:
+		case GreaterThanOrEqual:
+		case LessThan:
+		case LessThanOrEqual:
+		case Or:
+			return count == 2;
+		case Between:
+			return count == 3;
+		case InList:
+			return count >= 2;
+		default:
+			return false;
+		}
+	}
+
+	private static Boolean toBoolean(Object value) {
+		return value instanceof Boolean ? (Boolean) value : null;
+	}
+
+	/**
+	 * Parse the OfType type of the first element of the where clause.
+	 *
+	 * @return the type or null, if the first element is not an OfType
+	 */
+	private static NodeId getOfType(ContentFilterElement element) {
+		if (!FilterOperator.OfType.equals(element.getFilterOperator()))
+			return null;
+		final ExtensionObject[] operands = element.getFilterOperands();
+		if ((operands == null) || (operands.length != 1))
+			return null;
+		try {
+			final Object operand = operands[0].decode();
+			if (operand instanceof LiteralOperand) {
+				final Variant value = ((LiteralOperand) operand).getValue();
+				if ((value != null) && (value.getValue() instanceof NodeId))
+					return (NodeId) value.getValue();
+			}
+		} catch (DecodingException e) {
+			// Let the filter definition handle it
+		}
+		return null;
+	}
+
+	private final ContentFilterDefinition definition = new ContentFilterDefinition();
+	private final List<List<QualifiedName>> fieldPaths = new ArrayList<List<QualifiedName>>();
+	// The where clause for the events of the journal, or null if it cannot
+	// be evaluated from the journal
+	private final FilterOperator[] journalOperators;
+	private final Object[][] journalOperands;
+	private final NodeId ofType;
+	private final NodeManagerRoot root;
+	private final boolean typeOnly;
+	// The match of each event type index: TYPE_UNKNOWN, if not resolved yet
+	private byte[] typeMatches = new byte[16];
+
+	/**
+	 * @param root
+	 *            the node manager root of the server, to resolve the types
+	 * @param eventFilter
+	 *            the filter to compile
+	 */
+	public CompiledEventFilter(NodeManagerRoot root, EventFilter eventFilter) {
+		super();
+		this.root = root;
+		ContentFilterDefinition.parseEventFilter(root, eventFilter, fieldPaths, definition, new EventFilterResult());
+		final ContentFilter where = eventFilter == null ? null : eventFilter.getWhereClause();
+		final ContentFilterElement[] elements = where == null ? null : where.getElements();
+		if ((elements == null) || (elements.length == 0)) {
+			ofType = null;
+			typeOnly = true;
+			journalOperators = new FilterOperator[0];
+			journalOperands = new Object[0][];
+		} else {
+			ofType = getOfType(elements[0]);
+			typeOnly = (ofType != null) && (elements.length == 1);
+			journalOperands = compileJournalOperands(elements);
+			if (journalOperands == null)
+				journalOperators = null;
+			else {
+				journalOperators = new FilterOperator[elements.length];
+				for (int i = 0; i < elements.length; i++)
+					journalOperators[i] = elements[i].getFilterOperator();
+			}
+		}
+	}
+
+	/**
+	 * Check whether the event matches the filter.
+	 *
+	 * @param event
+	 *            the event, or null if only the type of the event is
+	 *            available
+	 * @param typeIndex
+	 *            the index of the type of the event
+	 * @param type
+	 *            the type of the event, or null if it is not known
+	 * @return true if the event matches
+	 */
+	public boolean accept(EventData event, int typeIndex, NodeId type) {
+		final byte match = getTypeMatch(typeIndex, type);
+		if (match == TYPE_NOT_MATCHES)
+			return false;
+		if (typeOnly && ((ofType == null) || (match == TYPE_MATCHES)))
+			return true;
+		return (event != null) && definition.evaluate(event, true);
+	}
+
+	/**
+	 * Check whether an event of the journal matches the filter.
+	 *
+	 * @param record
+	 *            the event
+	 * @param typeIndex
+	 *            the index of the type of the event
+	 * @param type
+	 *            the type of the event, or null if it is not known
+	 * @return true if the event matches
+	 * @throws IllegalStateException
+	 *             if the filter cannot be evaluated from the journal
+	 */
+	public boolean accept(EventJournal.Record record, int typeIndex, NodeId type) {
+		if (!isJournalSupported())
+			throw new IllegalStateException("The filter cannot be evaluated from the journal");
+		final byte match = getTypeMatch(typeIndex, type);
+		if (match == TYPE_NOT_MATCHES)
+			return false;
+		if (typeOnly && ((ofType == null) || (match == TYPE_MATCHES)))
+			return true;
+		return Boolean.TRUE.equals(evaluate(0, record, type));
+	}
+
+	/**
+	 * @return the field paths of the select clauses
+	 */
+	public List<List<QualifiedName>> getFieldPaths() {
+		return fieldPaths;
+	}
+
+	/**
+	 * @return true if the where clause can be evaluated for the events of the
+	 *         journal, i.e. it contains only the supported operators and the
+	 *         fields stored in the journal
+	 */
+	public boolean isJournalSupported() {
+		return journalOperators != null;
+	}
+
+	/**
+	 * Evaluate an element of the where clause for an event of the journal.
+	 *
+	 * @return the result: a Boolean, or null if it is unknown
+	 */
+	private Boolean evaluate(int index, EventJournal.Record record, NodeId type) {
+		final Object[] operands = journalOperands[index];
+		switch (journalOperators[index]) {
+		case And: {
+			final Boolean a = toBoolean(getOperandValue(operands[0], record, type));
+			final Boolean b = toBoolean(getOperandValue(operands[1], record, type));
+			if (Boolean.FALSE.equals(a) || Boolean.FALSE.equals(b))
+				return Boolean.FALSE;
+			return (a == null) || (b == null) ? null : Boolean.TRUE;
+		}
+		case Between: {
+			final Object value = getOperandValue(operands[0], record, type);
+			final Integer low = compare(value, getOperandValue(operands[1], record, type));
+			final Integer high = compare(value, getOperandValue(operands[2], record, type));
+			return (low == null) || (high == null) ? null : Boolean.valueOf((low >= 0) && (high <= 0));
+		}
+		case Equals: {
+			final Integer c = compare(getOperandValue(operands[0], record, type),
+					getOperandValue(operands[1], record, type));
+			return c == null ? null : Boolean.valueOf(c == 0);
+		}
+		case GreaterThan: {
+			final Integer c = compare(getOperandValue(operands[0], record, type),
+					getOperandValue(operands[1], record, type));
+			return c == null ? null : Boolean.valueOf(c > 0);
+		}
+		case GreaterThanOrEqual: {
+			final Integer c = compare(getOperandValue(operands[0], record, type),
+					getOperandValue(operands[1], record, type));
+			return c == null ? null : Boolean.valueOf(c >= 0);
+		}
+		case InList: {
+			final Object value = getOperandValue(operands[0], record, type);
+			for (int i = 1; i < operands.length; i++) {
+				final Integer c = compare(value, getOperandValue(operands[i], record, type));
+				if ((c != null) && (c == 0))
+					return Boolean.TRUE;
+			}
+			return Boolean.FALSE;
+		}
+		case IsNull:
+			return Boolean.valueOf(getOperandValue(operands[0], record, type) == null);
+		case LessThan: {
+			final Integer c = compare(getOperandValue(operands[0], record, type),
+					getOperandValue(operands[1], record, type));
+			return c == null ? null : Boolean.valueOf(c < 0);
+		}
+		case LessThanOrEqual: {
+			final Integer c = compare(getOperandValue(operands[0], record, type),
+					getOperandValue(operands[1], record, type));
+			return c == null ? null : Boolean.valueOf(c <= 0);
+		}
+		case Not: {
+			final Boolean a = toBoolean(getOperandValue(operands[0], record, type));
+			return a == null ? null : Boolean.valueOf(!a);
+		}
+		case OfType: {
+			final Object ofType = getOperandValue(operands[0], record, type);
+			if ((type == null) || !(ofType instanceof NodeId))
+				return null;
+			for (UaType t = root.getType(type); t != null; t = t.getSuperType())
+				if (ofType.equals(t.getNodeId()))
+					return Boolean.TRUE;
+			return Boolean.FALSE;
+		}
+		case Or: {
+			final Boolean a = toBoolean(getOperandValue(operands[0], record, type));
+			final Boolean b = toBoolean(getOperandValue(operands[1], record, type));
+			if (Boolean.TRUE.equals(a) || Boolean.TRUE.equals(b))
+				return Boolean.TRUE;
+			return (a == null) || (b == null) ? null : Boolean.FALSE;
+		}
+		default:
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object getOperandValue(Object operand, EventJournal.Record record, NodeId type) {
+		if (operand instanceof Integer)
+			return evaluate((Integer) operand, record, type);
+		final Variant value = operand instanceof Variant ? (Variant) operand
+				: record.getFieldValue((List<QualifiedName>) operand);
+		return value == null ? null : value.getValue();
+	}
+
+	private byte getTypeMatch(int typeIndex, NodeId type) {
+		if ((ofType == null) || (type == null) || (typeIndex < 0))
+			return TYPE_UNKNOWN;
+		if (typeIndex >= typeMatches.length)
+			typeMatches = Arrays.copyOf(typeMatches, Math.max(typeMatches.length * 2, typeIndex + 1));
+		if (typeMatches[typeIndex] == TYPE_UNKNOWN)
+			typeMatches[typeIndex] = resolveTypeMatch(type);
+		return typeMatches[typeIndex];
+	}
+
+	private byte resolveTypeMatch(NodeId type) {
+		UaType t = root.getType(type);
+		if (t == null)
+			// Let the filter definition decide
+			return TYPE_UNKNOWN;
+		for (; t != null; t = t.getSuperType())
+			if (ofType.equals(t.getNodeId()))
+				return TYPE_MATCHES;
+		return TYPE_NOT_MATCHES;
+	}
+}
@@ -0,0 +1,341 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The cold part of a variable history in memory: a time-ordered list of
+ * compressed {@link SampleBlock}s.
+ * <p>
+ * The samples are sealed to the blocks from the hot {@link SampleBuffer}, when
+ * it gets full. The blocks are immutable, so a delete or a late sample
+ * replaces the affected blocks. When the capacity is exceeded, the oldest
+ * blocks are evicted.
+ * <p>
+ * The class is not thread safe; the owner is responsible for the locking.
+ */
+class CompressedSamples {
+	private final List<SampleBlock> blocks = new ArrayList<SampleBlock>();
+	private int capacity;
+	private int size;
+	private long sizeInBytes;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of samples to keep
+	 */
+	public CompressedSamples(int capacity) {
+		super();
+		setCapacity(capacity);
+	}
+
+	/**
+	 * Delete the samples at the given time.
+	 *
+	 * @param time
+	 *            the timestamp of the samples to delete
+	 * @return the number of samples deleted
+	 */
+	public int deleteAtTime(long time) {
+		return deleteRaw(time, time + 1);
+	}
+
+	/**
+	 * Delete the samples between startTime (inclusive) and endTime
+	 * (exclusive).
+	 *
+	 * @param startTime
+	 *            the start of the interval
+	 * @param endTime
+	 *            the end of the interval
+	 * @return the number of samples deleted
+	 */
+	public int deleteRaw(long startTime, long endTime) {
+		int deleted = 0;
+		int i = findBlock(startTime);
+		while ((i < blocks.size()) && (blocks.get(i).getFirstTime() < endTime)) {
+			final SampleBlock block = blocks.get(i);
+			final int n = block.getCount();
+			final long[] times = new long[n];
+			final double[] values = new double[n];
+			final int[] statuses = new int[n];
+			block.decode(times, values, statuses);
+			int kept = 0;
+			for (int j = 0; j < n; j++)
+				if ((times[j] < startTime) || (times[j] >= endTime)) {
+					times[kept] = times[j];
+					values[kept] = values[j];
+					statuses[kept] = statuses[j];
+					kept++;
+				}
+			deleted += n - kept;
+			if (kept == 0) {
+				remove(i);
+				continue;
+			}
+			if (kept < n)
+				replace(i, SampleBlock.encode(times, values, statuses, 0, kept));
+			i++;
+		}
+		return deleted;
+	}
+
+	/**
+	 * Find the last sample at or before the given time.
+	 *
+	 * @param time
+	 *            the requested time
+	 * @param visitor
+	 *            receives the sample, if one is found
+	 * @return true if a sample was found
+	 */
+	public boolean findAtOrBefore(long time, SampleVisitor visitor) {
+		// The last block that starts at or before the time
+		int i = findBlock(time);
+		if ((i == blocks.size()) || (blocks.get(i).getFirstTime() > time))
+			i--;
+		if (i < 0)
+			return false;
+		final SampleBlock block = blocks.get(i);
+		final int n = block.getCount();
+		final long[] times = new long[n];
+		final double[] values = new double[n];
+		final int[] statuses = new int[n];
+		block.decode(times, values, statuses);
+		int j = n - 1;
+		while (times[j] > time)
+			j--;
+		visitor.visit(times[j], values[j], statuses[j]);
+		return true;
+	}
+
+	/**
+	 * @return the maximum number of samples to keep
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the timestamp of the oldest sample
+	 */
+	public long getFirstTime() {
+		return blocks.get(0).getFirstTime();
+	}
+
+	/**
+	 * @return the timestamp of the latest sample
+	 */
+	public long getLastTime() {
+		return blocks.get(blocks.size() - 1).getLastTime();
+	}
+
+	/**
+	 * @return the memory used by the encoded samples, in bytes
+	 */
+	public long getSizeInBytes() {
+		return sizeInBytes;
+	}
+
+	/**
+	 * Insert a late sample to the block it belongs to.
+	 *
+	 * @param time
+	 *            the timestamp of the sample
+	 * @param value
+	 *            the value of the sample
+	 * @param status
+	 *            the status code bits of the sample
+	 * @return true, if old samples were evicted to make room for the new one
+	 */
+	public boolean insert(long time, double value, int status) {
+		final int i = Math.min(findBlock(time), blocks.size() - 1);
+		final SampleBlock block = blocks.get(i);
+		final int n = block.getCount();
+		final long[] times = new long[n + 1];
+		final double[] values = new double[n + 1];
+		final int[] statuses = new int[n + 1];
+		block.decode(times, values, statuses);
+		int j = n;
+		while ((j > 0) && (times[j - 1] > time)) {
+			times[j] = times[j - 1];
+			values[j] = values[j - 1];
+			statuses[j] = statuses[j - 1];
+			j--;
+		}
+		times[j] = time;
+		values[j] = value;
+		statuses[j] = status;
+		replace(i, SampleBlock.encode(times, values, statuses, 0, n + 1));
+		return evict();
+	}
+
+	/**
+	 * @return true if there are no samples
+	 */
+	public boolean isEmpty() {
+		return blocks.isEmpty();
+	}
+
+	/**
+	 * Read the samples between the times, in time order.
+	 *
+	 * @param startTime
+	 *            the start of the interval
+	 * @param endTime
+	 *            the end of the interval
+	 * @param includeBounds
+	 *            whether samples exactly at startTime and endTime are included
+	 * @param visitor
+	 *            receives the samples
+	 * @return true if the reading may continue with later samples, false if
+	 *         the visitor stopped it or endTime was reached
+	 */
+	public boolean read(final long startTime, final long endTime, final boolean includeBounds,
+			final SampleVisitor visitor) {
+		final boolean[] more = { true };
+		final SampleVisitor filter = new SampleVisitor() {
+
+			@Override
+			public boolean visit(long time, double value, int status) {
+				if ((time < startTime) || ((time == startTime) && !includeBounds))
+					return true;
+				if ((time > endTime) || ((time == endTime) && !includeBounds)) {
+					more[0] = false;
+					return false;
+				}
+				if (!visitor.visit(time, value, status)) {
+					more[0] = false;
+					return false;
+				}
+				return true;
+			}
+		};
+		for (int i = findBlock(startTime); i < blocks.size(); i++)
+			if (!blocks.get(i).decode(filter))
+				return false;
+		return more[0];
+	}
+
+	/**
+	 * Read the samples at or before the given time, starting from the latest
+	 * one and going backwards in time.
+	 *
+	 * @param endTime
+	 *            the end of the interval
+	 * @param includeBounds
+	 *            whether samples exactly at endTime are included
+	 * @param visitor
+	 *            receives the samples
+	 * @return false if the visitor stopped the reading
+	 */
+	public boolean readReverse(long endTime, boolean includeBounds, SampleVisitor visitor) {
+		for (int i = blocks.size() - 1; i >= 0; i--) {
+			final SampleBlock block = blocks.get(i);
+			if (block.getFirstTime() > endTime)
+				continue;
+			final int n = block.getCount();
+			final long[] times = new long[n];
+			final double[] values = new double[n];
+			final int[] statuses = new int[n];
+			block.decode(times, values, statuses);
+			for (int j = n - 1; j >= 0; j--)
+				if ((times[j] < endTime) || ((times[j] == endTime) && includeBounds))
+					if (!visitor.visit(times[j], values[j], statuses[j]))
+						return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compress samples to a new block after the existing ones.
+	 *
+	 * @param times
+	 *            the timestamps of the samples, in ascending order and not
+	 *            before the existing samples
+	 * @param values
+	 *            the values of the samples
+	 * @param statuses
+	 *            the status code bits of the samples
+	 * @param count
+	 *            the number of samples
+	 * @return true, if old samples were evicted to make room for the new ones
+	 */
+	public boolean seal(long[] times, double[] values, int[] statuses, int count) {
+		if (count == 0)
+			return false;
+		final SampleBlock block = SampleBlock.encode(times, values, statuses, 0, count);
+		blocks.add(block);
+		size += block.getCount();
+		sizeInBytes += block.getSizeInBytes();
+		return evict();
+	}
+
+	/**
+	 * Change the capacity. If the new capacity is smaller than the current
+	 * size, the oldest blocks are evicted.
+	 *
+	 * @param capacity
+	 *            the maximum number of samples to keep
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity must be a positive value");
+		this.capacity = capacity;
+		evict();
+	}
+
+	/**
+	 * @return the number of samples
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Evict the oldest blocks until the size fits in the capacity.
+	 */
+	private boolean evict() {
+		boolean evicted = false;
+		while (size > capacity) {
+			remove(0);
+			evicted = true;
+		}
+		return evicted;
+	}
+
+	/**
+	 * @return the index of the first block that ends at or after the time,
+	 *         or the number of blocks if there is no such block
+	 */
+	private int findBlock(long time) {
+		int low = 0;
+		int high = blocks.size();
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (blocks.get(mid).getLastTime() < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private void remove(int index) {
+		final SampleBlock block = blocks.remove(index);
+		size -= block.getCount();
+		sizeInBytes -= block.getSizeInBytes();
+	}
+
+	private void replace(int index, SampleBlock block) {
+		final SampleBlock old = blocks.set(index, block);
+		size += block.getCount() - old.getCount();
+		sizeInBytes += block.getSizeInBytes() - old.getSizeInBytes();
+	}
+}
@@ -0,0 +1,34 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.io.IOException;
+
+/**
+ * A source of values for the DataItems of {@link MyBigNodeManager}, such as a
+ * connection to a gateway of the underlying system.
+ * <p>
+ * The source pushes the new values of the items to a {@link DataUpdateQueue}
+ * in batches, from its own thread. The node manager takes the values from
+ * the queue, applies them to the items and notifies the monitored items.
+ */
+public interface DataSource {
+	/**
+	 * Start pushing values to the queue.
+	 *
+	 * @param queue
+	 *            the queue of the node manager
+	 * @throws IOException
+	 *             if the source cannot be opened
+	 */
+	void start(DataUpdateQueue queue) throws IOException;
+
+	/**
+	 * Stop pushing values and release the resources of the source.
+	 */
+	void stop();
+}
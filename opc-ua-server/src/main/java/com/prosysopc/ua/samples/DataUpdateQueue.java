@@ -0,0 +1,176 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+/**
+ * A queue of value updates from a {@link DataSource} to the DataItems, by the
+ * handles of the items.
+ * <p>
+ * The updates are coalesced: if an item is updated again before the previous
+ * update is taken from the queue, only the latest value is kept. Therefore
+ * the queue never holds more entries than there are items, and the producers
+ * never need to block, however far behind the consumer is. The values are
+ * kept in primitive arrays, so queuing an update does not allocate anything.
+ */
+public class DataUpdateQueue {
+	private long coalesced;
+	private int head;
+	// The handles of the queued items, in the order of their first update
+	private final int[] queue;
+	// Whether each item is in the queue
+	private final boolean[] queued;
+	private int size;
+	private final int[] statuses;
+	private final long[] timestamps;
+	private long updates;
+	private final double[] values;
+
+	/**
+	 * @param capacity
+	 *            the number of item handles
+	 */
+	public DataUpdateQueue(int capacity) {
+		super();
+		queue = new int[capacity];
+		queued = new boolean[capacity];
+		statuses = new int[capacity];
+		timestamps = new long[capacity];
+		values = new double[capacity];
+	}
+
+	/**
+	 * @return the number of item handles
+	 */
+	public int getCapacity() {
+		return queue.length;
+	}
+
+	/**
+	 * @return the number of updates that replaced a queued update of the same
+	 *         item
+	 */
+	public synchronized long getCoalescedCount() {
+		return coalesced;
+	}
+
+	/**
+	 * @return the number of updates put in the queue
+	 */
+	public synchronized long getUpdateCount() {
+		return updates;
+	}
+
+	/**
+	 * Queue a batch of updates.
+	 *
+	 * @param count
+	 *            the number of updates in the arrays
+	 * @param handles
+	 *            the handles of the items
+	 * @param values
+	 *            the new values
+	 * @param statuses
+	 *            the status code bits of the values
+	 * @param timestamps
+	 *            the source timestamps in DateTime ticks, or 0 to use the time
+	 *            when the update is applied
+	 * @throws IllegalArgumentException
+	 *             if a handle is not valid; none of the updates are queued,
+	 *             then
+	 */
+	public synchronized void put(int count, int[] handles, double[] values, int[] statuses, long[] timestamps) {
+		for (int i = 0; i < count; i++)
+			if ((handles[i] < 0) || (handles[i] >= queue.length))
+				throw new IllegalArgumentException("Invalid handle: " + handles[i]);
+		for (int i = 0; i < count; i++)
+			add(handles[i], values[i], statuses[i], timestamps[i]);
+		if (count > 0)
+			notifyAll();
+	}
+
+	/**
+	 * Queue an update.
+	 *
+	 * @param handle
+	 *            the handle of the item
+	 * @param value
+	 *            the new value
+	 * @param status
+	 *            the status code bits of the value
+	 * @param timestamp
+	 *            the source timestamp in DateTime ticks, or 0 to use the time
+	 *            when the update is applied
+	 */
+	public synchronized void put(int handle, double value, int status, long timestamp) {
+		if ((handle < 0) || (handle >= queue.length))
+			throw new IllegalArgumentException("Invalid handle: " + handle);
+		add(handle, value, status, timestamp);
+		notifyAll();
+	}
+
+	/**
+	 * @return the number of items in the queue
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Take the queued updates, waiting for some to arrive if the queue is
+	 * empty.
+	 *
+	 * @param handles
+	 *            the array to fill with the handles
+	 * @param values
+	 *            the array to fill with the values
+	 * @param statuses
+	 *            the array to fill with the statuses
+	 * @param timestamps
+	 *            the array to fill with the timestamps
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds
+	 * @return the number of updates taken, at most the length of the arrays;
+	 *         0 if the timeout expired
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public synchronized int take(int[] handles, double[] values, int[] statuses, long[] timestamps, long timeout)
+			throws InterruptedException {
+		if (size == 0) {
+			wait(timeout);
+			if (size == 0)
+				return 0;
+		}
+		final int count = Math.min(size, handles.length);
+		for (int i = 0; i < count; i++) {
+			final int handle = queue[head];
+			head = head + 1 == queue.length ? 0 : head + 1;
+			queued[handle] = false;
+			handles[i] = handle;
+			values[i] = this.values[handle];
+			statuses[i] = this.statuses[handle];
+			timestamps[i] = this.timestamps[handle];
+		}
+		size -= count;
+		return count;
+	}
+
+	private void add(int handle, double value, int status, long timestamp) {
+		values[handle] = value;
+		statuses[handle] = status;
+		timestamps[handle] = timestamp;
+		updates++;
+		if (queued[handle])
+			coalesced++;
+		else {
+			queued[handle] = true;
+			final int tail = head + size;
+			queue[tail >= queue.length ? tail - queue.length : tail] = handle;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+
+/**
+ * A ring buffer of history samples, which keeps the original DataValues. It is
+ * used for the data types that do not fit in a {@link SampleBuffer}, e.g.
+ * strings and 64-bit integers.
+ * <p>
+ * The samples are kept in timestamp order and addressed by their logical
+ * index, 0 being the oldest one, like in {@link SampleBuffer}. The arrays
+ * grow on demand up to the capacity, after which the oldest sample is
+ * overwritten.
+ * <p>
+ * The class is not thread safe; the owner is responsible for the locking.
+ */
+class DataValueBuffer {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int capacity;
+	private int head;
+	private int size;
+	private long[] times = new long[0];
+	private DataValue[] values = new DataValue[0];
+
+	/**
+	 * @param capacity
+	 *            the maximum number of samples to keep
+	 */
+	public DataValueBuffer(int capacity) {
+		super();
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity must be a positive value");
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Add a new sample to its place in the buffer. If the buffer is full, the
+	 * oldest sample is evicted.
+	 *
+	 * @param time
+	 *            the timestamp of the sample
+	 * @param value
+	 *            the sample
+	 */
+	public void add(long time, DataValue value) {
+		if (capacity == 0)
+			return;
+		int index = upperBound(time);
+		if (size == times.length) {
+			if (size < capacity)
+				resize(Math.min(Math.max(size * 2, INITIAL_CAPACITY), capacity));
+			else {
+				if (index == 0)
+					// Older than anything we can keep
+					return;
+				values[head] = null;
+				head = physical(1);
+				size--;
+				index--;
+			}
+		}
+		for (int i = size; i > index; i--) {
+			final int from = physical(i - 1);
+			final int to = physical(i);
+			times[to] = times[from];
+			values[to] = values[from];
+		}
+		final int i = physical(index);
+		times[i] = time;
+		values[i] = value;
+		size++;
+	}
+
+	/**
+	 * @param index
+	 *            the logical index of the sample
+	 * @return the sample
+	 */
+	public DataValue get(int index) {
+		return values[physical(checkIndex(index))];
+	}
+
+	/**
+	 * @return the maximum number of samples in the buffer
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @param index
+	 *            the logical index of the sample
+	 * @return the timestamp of the sample
+	 */
+	public long getTime(int index) {
+		return times[physical(checkIndex(index))];
+	}
+
+	/**
+	 * Find the first sample, whose timestamp is greater than or equal to the
+	 * given time.
+	 *
+	 * @param time
+	 *            the time to look for
+	 * @return the logical index of the sample, or size() if there is no such
+	 *         sample
+	 */
+	public int lowerBound(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (times[physical(mid)] < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Remove the samples between the logical indexes.
+	 *
+	 * @param fromIndex
+	 *            the logical index of the first sample to remove
+	 * @param toIndex
+	 *            the logical index after the last sample to remove
+	 */
+	public void removeRange(int fromIndex, int toIndex) {
+		if ((fromIndex < 0) || (toIndex > size) || (fromIndex > toIndex))
+			throw new IndexOutOfBoundsException("fromIndex=" + fromIndex + ", toIndex=" + toIndex + ", size=" + size);
+		final int count = toIndex - fromIndex;
+		for (int i = toIndex; i < size; i++) {
+			final int from = physical(i);
+			final int to = physical(i - count);
+			times[to] = times[from];
+			values[to] = values[from];
+		}
+		for (int i = size - count; i < size; i++)
+			values[physical(i)] = null;
+		size -= count;
+	}
+
+	/**
+	 * Change the capacity of the buffer. If the new capacity is smaller than
+	 * the current size, the oldest samples are dropped.
+	 *
+	 * @param capacity
+	 *            the new capacity
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity must be a positive value");
+		this.capacity = capacity;
+		if (size > capacity)
+			removeRange(0, size - capacity);
+		if (times.length > capacity)
+			resize(capacity);
+	}
+
+	/**
+	 * @return the number of samples in the buffer
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Find the first sample, whose timestamp is greater than the given time.
+	 *
+	 * @param time
+	 *            the time to look for
+	 * @return the logical index of the sample, or size() if there is no such
+	 *         sample
+	 */
+	public int upperBound(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (times[physical(mid)] <= time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private int checkIndex(int index) {
+		if ((index < 0) || (index >= size))
+			throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+		return index;
+	}
+
+	private int physical(int index) {
+		final int i = head + index;
+		return i >= times.length ? i - times.length : i;
+	}
+
+	private void resize(int capacity) {
+		// Unroll the ring, so that the oldest sample is at index 0
+		final long[] newTimes = new long[capacity];
+		final DataValue[] newValues = new DataValue[capacity];
+		for (int i = 0; i < size; i++) {
+			newTimes[i] = times[physical(i)];
+			newValues[i] = values[physical(i)];
+		}
+		times = newTimes;
+		values = newValues;
+		head = 0;
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+/**
+ * A fixed-capacity ring buffer of events, indexed by the event time.
+ * <p>
+ * Next to each event, the buffer keeps its time (in DateTime ticks) and the
+ * index of its EventType in primitive arrays, so that the events can be
+ * searched by time and filtered by type without touching the EventData. The
+ * events are kept in time order: a late event is inserted to its place. When
+ * the buffer is full, the oldest event is overwritten.
+ * <p>
+ * The class is not thread safe; the owner is responsible for the locking.
+ */
+class EventBuffer<T> {
+	private Object[] events;
+	private int head;
+	private int size;
+	private long[] times;
+	private int[] types;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of events to keep
+	 */
+	public EventBuffer(int capacity) {
+		super();
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity must be a positive value");
+		events = new Object[capacity];
+		times = new long[capacity];
+		types = new int[capacity];
+	}
+
+	/**
+	 * Add a new event to the buffer. If the buffer is full, the oldest event
+	 * is evicted.
+	 *
+	 * @param time
+	 *            the time of the event
+	 * @param type
+	 *            the index of the event type
+	 * @param event
+	 *            the event
+	 * @return true, if an old event was evicted to make room for the new one
+	 */
+	public boolean add(long time, int type, T event) {
+		final int capacity = times.length;
+		if (capacity == 0)
+			return true;
+		int index = size;
+		if ((size > 0) && (time < times[physical(size - 1)]))
+			index = upperBound(time);
+		boolean evicted = size == capacity;
+		if (evicted) {
+			if (index == 0)
+				// Older than anything we can keep
+				return true;
+			head = physical(1);
+			size--;
+			index--;
+		}
+		for (int i = size; i > index; i--)
+			move(i - 1, i);
+		final int i = physical(index);
+		times[i] = time;
+		types[i] = type;
+		events[i] = event;
+		size++;
+		return evicted;
+	}
+
+	/**
+	 * @return the maximum number of events in the buffer
+	 */
+	public int getCapacity() {
+		return times.length;
+	}
+
+	/**
+	 * @param index
+	 *            the logical index of the event, 0 being the oldest one
+	 * @return the event
+	 */
+	@SuppressWarnings("unchecked")
+	public T getEvent(int index) {
+		return (T) events[physical(checkIndex(index))];
+	}
+
+	/**
+	 * @param index
+	 *            the logical index of the event
+	 * @return the time of the event
+	 */
+	public long getTime(int index) {
+		return times[physical(checkIndex(index))];
+	}
+
+	/**
+	 * @param index
+	 *            the logical index of the event
+	 * @return the index of the type of the event
+	 */
+	public int getType(int index) {
+		return types[physical(checkIndex(index))];
+	}
+
+	/**
+	 * Find the first event, whose time is greater than or equal to the given
+	 * time.
+	 *
+	 * @param time
+	 *            the time to look for
+	 * @return the logical index of the event, or size() if there is no such
+	 *         event
+	 */
+	public int lowerBound(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (times[physical(mid)] < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Remove an event, moving the later events back to fill the gap.
+	 *
+	 * @param index
+	 *            the logical index of the event
+	 */
+	public void remove(int index) {
+		checkIndex(index);
+		for (int i = index + 1; i < size; i++)
+			move(i, i - 1);
+		size--;
+		events[physical(size)] = null;
+	}
+
+	/**
+	 * Change the capacity of the buffer. If the new capacity is smaller than
+	 * the number of events, the oldest events are dropped.
+	 *
+	 * @param capacity
+	 *            the maximum number of events to keep
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity must be a positive value");
+		final int first = Math.max(0, size - capacity);
+		final Object[] newEvents = new Object[capacity];
+		final long[] newTimes = new long[capacity];
+		final int[] newTypes = new int[capacity];
+		for (int i = first; i < size; i++) {
+			final int j = physical(i);
+			newEvents[i - first] = events[j];
+			newTimes[i - first] = times[j];
+			newTypes[i - first] = types[j];
+		}
+		events = newEvents;
+		times = newTimes;
+		types = newTypes;
+		size -= first;
+		head = 0;
+	}
+
+	/**
+	 * @return the number of events in the buffer
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Find the first event, whose time is greater than the given time.
+	 *
+	 * @param time
+	 *            the time to look for
+	 * @return the logical index of the event, or size() if there is no such
+	 *         event
+	 */
+	public int upperBound(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (times[physical(mid)] <= time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private int checkIndex(int index) {
+		if ((index < 0) || (index >= size))
+			throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+		return index;
+	}
+
+	private void move(int fromIndex, int toIndex) {
+		final int from = physical(fromIndex);
+		final int to = physical(toIndex);
+		times[to] = times[from];
+		types[to] = types[from];
+		events[to] = events[from];
+	}
+
+	private int physical(int index) {
+		final int i = head + index;
+		final int capacity = times.length;
+		return i >= capacity ? i - capacity : i;
+	}
+}
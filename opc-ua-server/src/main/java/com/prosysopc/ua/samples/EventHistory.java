@@ -6,31 +6,170 @@
  */
 package com.prosysopc.ua.samples;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
 
 import org.opcfoundation.ua.builtintypes.DateTime;
 import org.opcfoundation.ua.builtintypes.DiagnosticInfo;
-import org.opcfoundation.ua.builtintypes.QualifiedName;
+import org.opcfoundation.ua.builtintypes.NodeId;
 import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.Variant;
 import org.opcfoundation.ua.core.EventFilter;
-import org.opcfoundation.ua.core.EventFilterResult;
 import org.opcfoundation.ua.core.HistoryEventFieldList;
+import org.opcfoundation.ua.core.StatusCodes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.prosysopc.ua.EventData;
 import com.prosysopc.ua.EventListener;
+import com.prosysopc.ua.StatusException;
 import com.prosysopc.ua.nodes.UaNode;
-import com.prosysopc.ua.server.ContentFilterDefinition;
 import com.prosysopc.ua.server.nodes.UaObjectNode;
 
 /**
- *
+ * A sample class for keeping the event history of an object node.
+ * <p>
+ * The events are kept in an {@link EventBuffer}, which is indexed by the event
+ * time and the EventType, so that the reads can seek directly to the start
+ * time and skip the events of the types that the filter does not accept. The
+ * event filters are compiled once and cached by the content of their clauses.
+ * <p>
+ * Optionally, the events are also written to an {@link EventJournal}, from
+ * which the events that no longer fit in the memory buffer are read. Only the
+ * fields stored in the journal are available for those events, and a read
+ * fails with Bad_HistoryOperationUnsupported if it reaches the journal with
+ * a filter that cannot be evaluated on them.
  */
 public class EventHistory {
-	private final int capacity = 10000;
-	private final List<EventData> events = new CopyOnWriteArrayList<EventData>();
+	/**
+	 * The state of a readEvents request: the events are passed to it in the
+	 * order of reading.
+	 */
+	private class EventReader {
+		private final long endTime;
+		private final CompiledEventFilter filter;
+		private final List<HistoryEventFieldList> history;
+		private long lastTime;
+		private final int maxValues;
+		private boolean more;
+		private int seq;
+		// The events at the cursor time that were already processed are
+		// skipped, they are counted by seq
+		private int skip;
+		private boolean stopped;
+
+		EventReader(CompiledEventFilter filter, int maxValues, long endTime, List<HistoryEventFieldList> history,
+				HistoryCursor cursor) {
+			this.filter = filter;
+			this.maxValues = maxValues;
+			this.endTime = endTime;
+			this.history = history;
+			lastTime = cursor == null ? 0 : cursor.getTime();
+			seq = cursor == null ? 0 : cursor.getSeq();
+			skip = seq;
+		}
+
+		/**
+		 * Process an event of the journal.
+		 *
+		 * @return false, if the read is complete
+		 * @throws StatusException
+		 *             if the filter cannot be evaluated from the journal
+		 */
+		boolean add(EventJournal.Record record) throws StatusException {
+			if (!accept(record.getTime()))
+				return false;
+			if (!filter.isJournalSupported())
+				throw new StatusException("The filter cannot be evaluated for the events in the journal",
+						StatusCodes.Bad_HistoryOperationUnsupported);
+			final int type = getTypeIndex(record.getEventType());
+			if ((skip == 0) && filter.accept(record, type, type < 0 ? null : types.get(type)))
+				history.add(new HistoryEventFieldList(record.getFieldValues(filter.getFieldPaths())));
+			return next(record.getTime());
+		}
+
+		/**
+		 * Process an event of the buffer.
+		 *
+		 * @return false, if the read is complete
+		 */
+		boolean add(int index) {
+			final long t = events.getTime(index);
+			if (!accept(t))
+				return false;
+			final int type = events.getType(index);
+			if (skip == 0) {
+				final EventData event = events.getEvent(index);
+				if (filter.accept(event, type, type < 0 ? null : types.get(type)))
+					history.add(new HistoryEventFieldList(event.getFieldValues(filter.getFieldPaths())));
+			}
+			return next(t);
+		}
+
+		boolean isStopped() {
+			return stopped;
+		}
+
+		private boolean accept(long t) {
+			if (t > endTime)
+				stopped = true;
+			else if ((skip > 0) && (t == lastTime))
+				return true;
+			else {
+				skip = 0;
+				if ((maxValues > 0) && (history.size() == maxValues)) {
+					more = true;
+					stopped = true;
+				}
+			}
+			return !stopped;
+		}
+
+		private boolean next(long t) {
+			if (skip > 0) {
+				skip--;
+				return true;
+			}
+			if ((seq > 0) && (t == lastTime))
+				seq++;
+			else {
+				lastTime = t;
+				seq = 1;
+			}
+			return true;
+		}
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(EventHistory.class);
+	private static final int MAX_FILTERS = 32;
+
+	private final EventBuffer<EventData> events;
+	// The time of the latest event that was dropped from the buffer: older
+	// events are read from the journal
+	private long evictedTime = Long.MIN_VALUE;
+	// The number of events appended to the journal, when an event was last
+	// dropped from the buffer: the journal must have written them, before it
+	// is read
+	private long evictedCount;
+	// The compiled filters by CompiledEventFilter.getKey, the least recently
+	// used first
+	private final Map<String, CompiledEventFilter> filters = new LinkedHashMap<String, CompiledEventFilter>(16,
+			0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CompiledEventFilter> eldest) {
+			return size() > MAX_FILTERS;
+		}
+	};
+	// Incremented when events are deleted, to invalidate the cursors
+	private long generation;
+	private final EventJournal journal;
 	private final EventListener listener = new EventListener() {
 
 		@Override
@@ -40,39 +179,88 @@ public class EventHistory {
 
 		@Override
 		public void onEvent(UaNode node, EventData eventData) {
-			events.add(eventData);
-			while (events.size() > capacity)
-				events.remove(0);
+			add(eventData);
 		}
 	};
 	private final UaObjectNode node;
+	// The event types by their index in the buffer
+	private final Map<NodeId, Integer> typeIndexes = new HashMap<NodeId, Integer>();
+	private final List<NodeId> types = new ArrayList<NodeId>();
 
 	/**
 	 * @param node
 	 */
 	public EventHistory(UaObjectNode node) {
+		this(node, 10000, null);
+	}
+
+	/**
+	 * @param node
+	 *            the node whose events are kept
+	 * @param capacity
+	 *            the maximum number of events kept in memory
+	 * @param journal
+	 *            the journal to write the events to, or null to keep the
+	 *            events in memory only
+	 */
+	public EventHistory(UaObjectNode node, int capacity, EventJournal journal) {
 		super();
 		this.node = node;
+		this.journal = journal;
+		events = new EventBuffer<EventData>(capacity);
+		if ((journal != null) && (journal.size() > 0))
+			// The events of the previous runs
+			evictedTime = journal.getTime(journal.size() - 1);
 		node.addEventListener(listener);
 	}
 
+	/**
+	 * Stop collecting the events and close the journal.
+	 */
+	public void close() {
+		node.removeEventListener(listener);
+		if (journal != null)
+			journal.close();
+	}
+
 	/**
 	 * @param eventIds
 	 * @param operationResults
 	 * @param operationDiagnostics
 	 */
-	public void deleteEvents(byte[][] eventIds, StatusCode[] operationResults, DiagnosticInfo[] operationDiagnostics) {
-		for (int i = events.size() - 1; i >= 0; i--) {
-			EventData event = events.get(i);
-			byte[] id1 = event.getEventId();
-			for (byte[] eventId : eventIds)
-				if (Arrays.equals(eventId, id1)) {
+	public synchronized void deleteEvents(byte[][] eventIds, StatusCode[] operationResults,
+			DiagnosticInfo[] operationDiagnostics) {
+		generation++;
+		for (int k = 0; k < eventIds.length; k++) {
+			boolean found = false;
+			for (int i = events.size() - 1; i >= 0; i--)
+				if (Arrays.equals(eventIds[k], events.getEvent(i).getEventId())) {
 					events.remove(i);
+					found = true;
 					break;
 				}
+			if ((journal != null) && journal.delete(eventIds[k]))
+				found = true;
+			if (operationResults != null)
+				operationResults[k] = found ? StatusCode.GOOD : new StatusCode(StatusCodes.Bad_NoData);
 		}
 	}
 
+	/**
+	 * @return the maximum number of events kept in memory
+	 */
+	public synchronized int getCapacity() {
+		return events.getCapacity();
+	}
+
+	/**
+	 * @return the journal of the events, or null if the events are kept in
+	 *         memory only
+	 */
+	public EventJournal getJournal() {
+		return journal;
+	}
+
 	/**
 	 * @param startTime
 	 *            the start of the interval
@@ -82,64 +270,182 @@ public class EventHistory {
 	 *            maximum number of values to return
 	 * @param eventFilter
 	 *            the event filter that defines the fields and events to return
-	 * @param firstIndex
-	 *            the index of the first entry in the history data to return
-	 *            (i.e. the continuationPoint returned for the previous request)
 	 * @param history
 	 *            the list of values to fill in
-	 * @return the first index that was not added to the history, in case there
-	 *         are more than maxValues entries to return (i.e. the
+	 * @param cursor
+	 *            the position to continue from (i.e. the continuationPoint
+	 *            returned for the previous request), or null to start from the
+	 *            beginning
+	 * @return the position after the last event processed, in case there are
+	 *         more than maxValues entries to return (i.e. the
 	 *         continuationPoint to return)
+	 * @throws StatusException
+	 *             if events have been deleted after the cursor was returned
+	 */
+	public HistoryCursor readEvents(DateTime startTime, DateTime endTime, int maxValues, EventFilter eventFilter,
+			List<HistoryEventFieldList> history, HistoryCursor cursor) throws StatusException {
+		final int size = history.size();
+		while (true) {
+			final long count;
+			synchronized (this) {
+				final EventReader reader = read(startTime, endTime, maxValues, eventFilter, history, cursor);
+				if (reader != null)
+					return reader.more ? new HistoryCursor(reader.lastTime, reader.seq, generation) : null;
+				count = evictedCount;
+			}
+			// Some evicted events are still waiting for the writer of the
+			// journal: wait for them without blocking the event listener and
+			// read again
+			history.subList(size, history.size()).clear();
+			try {
+				journal.flush(count);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StatusException(e.getMessage(), StatusCodes.Bad_InternalError, e);
+			}
+		}
+	}
+
+	/**
+	 * Change the number of events kept in memory. If there are more events,
+	 * the oldest ones are dropped.
+	 *
+	 * @param capacity
+	 *            the maximum number of events kept in memory
+	 */
+	public synchronized void setCapacity(int capacity) {
+		final int dropped = events.size() - capacity;
+		if (dropped > 0) {
+			evictedTime = Math.max(evictedTime, events.getTime(dropped - 1));
+			if (journal != null)
+				evictedCount = journal.getAppendedCount();
+		}
+		events.setCapacity(capacity);
+	}
+
+	/**
+	 * Add a new event to the history, removing the oldest one, if the capacity
+	 * is exceeded.
+	 */
+	private synchronized void add(EventData eventData) {
+		DateTime time = eventData.getTime();
+		if (time == null)
+			time = DateTime.currentTime();
+		final long t = time.getValue();
+		final boolean evict = events.size() == events.getCapacity();
+		if (evict) {
+			// Either the oldest event or the new one is dropped
+			final long dropped = events.size() == 0 ? t : Math.min(t, events.getTime(0));
+			evictedTime = Math.max(evictedTime, dropped);
+		}
+		events.add(t, getTypeIndex(getEventType(eventData)), eventData);
+		if (journal != null) {
+			journal.append(t, eventData);
+			if (evict)
+				evictedCount = journal.getAppendedCount();
+		}
+	}
+
+	/**
+	 * @return the EventType of the event, or null if it is not available
 	 */
-	public Integer readEvents(DateTime startTime, DateTime endTime, int maxValues, EventFilter eventFilter,
-			List<HistoryEventFieldList> history, int firstIndex) {
-		int i = 0;
+	private NodeId getEventType(EventData eventData) {
+		final Variant[] values = eventData.getFieldValues(CompiledEventFilter.EVENT_TYPE_PATH);
+		if ((values == null) || (values.length == 0) || (values[0] == null))
+			return null;
+		final Object value = values[0].getValue();
+		return value instanceof NodeId ? (NodeId) value : null;
+	}
+
+	/**
+	 * Get the compiled version of the filter, compiling it if it is not in
+	 * the cache yet.
+	 */
+	private CompiledEventFilter getFilter(EventFilter eventFilter) {
+		final String key = CompiledEventFilter.getKey(eventFilter);
+		if (key == null)
+			return new CompiledEventFilter(node.getNodeManager().getNodeManagerTable().getNodeManagerRoot(),
+					eventFilter);
+		CompiledEventFilter filter = filters.get(key);
+		if (filter == null) {
+			filter = new CompiledEventFilter(node.getNodeManager().getNodeManagerTable().getNodeManagerRoot(),
+					eventFilter);
+			filters.put(key, filter);
+		}
+		return filter;
+	}
+
+	/**
+	 * @return the index of the event type, or -1 if the type is not known
+	 */
+	private int getTypeIndex(NodeId type) {
+		if (type == null)
+			return -1;
+		Integer index = typeIndexes.get(type);
+		if (index == null) {
+			index = types.size();
+			types.add(type);
+			typeIndexes.put(type, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Read the events, while holding the lock of the history.
+	 *
+	 * @return the reader after the read, or null if the read needs the
+	 *         journal and it has not written all the evicted events yet
+	 */
+	private EventReader read(DateTime startTime, DateTime endTime, int maxValues, EventFilter eventFilter,
+			List<HistoryEventFieldList> history, HistoryCursor cursor) throws StatusException {
+		if ((cursor != null) && (cursor.getGeneration() != generation))
+			throw new StatusException(StatusCodes.Bad_ContinuationPointInvalid);
 		boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
 		boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
-		List<List<QualifiedName>> fieldPaths = new ArrayList<List<QualifiedName>>();
-		ContentFilterDefinition filterDefinition = new ContentFilterDefinition();
-		EventFilterResult eventFilterResult = new EventFilterResult();
-		ContentFilterDefinition.parseEventFilter(node.getNodeManager().getNodeManagerTable().getNodeManagerRoot(),
-				eventFilter, fieldPaths, filterDefinition, eventFilterResult);
-		if (startTimeDefined || !endTimeDefined)
-			for (int j = 0; j < events.size(); j++) {
-				EventData event = events.get(j);
-				DateTime t = event.getTime();
-				final int compareToEnd = endTimeDefined ? t.compareTo(endTime) : -1;
-				if (compareToEnd > 0)
-					break;
-				else {
-					final int compareToStart = t.compareTo(startTime);
-					if (compareToStart >= 0) {
-						if ((i >= firstIndex) && filterDefinition.evaluate(event, true))
-							history.add(new HistoryEventFieldList(event.getFieldValues(fieldPaths)));
-						i++;
-						if (history.size() == maxValues)
-							// Return continuation point if no more events exist
-							// and both timestamps were defined
-							return endTimeDefined && (j < events.size()) ? i : null;
+		final boolean forward = startTimeDefined || !endTimeDefined;
+		final EventReader reader = new EventReader(getFilter(eventFilter), maxValues,
+				forward && endTimeDefined ? endTime.getValue() : Long.MAX_VALUE, history, cursor);
+		// With a journal, the events up to evictedTime are read from the
+		// journal and the later ones from the buffer; without, the whole
+		// buffer is read
+		final int firstInBuffer = journal == null ? 0 : events.upperBound(evictedTime);
+		try {
+			if (forward) {
+				final long seekTime = cursor != null ? cursor.getTime()
+						: startTimeDefined ? startTime.getValue() : Long.MIN_VALUE;
+				if ((journal != null) && (seekTime <= evictedTime))
+					// Hold the journal, so that its index does not change
+					synchronized (journal) {
+						if (!journal.isWritten(evictedCount))
+							return null;
+						for (int j = journal.lowerBound(seekTime); j < journal.size(); j++)
+							if ((journal.getTime(j) > evictedTime) || !reader.add(journal.read(j)))
+								break;
+					}
+				if (!reader.isStopped())
+					for (int j = Math.max(firstInBuffer, events.lowerBound(seekTime)); j < events.size(); j++)
+						if (!reader.add(j))
+							break;
+			} else {
+				// !startTimeDefined && endTimeDefined
+				final long seekTime = cursor != null ? cursor.getTime() : endTime.getValue();
+				for (int j = events.upperBound(seekTime) - 1; j >= firstInBuffer; j--)
+					if (!reader.add(j))
+						break;
+				if ((journal != null) && !reader.isStopped())
+					synchronized (journal) {
+						if (!journal.isWritten(evictedCount))
+							return null;
+						for (int j = journal.upperBound(Math.min(seekTime, evictedTime)) - 1; j >= 0; j--)
+							if (!reader.add(journal.read(j)))
+								break;
 					}
-				}
-			}
-		else
-			// !startTimeDefined && endTimeDefined
-			for (int j = events.size() - 1; j >= 0; j--) {
-				EventData event = events.get(j);
-				DateTime t = event.getTime();
-				final int compareToEnd = t.compareTo(endTime);
-				if (compareToEnd > 0)
-					continue;
-				else {
-					if (i >= firstIndex)
-						history.add(new HistoryEventFieldList(event.getFieldValues(fieldPaths)));
-					i++;
-					if (history.size() == maxValues)
-						// Return continuation point if no more events exist and
-						// both timestamps were defined
-						return startTimeDefined && (j > 0) ? i : null;
-				}
 			}
-		return null;
+		} catch (IOException e) {
+			logger.error("Failed to read the event journal of " + node.getNodeId(), e);
+			throw new StatusException(e.getMessage(), StatusCodes.Bad_InternalError, e);
+		}
+		return reader;
 	}
 
 }
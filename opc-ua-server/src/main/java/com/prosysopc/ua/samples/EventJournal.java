@@ -0,0 +1,798 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.LocalizedText;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.QualifiedName;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.UnsignedShort;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.prosysopc.ua.EventData;
+
+/**
+ * An append-only journal of the events of one {@link EventHistory} on the
+ * local disk.
+ * <p>
+ * The events are written to segment files by a background thread, which
+ * commits all the events that arrived during the previous write with a single
+ * write and force ("group commit"), so that the event listener is never
+ * blocked by the disk. The fields of BaseEventType (except for
+ * LocalTime) and the main fields of ConditionType and AlarmConditionType
+ * (see {@link #isStored(List)}) are stored in a compact binary encoding;
+ * other fields of the events are not available from the journal.
+ * <p>
+ * The journal keeps an index of the events by time and by EventId in memory.
+ * The writer thread inserts to and removes from the index, so a reader that
+ * walks it by the indexes must hold the lock of the journal meanwhile.
+ * Deleted events are only marked as deleted in the files. Old segments are
+ * removed according to the maximum age and size of the journal.
+ */
+class EventJournal {
+	/**
+	 * An event read from the journal.
+	 */
+	static class Record {
+		// The values of CONDITION_FIELD_PATHS
+		private final Object[] conditionValues = new Object[CONDITION_FIELD_PATHS.size()];
+		private final byte[] eventId;
+		private final String eventType;
+		private final String message;
+		private final String messageLocale;
+		private final long receiveTime;
+		private final int severity;
+		private final String sourceName;
+		private final String sourceNode;
+		private final long time;
+
+		Record(long time, DataInputStream in) throws IOException {
+			this.time = time;
+			eventId = new byte[in.readUnsignedShort()];
+			in.readFully(eventId);
+			eventType = readString(in);
+			sourceNode = readString(in);
+			sourceName = readString(in);
+			receiveTime = in.readLong();
+			message = readString(in);
+			messageLocale = readString(in);
+			severity = in.readUnsignedShort();
+			for (int i = 0; i < conditionValues.length; i++)
+				conditionValues[i] = readValue(in);
+		}
+
+		/**
+		 * @return the EventType of the event, or null if it is not known
+		 */
+		public NodeId getEventType() {
+			return parseNodeId(eventType);
+		}
+
+		/**
+		 * Get the values of the fields of the event.
+		 *
+		 * @param fieldPaths
+		 *            the browse paths of the fields
+		 * @return the values; null values for the fields that are not stored
+		 */
+		public Variant[] getFieldValues(List<List<QualifiedName>> fieldPaths) {
+			final Variant[] values = new Variant[fieldPaths.size()];
+			for (int i = 0; i < values.length; i++)
+				values[i] = getFieldValue(fieldPaths.get(i));
+			return values;
+		}
+
+		/**
+		 * @return the time of the event in DateTime ticks
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @param path
+		 *            the browse path of the field
+		 * @return the value of the field; Variant.NULL if it is not stored
+		 */
+		Variant getFieldValue(List<QualifiedName> path) {
+			final int condition = CONDITION_FIELD_PATHS.indexOf(path);
+			if (condition >= 0)
+				return new Variant(conditionValues[condition]);
+			if ((path == null) || (path.size() != 1) || (path.get(0).getNamespaceIndex() != 0))
+				return Variant.NULL;
+			switch (FIELDS.indexOf(path.get(0).getName())) {
+			case 0:
+				return new Variant(eventId);
+			case 1:
+				return new Variant(getEventType());
+			case 2:
+				return new Variant(parseNodeId(sourceNode));
+			case 3:
+				return new Variant(sourceName);
+			case 4:
+				return new Variant(new DateTime(time));
+			case 5:
+				return new Variant(new DateTime(receiveTime));
+			case 6:
+				return new Variant(message == null ? null : new LocalizedText(message, messageLocale));
+			case 7:
+				return new Variant(UnsignedShort.valueOf(severity));
+			default:
+				return Variant.NULL;
+			}
+		}
+	}
+
+	/**
+	 * An encoded event waiting to be written.
+	 */
+	private static class Pending {
+		final byte[] body;
+		final byte[] eventId;
+		final long time;
+
+		Pending(long time, byte[] eventId, byte[] body) {
+			this.time = time;
+			this.eventId = eventId;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * A journal file.
+	 */
+	private static class Segment {
+		final FileChannel channel;
+		final RandomAccessFile file;
+		long newestTime = Long.MIN_VALUE;
+		final long number;
+		final File path;
+		long size;
+
+		Segment(File path, long number) throws IOException {
+			this.path = path;
+			this.number = number;
+			file = new RandomAccessFile(path, "rw");
+			channel = file.getChannel();
+			size = file.length();
+		}
+
+		void close() {
+			try {
+				file.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close " + path, e);
+			}
+		}
+	}
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	// The fields of the conditions stored in the journal, in addition to the
+	// fields of BaseEventType, so that the alarm history can be read and
+	// filtered from the journal
+	private static final List<List<QualifiedName>> CONDITION_FIELD_PATHS = new ArrayList<List<QualifiedName>>();
+
+	// The fields of the events stored in the journal (Time is in the header)
+	private static final List<QualifiedName> EVENT_FIELDS = Arrays.asList(new QualifiedName("EventType"),
+			new QualifiedName("SourceNode"), new QualifiedName("SourceName"), new QualifiedName("ReceiveTime"),
+			new QualifiedName("Message"), new QualifiedName("Severity"));
+	private static final List<List<QualifiedName>> EVENT_FIELD_PATHS = new ArrayList<List<QualifiedName>>();
+	private static final List<String> FIELDS = Arrays.asList("EventId", "EventType", "SourceNode", "SourceName",
+			"Time", "ReceiveTime", "Message", "Severity");
+	private static final int FLAG_DELETED = 1;
+	// Record header: body length (int), time (long), flags (byte)
+	private static final int HEADER_SIZE = 13;
+	private static final Logger logger = LoggerFactory.getLogger(EventJournal.class);
+	private static final int MAX_BATCH = 1024;
+	private static final String SEGMENT_SUFFIX = ".evj";
+	private static final long TICKS_PER_MILLISECOND = 10000;
+
+	static {
+		for (QualifiedName field : EVENT_FIELDS)
+			EVENT_FIELD_PATHS.add(Arrays.asList(field));
+		for (String field : new String[] { "ConditionName", "Retain", "EnabledState", "EnabledState/Id",
+				"ActiveState", "ActiveState/Id", "AckedState", "AckedState/Id", "ConfirmedState",
+				"ConfirmedState/Id", "Comment" }) {
+			final List<QualifiedName> path = new ArrayList<QualifiedName>();
+			for (String name : field.split("/"))
+				path.add(new QualifiedName(name));
+			CONDITION_FIELD_PATHS.add(path);
+		}
+	}
+
+	/**
+	 * Check whether a field of the events is stored in the journal, so that
+	 * it can be selected and filtered from the journal.
+	 *
+	 * @param path
+	 *            the browse path of the field
+	 * @return true if the field is stored
+	 */
+	static boolean isStored(List<QualifiedName> path) {
+		if (CONDITION_FIELD_PATHS.contains(path))
+			return true;
+		return (path != null) && (path.size() == 1) && (path.get(0).getNamespaceIndex() == 0)
+				&& FIELDS.contains(path.get(0).getName());
+	}
+
+	private static NodeId parseNodeId(String s) {
+		if (s == null)
+			return null;
+		try {
+			return NodeId.parseNodeId(s);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		switch (in.readByte()) {
+		case 'B':
+			return Boolean.valueOf(in.readBoolean());
+		case 'D':
+			return Double.valueOf(in.readDouble());
+		case 'I':
+			return Integer.valueOf(in.readInt());
+		case 'L': {
+			final String text = readString(in);
+			return new LocalizedText(text, readString(in));
+		}
+		case 'N':
+			return parseNodeId(readString(in));
+		case 'S':
+			return readString(in);
+		case 'T':
+			return new DateTime(in.readLong());
+		case 'U':
+			return UnsignedInteger.valueOf(in.readInt() & 0xFFFFFFFFL);
+		case 'u':
+			return UnsignedShort.valueOf(in.readUnsignedShort());
+		default:
+			return null;
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		final int length = in.readInt();
+		if (length < 0)
+			return null;
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	/**
+	 * Write a value with a type tag. The values of other types are written
+	 * as null.
+	 */
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value instanceof Boolean) {
+			out.writeByte('B');
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Double) {
+			out.writeByte('D');
+			out.writeDouble((Double) value);
+		} else if (value instanceof Integer) {
+			out.writeByte('I');
+			out.writeInt((Integer) value);
+		} else if (value instanceof LocalizedText) {
+			out.writeByte('L');
+			writeString(out, ((LocalizedText) value).getText());
+			writeString(out, ((LocalizedText) value).getLocaleId());
+		} else if (value instanceof NodeId) {
+			out.writeByte('N');
+			writeString(out, value);
+		} else if (value instanceof String) {
+			out.writeByte('S');
+			writeString(out, value);
+		} else if (value instanceof DateTime) {
+			out.writeByte('T');
+			out.writeLong(((DateTime) value).getValue());
+		} else if (value instanceof UnsignedInteger) {
+			out.writeByte('U');
+			out.writeInt(((UnsignedInteger) value).intValue());
+		} else if (value instanceof UnsignedShort) {
+			out.writeByte('u');
+			out.writeShort(((UnsignedShort) value).intValue());
+		} else
+			out.writeByte(0);
+	}
+
+	private static void writeString(DataOutputStream out, Object value) throws IOException {
+		if (value == null)
+			out.writeInt(-1);
+		else {
+			final byte[] bytes = value.toString().getBytes(CHARSET);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	// The number of events appended, and the number of them processed by the
+	// writer (the latter guarded by this)
+	private final AtomicLong appended = new AtomicLong();
+	private volatile boolean closed;
+	private final File directory;
+	// The events by EventId: the position of each event
+	private final Map<ByteBuffer, Long> eventIds = new HashMap<ByteBuffer, Long>();
+	private long maxAge = 30L * 24 * 60 * 60 * 1000;
+	private long maxSize = 256L * 1024 * 1024;
+	private final BlockingQueue<Pending> pending = new LinkedBlockingQueue<Pending>();
+	// The events by time: the times and the positions (segment number and
+	// offset) of the events, in time order
+	private long[] positions = new long[1024];
+	private long segmentSize = 16L * 1024 * 1024;
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private int size;
+	private long[] times = new long[1024];
+	private long totalSize;
+	private long written;
+	private final Thread writer;
+
+	/**
+	 * Open a journal in the directory, creating it if necessary.
+	 *
+	 * @param directory
+	 *            the directory for the journal files
+	 * @throws IOException
+	 *             if the existing files cannot be opened
+	 */
+	public EventJournal(File directory) throws IOException {
+		super();
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create event journal directory " + directory);
+		load();
+		writer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "EventJournal " + directory.getName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Add an event to the journal. The event is written asynchronously.
+	 *
+	 * @param time
+	 *            the time of the event
+	 * @param event
+	 *            the event
+	 */
+	public void append(long time, EventData event) {
+		if (closed)
+			return;
+		try {
+			final byte[] eventId = event.getEventId() == null ? new byte[0] : event.getEventId();
+			final Variant[] values = event.getFieldValues(EVENT_FIELD_PATHS);
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+			final DataOutputStream out = new DataOutputStream(bytes);
+			out.writeShort(eventId.length);
+			out.write(eventId);
+			writeString(out, getValue(values, 0));
+			writeString(out, getValue(values, 1));
+			writeString(out, getValue(values, 2));
+			final Object receiveTime = getValue(values, 3);
+			out.writeLong(receiveTime instanceof DateTime ? ((DateTime) receiveTime).getValue() : time);
+			final Object message = getValue(values, 4);
+			writeString(out, message instanceof LocalizedText ? ((LocalizedText) message).getText() : message);
+			writeString(out, message instanceof LocalizedText ? ((LocalizedText) message).getLocaleId() : null);
+			final Object severity = getValue(values, 5);
+			out.writeShort(severity instanceof Number ? ((Number) severity).intValue() : 0);
+			final Variant[] conditionValues = event.getFieldValues(CONDITION_FIELD_PATHS);
+			for (int i = 0; i < CONDITION_FIELD_PATHS.size(); i++)
+				writeValue(out, getValue(conditionValues, i));
+			out.close();
+			appended.incrementAndGet();
+			pending.add(new Pending(time, eventId, bytes.toByteArray()));
+		} catch (IOException e) {
+			// Cannot happen with a ByteArrayOutputStream
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write the pending events and close the journal files.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			for (Segment segment : segments.values())
+				segment.close();
+			segments.clear();
+		}
+	}
+
+	/**
+	 * Mark an event deleted.
+	 *
+	 * @param eventId
+	 *            the EventId of the event
+	 * @return true if the event was found
+	 */
+	public synchronized boolean delete(byte[] eventId) {
+		final Long position = eventIds.remove(ByteBuffer.wrap(eventId));
+		if (position == null)
+			return false;
+		final Segment segment = segments.get(position >>> 32);
+		final long offset = position & 0xFFFFFFFFL;
+		try {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			segment.channel.read(header, offset);
+			final long time = header.getLong(4);
+			for (int i = lowerBound(time); i < size; i++)
+				if (positions[i] == position) {
+					removeIndex(i);
+					break;
+				}
+			segment.channel.write(ByteBuffer.wrap(new byte[] { FLAG_DELETED }), offset + 12);
+		} catch (IOException e) {
+			logger.error("Failed to delete an event from " + segment.path, e);
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until the given number of appended events have been written and
+	 * indexed, so that they can be read from the journal.
+	 *
+	 * @param count
+	 *            the number of events, see {@link #getAppendedCount()}
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public synchronized void flush(long count) throws InterruptedException {
+		while (!isWritten(count))
+			wait(100);
+	}
+
+	/**
+	 * @return the number of events appended to the journal since it was
+	 *         opened
+	 */
+	public long getAppendedCount() {
+		return appended.get();
+	}
+
+	/**
+	 * @return the maximum age of the events (in milliseconds)
+	 */
+	public synchronized long getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * @return the maximum size of the journal files (in bytes)
+	 */
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param index
+	 *            the index of the event, in time order
+	 * @return the time of the event
+	 */
+	public synchronized long getTime(int index) {
+		return times[index];
+	}
+
+	/**
+	 * @param count
+	 *            the number of events, see {@link #getAppendedCount()}
+	 * @return true if the given number of appended events have been written
+	 *         and indexed (or they never will be, since the journal is
+	 *         closed)
+	 */
+	public synchronized boolean isWritten(long count) {
+		return (written >= count) || !writer.isAlive();
+	}
+
+	/**
+	 * Find the first event, whose time is greater than or equal to the given
+	 * time.
+	 *
+	 * @param time
+	 *            the time to look for
+	 * @return the index of the event, or size() if there is no such event
+	 */
+	public synchronized int lowerBound(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (times[mid] < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Read an event from the journal.
+	 *
+	 * @param index
+	 *            the index of the event, in time order
+	 * @return the event
+	 * @throws IOException
+	 *             if the event cannot be read
+	 */
+	public synchronized Record read(int index) throws IOException {
+		final long position = positions[index];
+		final Segment segment = segments.get(position >>> 32);
+		final long offset = position & 0xFFFFFFFFL;
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		segment.channel.read(header, offset);
+		final ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+		segment.channel.read(body, offset + HEADER_SIZE);
+		return new Record(header.getLong(4),
+				new DataInputStream(new ByteArrayInputStream(body.array())));
+	}
+
+	/**
+	 * @param maxAge
+	 *            the maximum age of the events (in milliseconds); older
+	 *            segments are removed
+	 */
+	public synchronized void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * @param maxSize
+	 *            the maximum size of the journal files (in bytes); the oldest
+	 *            segments are removed to keep the size
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the number of events in the journal
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Find the first event, whose time is greater than the given time.
+	 *
+	 * @param time
+	 *            the time to look for
+	 * @return the index of the event, or size() if there is no such event
+	 */
+	public synchronized int upperBound(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (times[mid] <= time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Remove the segments that are older than maxAge (counted from the latest
+	 * event), or do not fit in maxSize. The latest segment is always kept.
+	 */
+	private void applyRetention() {
+		final long oldest = segments.lastEntry().getValue().newestTime - (maxAge * TICKS_PER_MILLISECOND);
+		while (segments.size() > 1) {
+			final Segment segment = segments.firstEntry().getValue();
+			if ((totalSize <= maxSize) && (segment.newestTime >= oldest))
+				break;
+			removeSegment(segment);
+		}
+	}
+
+	private void addIndex(long time, long position, byte[] eventId) {
+		if (size == times.length) {
+			times = Arrays.copyOf(times, size * 2);
+			positions = Arrays.copyOf(positions, size * 2);
+		}
+		// Events normally arrive in time order, late ones are inserted
+		final int i = upperBound(time);
+		System.arraycopy(times, i, times, i + 1, size - i);
+		System.arraycopy(positions, i, positions, i + 1, size - i);
+		times[i] = time;
+		positions[i] = position;
+		size++;
+		eventIds.put(ByteBuffer.wrap(eventId), position);
+	}
+
+	private Object getValue(Variant[] values, int index) {
+		if ((values == null) || (values.length <= index) || (values[index] == null))
+			return null;
+		return values[index].getValue();
+	}
+
+	/**
+	 * Open the existing segments and build the index.
+	 */
+	private void load() throws IOException {
+		final File[] files = directory.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		for (File file : files) {
+			final String name = file.getName();
+			final long number;
+			try {
+				number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				logger.warn("Ignoring an unknown file in the event journal: " + file);
+				continue;
+			}
+			final Segment segment = new Segment(file, number);
+			segments.put(number, segment);
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			long offset = 0;
+			while (offset + HEADER_SIZE <= segment.size) {
+				header.clear();
+				segment.channel.read(header, offset);
+				final int length = header.getInt(0);
+				if ((length < 2) || ((offset + HEADER_SIZE + length) > segment.size))
+					break;
+				final long time = header.getLong(4);
+				if ((header.get(12) & FLAG_DELETED) == 0) {
+					final ByteBuffer id = ByteBuffer.allocate(2);
+					segment.channel.read(id, offset + HEADER_SIZE);
+					final byte[] eventId = new byte[id.getShort(0) & 0xFFFF];
+					segment.channel.read(ByteBuffer.wrap(eventId), offset + HEADER_SIZE + 2);
+					addIndex(time, (number << 32) | offset, eventId);
+				}
+				segment.newestTime = Math.max(segment.newestTime, time);
+				offset += HEADER_SIZE + length;
+			}
+			if (offset < segment.size) {
+				// An incomplete write, e.g. from a crash
+				logger.warn("Truncating the event journal " + file + " at " + offset);
+				segment.channel.truncate(offset);
+				segment.size = offset;
+			}
+			totalSize += segment.size;
+		}
+	}
+
+	private void removeIndex(int i) {
+		System.arraycopy(times, i + 1, times, i, size - i - 1);
+		System.arraycopy(positions, i + 1, positions, i, size - i - 1);
+		size--;
+	}
+
+	private void removeSegment(Segment segment) {
+		segments.remove(segment.number);
+		totalSize -= segment.size;
+		segment.close();
+		if (!segment.path.delete())
+			logger.warn("Failed to delete " + segment.path);
+		int n = 0;
+		for (int i = 0; i < size; i++)
+			if ((positions[i] >>> 32) != segment.number) {
+				times[n] = times[i];
+				positions[n] = positions[i];
+				n++;
+			}
+		size = n;
+		for (Iterator<Long> i = eventIds.values().iterator(); i.hasNext();)
+			if ((i.next() >>> 32) == segment.number)
+				i.remove();
+	}
+
+	private Segment roll() throws IOException {
+		final long number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		final Segment segment = new Segment(new File(directory, String.format("%020d", number) + SEGMENT_SUFFIX),
+				number);
+		segments.put(number, segment);
+		return segment;
+	}
+
+	/**
+	 * Write a batch of events to the latest segment.
+	 *
+	 * @return the channel to force
+	 */
+	private synchronized FileChannel write(List<Pending> batch) throws IOException {
+		int length = 0;
+		for (Pending p : batch)
+			length += HEADER_SIZE + p.body.length;
+		Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+		if ((segment == null) || ((segment.size > 0) && ((segment.size + length) > segmentSize))) {
+			if (segment != null)
+				segment.channel.force(false);
+			segment = roll();
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		long offset = segment.size;
+		for (Pending p : batch) {
+			buffer.putInt(p.body.length);
+			buffer.putLong(p.time);
+			buffer.put((byte) 0);
+			buffer.put(p.body);
+			addIndex(p.time, (segment.number << 32) | offset, p.eventId);
+			segment.newestTime = Math.max(segment.newestTime, p.time);
+			offset += HEADER_SIZE + p.body.length;
+		}
+		buffer.flip();
+		while (buffer.hasRemaining())
+			segment.channel.write(buffer, segment.size + buffer.position());
+		segment.size += length;
+		totalSize += length;
+		applyRetention();
+		return segment.channel;
+	}
+
+	/**
+	 * The loop of the writer thread: write all the events that have arrived,
+	 * then force them to the disk at once.
+	 */
+	private void writeLoop() {
+		final List<Pending> batch = new ArrayList<Pending>();
+		while (!closed || !pending.isEmpty())
+			try {
+				final Pending first = pending.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch.add(first);
+				pending.drainTo(batch, MAX_BATCH - 1);
+				write(batch).force(false);
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				logger.error("Failed to write " + batch.size() + " events to the journal in " + directory, e);
+			} finally {
+				synchronized (this) {
+					// Failed events are lost, do not wait for them either
+					written += batch.size();
+					notifyAll();
+				}
+				batch.clear();
+			}
+	}
+}
@@ -0,0 +1,217 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DataSource}, which replays the updates recorded in a text file.
+ * <p>
+ * Each line of the file contains one update as comma separated fields:
+ *
+ * <pre>
+ * time,handle,value[,status]
+ * </pre>
+ *
+ * where time is in milliseconds (from any origin) and the optional status
+ * is the status code bits (for example 0x80000000), Good by default. The
+ * lines must be in time order; empty lines and lines starting with '#' are
+ * skipped. The updates with the same time are pushed to the queue as one
+ * batch and they get the same source timestamp, which is the time of the
+ * replay.
+ */
+public class FileDataSource implements DataSource {
+	private static final int GOOD = StatusCode.GOOD.getValueAsIntBits();
+	private static final Logger logger = LoggerFactory.getLogger(FileDataSource.class);
+
+	private int batchSize = 1024;
+	private final File file;
+	private boolean loop = false;
+	private double speed = 1.0;
+	private volatile Thread thread;
+
+	/**
+	 * @param file
+	 *            the file to replay
+	 */
+	public FileDataSource(File file) {
+		super();
+		this.file = file;
+	}
+
+	/**
+	 * @return the maximum number of updates pushed to the queue at once
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return the file to replay
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the replay speed relative to the recorded times
+	 */
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * @return true, if the file is replayed again from the beginning, when
+	 *         the end is reached
+	 */
+	public boolean isLoop() {
+		return loop;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the maximum number of updates pushed to the queue at once
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be a positive value");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param loop
+	 *            true, if the file is replayed again from the beginning, when
+	 *            the end is reached
+	 */
+	public void setLoop(boolean loop) {
+		this.loop = loop;
+	}
+
+	/**
+	 * @param speed
+	 *            the replay speed relative to the recorded times, for
+	 *            example 2.0 to replay twice as fast, or 0 to replay as fast
+	 *            as possible
+	 */
+	public void setSpeed(double speed) {
+		if (speed < 0)
+			throw new IllegalArgumentException("speed must not be negative");
+		this.speed = speed;
+	}
+
+	@Override
+	public synchronized void start(final DataUpdateQueue queue) throws IOException {
+		if (thread != null)
+			throw new IllegalStateException("Already started");
+		if (!file.canRead())
+			throw new IOException("Cannot read " + file);
+		final Thread t = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					do
+						replay(queue);
+					while (loop && (thread == Thread.currentThread()));
+				} catch (InterruptedException e) {
+					// stopped
+				} catch (Exception e) {
+					logger.error("Replay of " + file + " failed", e);
+				}
+			}
+		}, "FileDataSource " + file.getName());
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		final Thread t = thread;
+		thread = null;
+		if (t != null)
+			t.interrupt();
+	}
+
+	private void replay(DataUpdateQueue queue) throws IOException, InterruptedException {
+		final int[] handles = new int[batchSize];
+		final double[] values = new double[batchSize];
+		final int[] statuses = new int[batchSize];
+		final long[] timestamps = new long[batchSize];
+		final long start = System.currentTimeMillis();
+		long firstTime = Long.MIN_VALUE;
+		long batchTime = 0;
+		long timestamp = 0;
+		int count = 0;
+		int lineNumber = 0;
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if ((line.length() == 0) || line.startsWith("#"))
+					continue;
+				final String[] fields = line.split(",");
+				if ((fields.length < 3) || (fields.length > 4))
+					throw new IOException(file + ":" + lineNumber + ": invalid line: " + line);
+				final long time;
+				final int handle;
+				final double value;
+				final int status;
+				try {
+					time = Long.parseLong(fields[0].trim());
+					handle = Integer.parseInt(fields[1].trim());
+					value = Double.parseDouble(fields[2].trim());
+					status = fields.length > 3 ? Long.decode(fields[3].trim()).intValue() : GOOD;
+				} catch (NumberFormatException e) {
+					throw new IOException(file + ":" + lineNumber + ": invalid line: " + line, e);
+				}
+				if (firstTime == Long.MIN_VALUE)
+					firstTime = time;
+				if ((count > 0) && ((time != batchTime) || (count == batchSize))) {
+					queue.put(count, handles, values, statuses, timestamps);
+					count = 0;
+				}
+				if (count == 0) {
+					batchTime = time;
+					waitUntil(start, time - firstTime);
+					timestamp = DateTime.currentTime().getValue();
+				}
+				handles[count] = handle;
+				values[count] = value;
+				statuses[count] = status;
+				timestamps[count] = timestamp;
+				count++;
+			}
+			if (count > 0)
+				queue.put(count, handles, values, statuses, timestamps);
+		} finally {
+			reader.close();
+		}
+		logger.debug("Replayed {} lines of {} in {} ms", lineNumber, file, System.currentTimeMillis() - start);
+	}
+
+	private void waitUntil(long start, long offset) throws InterruptedException {
+		if (thread != Thread.currentThread())
+			throw new InterruptedException();
+		if (speed == 0)
+			return;
+		final long delay = start + (long) (offset / speed) - System.currentTimeMillis();
+		if (delay > 0)
+			Thread.sleep(delay);
+	}
+}
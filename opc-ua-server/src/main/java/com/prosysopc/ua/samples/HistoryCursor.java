@@ -0,0 +1,65 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+/**
+ * A continuation point of a history read, which defines where the next page
+ * continues from.
+ * <p>
+ * The cursor does not refer to any server side state: the next page seeks
+ * directly to the timestamp of the last returned entry and skips the entries
+ * at that timestamp that were already returned. The generation of the history
+ * is used to detect deletes that may have happened between the pages.
+ */
+final class HistoryCursor {
+	private final long generation;
+	private final int seq;
+	private final long time;
+
+	/**
+	 * @param time
+	 *            the timestamp of the last returned entry, in DateTime ticks
+	 * @param seq
+	 *            the number of entries at that timestamp that were already
+	 *            processed
+	 * @param generation
+	 *            the generation of the history, when the page was read
+	 */
+	HistoryCursor(long time, int seq, long generation) {
+		super();
+		this.time = time;
+		this.seq = seq;
+		this.generation = generation;
+	}
+
+	/**
+	 * @return the generation of the history, when the page was read
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return the number of entries at the timestamp that were already
+	 *         processed
+	 */
+	public int getSeq() {
+		return seq;
+	}
+
+	/**
+	 * @return the timestamp of the last returned entry
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	@Override
+	public String toString() {
+		return "HistoryCursor [time=" + time + ", seq=" + seq + ", generation=" + generation + "]";
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.io.IOException;
+
+/**
+ * A storage engine for variable history, which can be plugged into
+ * {@link MyHistorian}.
+ * <p>
+ * The storage keeps the samples of several variables. Each variable is
+ * identified by a node index, which is assigned by the storage. The timestamps
+ * are DateTime ticks (see
+ * {@link org.opcfoundation.ua.builtintypes.DateTime#getValue()}).
+ */
+interface HistoryStorage {
+
+	/**
+	 * Add a new sample for a variable.
+	 *
+	 * @param nodeIndex
+	 *            the index of the variable
+	 * @param time
+	 *            the timestamp of the sample
+	 * @param value
+	 *            the value of the sample
+	 * @param status
+	 *            the status code bits of the sample
+	 * @throws IOException
+	 *             if the sample cannot be stored
+	 */
+	void append(int nodeIndex, long time, double value, int status) throws IOException;
+
+	/**
+	 * Close the storage and release its resources.
+	 */
+	void close();
+
+	/**
+	 * Delete the samples of a variable at the given time.
+	 *
+	 * @param nodeIndex
+	 *            the index of the variable
+	 * @param time
+	 *            the timestamp of the samples to delete
+	 * @return the number of samples deleted
+	 */
+	int deleteAtTime(int nodeIndex, long time);
+
+	/**
+	 * Delete the samples of a variable between startTime (inclusive) and
+	 * endTime (exclusive).
+	 *
+	 * @param nodeIndex
+	 *            the index of the variable
+	 * @param startTime
+	 *            the start of the interval
+	 * @param endTime
+	 *            the end of the interval
+	 * @return the number of samples deleted
+	 */
+	int deleteRaw(int nodeIndex, long startTime, long endTime);
+
+	/**
+	 * Find the last sample at or before the given time.
+	 *
+	 * @param nodeIndex
+	 *            the index of the variable
+	 * @param time
+	 *            the requested time
+	 * @param visitor
+	 *            receives the sample, if one is found
+	 * @return true if a sample was found
+	 */
+	boolean findAtOrBefore(int nodeIndex, long time, SampleVisitor visitor);
+
+	/**
+	 * Get the index of a variable, registering it to the storage, if
+	 * necessary. The index remains the same, when the storage is opened again.
+	 *
+	 * @param nodeKey
+	 *            a unique, persistent key of the variable, e.g. the NodeId
+	 *            string of it
+	 * @return the index of the variable
+	 * @throws IOException
+	 *             if the registration cannot be stored
+	 */
+	int getNodeIndex(String nodeKey) throws IOException;
+
+	/**
+	 * Read the samples of a variable between the times, in time order.
+	 *
+	 * @param nodeIndex
+	 *            the index of the variable
+	 * @param startTime
+	 *            the start of the interval
+	 * @param endTime
+	 *            the end of the interval
+	 * @param includeBounds
+	 *            whether samples exactly at startTime and endTime are included
+	 * @param visitor
+	 *            receives the samples
+	 */
+	void read(int nodeIndex, long startTime, long endTime, boolean includeBounds, SampleVisitor visitor);
+
+	/**
+	 * Read the samples of a variable at or before the given time, starting
+	 * from the latest one and going backwards in time.
+	 *
+	 * @param nodeIndex
+	 *            the index of the variable
+	 * @param endTime
+	 *            the end of the interval
+	 * @param includeBounds
+	 *            whether samples exactly at endTime are included
+	 * @param visitor
+	 *            receives the samples
+	 */
+	void readReverse(int nodeIndex, long endTime, boolean includeBounds, SampleVisitor visitor);
+}
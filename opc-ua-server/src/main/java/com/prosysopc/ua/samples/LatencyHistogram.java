@@ -0,0 +1,131 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with exponential buckets.
+ * <p>
+ * The upper bound of bucket i is 2^i microseconds (1024 ns, to be exact),
+ * so the percentiles are accurate to a factor of two. Recording a duration
+ * only increments a few atomic counters, so the histogram can be shared by
+ * any number of threads without locking.
+ */
+public class LatencyHistogram {
+	// The last bucket covers all durations longer than about 4.5 minutes
+	private static final int BUCKETS = 30;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+
+	/**
+	 * @param bucket
+	 *            the index of the bucket
+	 * @return the number of durations in the bucket
+	 */
+	public long getBucketCount(int bucket) {
+		return buckets.get(bucket);
+	}
+
+	/**
+	 * @return the number of buckets
+	 */
+	public int getBuckets() {
+		return BUCKETS;
+	}
+
+	/**
+	 * @param bucket
+	 *            the index of the bucket
+	 * @return the upper bound of the durations in the bucket in nanoseconds,
+	 *         or Long.MAX_VALUE for the last bucket
+	 */
+	public long getBucketUpperBound(int bucket) {
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1024L << bucket;
+	}
+
+	/**
+	 * @return the number of recorded durations
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the longest recorded duration in nanoseconds
+	 */
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return the average duration in nanoseconds, or 0 if none are recorded
+	 */
+	public long getMeanNanos() {
+		final long n = count.get();
+		return n == 0 ? 0 : totalNanos.get() / n;
+	}
+
+	/**
+	 * Estimate a percentile of the durations.
+	 *
+	 * @param percentile
+	 *            the percentile, from 0 to 100
+	 * @return the upper bound of the bucket, which contains the percentile,
+	 *         but at most the longest recorded duration, in nanoseconds
+	 */
+	public long getPercentileNanos(double percentile) {
+		final long n = count.get();
+		if (n == 0)
+			return 0;
+		final long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+		long cumulative = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			cumulative += buckets.get(i);
+			if (cumulative >= rank)
+				return Math.min(getBucketUpperBound(i), maxNanos.get());
+		}
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return the sum of the recorded durations in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	/**
+	 * Record a duration.
+	 *
+	 * @param nanos
+	 *            the duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		final int bucket = nanos == 0 ? 0
+				: Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros((nanos - 1) >> 10));
+		buckets.incrementAndGet(bucket);
+		totalNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while ((nanos > max) && !maxNanos.compareAndSet(max, nanos))
+			max = maxNanos.get();
+		count.incrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms", getCount(),
+				getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6, getPercentileNanos(99) / 1e6,
+				getMaxNanos() / 1e6);
+	}
+}
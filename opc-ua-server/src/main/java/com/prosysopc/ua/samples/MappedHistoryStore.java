@@ -0,0 +1,655 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link HistoryStorage} that keeps the history in memory-mapped segment
+ * files.
+ * <p>
+ * One store is used per namespace. It appends the samples of all its variables
+ * to the current segment file as fixed-width records of node index, timestamp,
+ * value and status. A new segment is started when the segment duration has
+ * passed or the segment is full. Old segments are removed according to the
+ * retention time.
+ * <p>
+ * The records of each variable are linked together inside a segment, and a
+ * sparse time index of every {@value #SPARSE_INDEX_INTERVAL}th record of each
+ * variable is kept in memory. A read therefore seeks directly to the requested
+ * time and only touches the records of the requested variable. The index is
+ * rebuilt from the files when the store is opened.
+ * <p>
+ * Only the latest segment and the {@value #MAPPED_SEGMENTS} most recently
+ * read segments are kept open and mapped; the other segments are opened on
+ * demand, so that a long retention does not use a file descriptor and a
+ * mapping per segment.
+ * <p>
+ * The segment files are named by a sequence number. The samples of each
+ * variable must arrive in time order, so that the records of a variable are
+ * in time order through the segments, even though the segments may overlap
+ * in time; an older sample is rejected. Deleted samples are only marked as
+ * deleted in the records.
+ */
+class MappedHistoryStore implements HistoryStorage {
+
+	/**
+	 * The in-memory index of the records of one variable in a segment.
+	 */
+	private static class NodeIndex {
+		int count;
+		int first = -1;
+		int last = -1;
+		long maxTime = Long.MIN_VALUE;
+		long minTime = Long.MAX_VALUE;
+		int[] positions = new int[4];
+		int size;
+		long[] times = new long[4];
+
+		void add(int position, long time) {
+			if (first < 0)
+				first = position;
+			minTime = Math.min(minTime, time);
+			maxTime = Math.max(maxTime, time);
+			if ((count % SPARSE_INDEX_INTERVAL) == 0) {
+				if (size == times.length) {
+					times = Arrays.copyOf(times, size * 2);
+					positions = Arrays.copyOf(positions, size * 2);
+				}
+				times[size] = time;
+				positions[size] = position;
+				size++;
+			}
+			last = position;
+			count++;
+		}
+
+		/**
+		 * @return the index entry of the last sparse index entry at or before
+		 *         the time, or -1 if there is none
+		 */
+		int floor(long time) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				if (times[mid] <= time)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low - 1;
+		}
+
+		/**
+		 * @return the position from which to start walking forward to find
+		 *         the records at or after the time
+		 */
+		int seek(long time) {
+			// Find the last index entry before the time
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				if (times[mid] < time)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low == 0 ? first : positions[low - 1];
+		}
+	}
+
+	/**
+	 * A segment file, mapped to memory on demand. The index of the segment is
+	 * kept in memory also while it is not mapped.
+	 */
+	private static class Segment {
+		// The file and its mapping, or null if not mapped
+		MappedByteBuffer buffer;
+		final int capacity;
+		FileChannel channel;
+		int count;
+		final File file;
+		long maxTime = Long.MIN_VALUE;
+		long minTime = Long.MAX_VALUE;
+		final Map<Integer, NodeIndex> nodes = new HashMap<Integer, NodeIndex>();
+		final long startTime;
+
+		/**
+		 * Open an existing segment file.
+		 */
+		Segment(File file) throws IOException {
+			this.file = file;
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt(0) != MAGIC)
+				throw new IOException("Not a history segment file: " + file);
+			if (header.getInt(4) != VERSION)
+				throw new IOException("Unsupported history segment version " + header.getInt(4) + ": " + file);
+			startTime = header.getLong(8);
+			capacity = header.getInt(20);
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + ((long) capacity * RECORD_SIZE));
+			load();
+		}
+
+		/**
+		 * Create a new segment file.
+		 *
+		 * @throws IOException
+		 *             if the file already exists
+		 */
+		Segment(File file, long startTime, int capacity) throws IOException {
+			if (!file.createNewFile())
+				throw new IOException("History segment already exists: " + file);
+			this.file = file;
+			this.startTime = startTime;
+			this.capacity = capacity;
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + ((long) capacity * RECORD_SIZE));
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putLong(8, startTime);
+			buffer.putInt(16, 0);
+			buffer.putInt(20, capacity);
+			buffer.putLong(24, minTime);
+			buffer.putLong(32, maxTime);
+		}
+
+		void append(int nodeIndex, long time, double value, int status) {
+			final int position = count;
+			final int offset = offset(position);
+			buffer.putInt(offset, nodeIndex);
+			buffer.putInt(offset + 4, -1);
+			buffer.putLong(offset + 8, time);
+			buffer.putDouble(offset + 16, value);
+			buffer.putInt(offset + 24, status);
+			buffer.putInt(offset + 28, 0);
+			NodeIndex index = nodes.get(nodeIndex);
+			if (index == null) {
+				index = new NodeIndex();
+				nodes.put(nodeIndex, index);
+			} else
+				// Link the previous record of the node to this one
+				buffer.putInt(offset(index.last) + 4, position);
+			index.add(position, time);
+			if (time < minTime) {
+				minTime = time;
+				buffer.putLong(24, time);
+			}
+			if (time > maxTime) {
+				maxTime = time;
+				buffer.putLong(32, time);
+			}
+			// The record is valid only after the count is updated
+			count++;
+			buffer.putInt(16, count);
+		}
+
+		boolean isDeleted(int position) {
+			return (buffer.getInt(offset(position) + 28) & FLAG_DELETED) != 0;
+		}
+
+		boolean isFull() {
+			return count >= capacity;
+		}
+
+		void markDeleted(int position) {
+			final int offset = offset(position) + 28;
+			buffer.putInt(offset, buffer.getInt(offset) | FLAG_DELETED);
+		}
+
+		/**
+		 * Open and map the file, if it is not mapped.
+		 */
+		void map() throws IOException {
+			if (buffer != null)
+				return;
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			try {
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + ((long) capacity * RECORD_SIZE));
+			} catch (IOException e) {
+				channel.close();
+				channel = null;
+				throw e;
+			}
+		}
+
+		int next(int position) {
+			final int next = buffer.getInt(offset(position) + 4);
+			// A link beyond count may remain from an interrupted append
+			return next < count ? next : -1;
+		}
+
+		int status(int position) {
+			return buffer.getInt(offset(position) + 24);
+		}
+
+		long time(int position) {
+			return buffer.getLong(offset(position) + 8);
+		}
+
+		/**
+		 * Write the changes and close the file. The mapping itself is
+		 * released when the buffer is garbage collected.
+		 */
+		void unmap() {
+			if (buffer == null)
+				return;
+			buffer.force();
+			buffer = null;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close segment " + file, e);
+			}
+			channel = null;
+		}
+
+		double value(int position) {
+			return buffer.getDouble(offset(position) + 16);
+		}
+
+		private void load() {
+			count = Math.min(buffer.getInt(16), capacity);
+			for (int position = 0; position < count; position++) {
+				final int offset = offset(position);
+				final int nodeIndex = buffer.getInt(offset);
+				final long time = buffer.getLong(offset + 8);
+				NodeIndex index = nodes.get(nodeIndex);
+				if (index == null) {
+					index = new NodeIndex();
+					nodes.put(nodeIndex, index);
+				}
+				index.add(position, time);
+				minTime = Math.min(minTime, time);
+				maxTime = Math.max(maxTime, time);
+			}
+			// Terminate the chains, in case the last append was interrupted
+			for (NodeIndex index : nodes.values())
+				buffer.putInt(offset(index.last) + 4, -1);
+		}
+
+		private int offset(int position) {
+			return HEADER_SIZE + (position * RECORD_SIZE);
+		}
+	}
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int FLAG_DELETED = 1;
+	private static final int HEADER_SIZE = 48;
+	private static final Logger logger = LoggerFactory.getLogger(MappedHistoryStore.class);
+	private static final int MAGIC = 0x55414853; // "UAHS"
+	private static final int MAPPED_SEGMENTS = 8;
+	private static final int MAX_SEGMENT_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / 32;
+	private static final String NODES_FILE = "nodes.txt";
+	private static final int RECORD_SIZE = 32;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final int SPARSE_INDEX_INTERVAL = 64;
+	private static final long TICKS_PER_MILLISECOND = 10000;
+	private static final int VERSION = 1;
+
+	private final File directory;
+	// The recently used segments that are kept mapped, besides the latest
+	// one, the least recently used first
+	private final Map<Segment, Boolean> mappedSegments = new LinkedHashMap<Segment, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Segment, Boolean> eldest) {
+			if (size() <= MAPPED_SEGMENTS)
+				return false;
+			eldest.getKey().unmap();
+			return true;
+		}
+	};
+	private final Map<String, Integer> nodeIndexes = new HashMap<String, Integer>();
+	// The time of the latest sample of each node
+	private final Map<Integer, Long> lastTimes = new HashMap<Integer, Long>();
+	// The sequence number of the next segment file
+	private long nextSequence;
+	private Writer nodesWriter;
+	private long retentionTime = 14L * 24 * 60 * 60 * 1000;
+	private int segmentCapacity = 1 << 20;
+	private long segmentDuration = 60 * 60 * 1000;
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	/**
+	 * Open a store in the directory, creating it if necessary.
+	 *
+	 * @param directory
+	 *            the directory for the segment files
+	 * @throws IOException
+	 *             if the existing files cannot be opened
+	 */
+	public MappedHistoryStore(File directory) throws IOException {
+		super();
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create history directory " + directory);
+		loadNodes();
+		loadSegments();
+	}
+
+	@Override
+	public synchronized void append(int nodeIndex, long time, double value, int status) throws IOException {
+		final Long lastTime = lastTimes.get(nodeIndex);
+		if ((lastTime != null) && (time < lastTime))
+			throw new IOException("Sample older than the latest stored sample of the node: " + new DateTime(time)
+					+ " < " + new DateTime(lastTime));
+		Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if ((segment == null) || segment.isFull()
+				|| (time >= (segment.startTime + (segmentDuration * TICKS_PER_MILLISECOND))))
+			segment = roll(time);
+		segment.append(nodeIndex, time, value, status);
+		lastTimes.put(nodeIndex, time);
+	}
+
+	@Override
+	public synchronized void close() {
+		for (Segment segment : segments)
+			segment.unmap();
+		segments.clear();
+		mappedSegments.clear();
+		if (nodesWriter != null)
+			try {
+				nodesWriter.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close " + NODES_FILE, e);
+			}
+	}
+
+	@Override
+	public synchronized int deleteAtTime(int nodeIndex, long time) {
+		return delete(nodeIndex, time, time, true);
+	}
+
+	@Override
+	public synchronized int deleteRaw(int nodeIndex, long startTime, long endTime) {
+		return delete(nodeIndex, startTime, endTime, false);
+	}
+
+	@Override
+	public synchronized boolean findAtOrBefore(int nodeIndex, long time, SampleVisitor visitor) {
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			final Segment segment = segments.get(i);
+			final NodeIndex index = segment.nodes.get(nodeIndex);
+			if ((index == null) || (index.minTime > time) || !map(segment))
+				continue;
+			int found = -1;
+			for (int p = index.seek(time); p >= 0; p = segment.next(p)) {
+				if (segment.time(p) > time)
+					break;
+				if (!segment.isDeleted(p))
+					found = p;
+			}
+			if (found >= 0) {
+				visitor.visit(segment.time(found), segment.value(found), segment.status(found));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized int getNodeIndex(String nodeKey) throws IOException {
+		Integer index = nodeIndexes.get(nodeKey);
+		if (index == null) {
+			index = nodeIndexes.size();
+			nodesWriter.write(index + "=" + nodeKey + "\n");
+			nodesWriter.flush();
+			nodeIndexes.put(nodeKey, index);
+		}
+		return index;
+	}
+
+	/**
+	 * @return the time (in milliseconds) for which the segments are kept
+	 */
+	public synchronized long getRetentionTime() {
+		return retentionTime;
+	}
+
+	/**
+	 * @return the maximum number of records in one segment
+	 */
+	public synchronized int getSegmentCapacity() {
+		return segmentCapacity;
+	}
+
+	/**
+	 * @return the time (in milliseconds) covered by one segment
+	 */
+	public synchronized long getSegmentDuration() {
+		return segmentDuration;
+	}
+
+	@Override
+	public synchronized void read(int nodeIndex, long startTime, long endTime, boolean includeBounds,
+			SampleVisitor visitor) {
+		// The segments overlap, but the records of one node are in time order
+		for (Segment segment : segments) {
+			final NodeIndex index = segment.nodes.get(nodeIndex);
+			if ((index == null) || (index.maxTime < startTime))
+				continue;
+			if (index.minTime > endTime)
+				break;
+			if (!map(segment))
+				continue;
+			for (int p = index.seek(startTime); p >= 0; p = segment.next(p)) {
+				final long t = segment.time(p);
+				if ((t < startTime) || (!includeBounds && (t == startTime)))
+					continue;
+				if ((t > endTime) || (!includeBounds && (t == endTime)))
+					return;
+				if (!segment.isDeleted(p) && !visitor.visit(t, segment.value(p), segment.status(p)))
+					return;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void readReverse(int nodeIndex, long endTime, boolean includeBounds, SampleVisitor visitor) {
+		final int[] positions = new int[SPARSE_INDEX_INTERVAL];
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			final Segment segment = segments.get(i);
+			final NodeIndex index = segment.nodes.get(nodeIndex);
+			if ((index == null) || (index.minTime > endTime) || !map(segment))
+				continue;
+			// The links only go forward, so walk the records between two
+			// sparse index entries forward and visit them backward
+			for (int k = index.floor(endTime); k >= 0; k--) {
+				int n = 0;
+				for (int p = index.positions[k]; (p >= 0) && (n < SPARSE_INDEX_INTERVAL); p = segment.next(p)) {
+					final long t = segment.time(p);
+					if ((t > endTime) || (!includeBounds && (t == endTime)))
+						break;
+					positions[n++] = p;
+				}
+				for (int j = n - 1; j >= 0; j--) {
+					final int p = positions[j];
+					if (!segment.isDeleted(p) && !visitor.visit(segment.time(p), segment.value(p), segment.status(p)))
+						return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param retentionTime
+	 *            the time (in milliseconds) for which the segments are kept
+	 */
+	public synchronized void setRetentionTime(long retentionTime) {
+		this.retentionTime = retentionTime;
+	}
+
+	/**
+	 * @param segmentCapacity
+	 *            the maximum number of records in one segment. Affects new
+	 *            segments only.
+	 */
+	public synchronized void setSegmentCapacity(int segmentCapacity) {
+		if ((segmentCapacity <= 0) || (segmentCapacity > MAX_SEGMENT_CAPACITY))
+			throw new IllegalArgumentException("segmentCapacity must be between 1 and " + MAX_SEGMENT_CAPACITY);
+		this.segmentCapacity = segmentCapacity;
+	}
+
+	/**
+	 * @param segmentDuration
+	 *            the time (in milliseconds) covered by one segment
+	 */
+	public synchronized void setSegmentDuration(long segmentDuration) {
+		if (segmentDuration <= 0)
+			throw new IllegalArgumentException("segmentDuration must be a positive value");
+		this.segmentDuration = segmentDuration;
+	}
+
+	private int delete(int nodeIndex, long startTime, long endTime, boolean includeEnd) {
+		int deleted = 0;
+		for (Segment segment : segments) {
+			final NodeIndex index = segment.nodes.get(nodeIndex);
+			if ((index == null) || (index.maxTime < startTime))
+				continue;
+			if (index.minTime > endTime)
+				break;
+			if (!map(segment))
+				continue;
+			for (int p = index.seek(startTime); p >= 0; p = segment.next(p)) {
+				final long t = segment.time(p);
+				if (t < startTime)
+					continue;
+				if ((t > endTime) || (!includeEnd && (t == endTime)))
+					break;
+				if (!segment.isDeleted(p)) {
+					segment.markDeleted(p);
+					deleted++;
+				}
+			}
+		}
+		return deleted;
+	}
+
+	private void loadNodes() throws IOException {
+		final File file = new File(directory, NODES_FILE);
+		if (file.exists()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					final int i = line.indexOf('=');
+					if (i > 0)
+						nodeIndexes.put(line.substring(i + 1), Integer.valueOf(line.substring(0, i)));
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		nodesWriter = new OutputStreamWriter(new FileOutputStream(file, true), CHARSET);
+	}
+
+	private void loadSegments() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		// The file names are zero-padded sequence numbers, so they sort in
+		// the order of creation
+		Arrays.sort(files);
+		for (File file : files) {
+			final String name = file.getName();
+			if (!name.endsWith(SEGMENT_SUFFIX))
+				continue;
+			final long sequence;
+			try {
+				sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				logger.warn("Ignoring history segment with an invalid name: {}", file);
+				continue;
+			}
+			final Segment segment = new Segment(file);
+			// Only the latest segment is kept mapped
+			if (!segments.isEmpty())
+				segments.get(segments.size() - 1).unmap();
+			segments.add(segment);
+			nextSequence = Math.max(nextSequence, sequence + 1);
+			for (Map.Entry<Integer, NodeIndex> e : segment.nodes.entrySet()) {
+				final Long lastTime = lastTimes.get(e.getKey());
+				if ((lastTime == null) || (e.getValue().maxTime > lastTime))
+					lastTimes.put(e.getKey(), e.getValue().maxTime);
+			}
+		}
+		logger.info("Opened history store {}: {} segments", directory, segments.size());
+	}
+
+	/**
+	 * Map a segment for reading, keeping it in the recently used segments.
+	 *
+	 * @return false if the segment cannot be mapped
+	 */
+	private boolean map(Segment segment) {
+		if (segment == segments.get(segments.size() - 1))
+			// The latest segment is always mapped
+			return true;
+		try {
+			segment.map();
+		} catch (IOException e) {
+			logger.error("Failed to map history segment " + segment.file, e);
+			return false;
+		}
+		mappedSegments.put(segment, Boolean.TRUE);
+		return true;
+	}
+
+	/**
+	 * Start a new segment and remove the segments that are older than the
+	 * retention time.
+	 */
+	private Segment roll(long time) throws IOException {
+		final long limit = time - (retentionTime * TICKS_PER_MILLISECOND);
+		while (!segments.isEmpty() && (segments.get(0).maxTime < limit)) {
+			Segment old = segments.remove(0);
+			mappedSegments.remove(old);
+			old.unmap();
+			if (!old.file.delete())
+				logger.warn("Failed to delete expired history segment {}", old.file);
+		}
+		File file;
+		do
+			file = new File(directory, String.format("%020d%s", nextSequence++, SEGMENT_SUFFIX));
+		while (file.exists());
+		Segment segment = new Segment(file, time, segmentCapacity);
+		if (!segments.isEmpty()) {
+			// The previous segment stays mapped as a recently used one
+			final Segment previous = segments.get(segments.size() - 1);
+			previous.buffer.force();
+			mappedSegments.put(previous, Boolean.TRUE);
+		}
+		segments.add(segment);
+		logger.debug("New history segment {}", file);
+		return segment;
+	}
+}
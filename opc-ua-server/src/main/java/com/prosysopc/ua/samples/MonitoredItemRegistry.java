@@ -0,0 +1,193 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+
+import com.prosysopc.ua.server.MonitoredDataItem;
+
+/**
+ * The monitored data items of a node manager, by the handles of the items
+ * they monitor.
+ * <p>
+ * The subscribers of each item are kept in append-only chunks, so adding a
+ * subscriber never copies the existing ones. A removed subscriber leaves a
+ * tombstone in its slot, and the slots are compacted once the tombstones
+ * outnumber the live subscribers. The updates are serialized by a lock
+ * stripe per handle, while the notifications read the subscribers without
+ * locking.
+ */
+class MonitoredItemRegistry {
+	/**
+	 * The subscribers of one item. A compaction creates a new instance, so
+	 * that the readers of the old one are never disturbed.
+	 */
+	private static final class Subscribers {
+		// Written before size, so that a reader sees all the chunks up to size
+		private volatile MonitoredDataItem[][] chunks = new MonitoredDataItem[1][];
+		private int live;
+		// The number of used slots, including the tombstones
+		private volatile int size;
+		private final Map<MonitoredDataItem, Integer> slots = new IdentityHashMap<MonitoredDataItem, Integer>();
+
+		void add(MonitoredDataItem item) {
+			if (slots.containsKey(item))
+				return;
+			final int chunk = size / CHUNK_SIZE;
+			MonitoredDataItem[][] c = chunks;
+			if (chunk == c.length)
+				c = Arrays.copyOf(c, c.length * 2);
+			if (c[chunk] == null)
+				c[chunk] = new MonitoredDataItem[CHUNK_SIZE];
+			c[chunk][size % CHUNK_SIZE] = item;
+			chunks = c;
+			slots.put(item, size);
+			live++;
+			size++;
+		}
+
+		void notifyDataChange(DataValue dataValue) {
+			final int n = size;
+			final MonitoredDataItem[][] c = chunks;
+			for (int i = 0; i < n; i++) {
+				final MonitoredDataItem item = c[i / CHUNK_SIZE][i % CHUNK_SIZE];
+				if (item != null)
+					item.notifyDataChange(dataValue);
+			}
+		}
+
+		boolean remove(MonitoredDataItem item) {
+			final Integer slot = slots.remove(item);
+			if (slot == null)
+				return false;
+			chunks[slot / CHUNK_SIZE][slot % CHUNK_SIZE] = null;
+			live--;
+			return true;
+		}
+
+		void toList(List<MonitoredDataItem> list) {
+			final int n = size;
+			final MonitoredDataItem[][] c = chunks;
+			for (int i = 0; i < n; i++) {
+				final MonitoredDataItem item = c[i / CHUNK_SIZE][i % CHUNK_SIZE];
+				if (item != null)
+					list.add(item);
+			}
+		}
+	}
+
+	private static final int CHUNK_SIZE = 64;
+	private static final int STRIPES = 64;
+
+	private final AtomicReferenceArray<Subscribers> items;
+	private final Object[] locks = new Object[STRIPES];
+
+	/**
+	 * @param capacity
+	 *            the number of item handles
+	 */
+	public MonitoredItemRegistry(int capacity) {
+		super();
+		items = new AtomicReferenceArray<Subscribers>(capacity);
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new Object();
+	}
+
+	/**
+	 * Add a subscriber for an item. Adding the same subscriber again has no
+	 * effect.
+	 *
+	 * @param handle
+	 *            the handle of the item
+	 * @param item
+	 *            the monitored item
+	 */
+	public void add(int handle, MonitoredDataItem item) {
+		synchronized (locks[handle % STRIPES]) {
+			Subscribers subscribers = items.get(handle);
+			if (subscribers == null) {
+				subscribers = new Subscribers();
+				items.set(handle, subscribers);
+			}
+			subscribers.add(item);
+		}
+	}
+
+	/**
+	 * @param handle
+	 *            the handle of the item
+	 * @return the current subscribers of the item
+	 */
+	public List<MonitoredDataItem> getSubscribers(int handle) {
+		final List<MonitoredDataItem> result = new ArrayList<MonitoredDataItem>();
+		final Subscribers subscribers = items.get(handle);
+		if (subscribers != null)
+			subscribers.toList(result);
+		return result;
+	}
+
+	/**
+	 * @param handle
+	 *            the handle of the item
+	 * @return true, if the item has any subscribers
+	 */
+	public boolean isMonitored(int handle) {
+		return items.get(handle) != null;
+	}
+
+	/**
+	 * Send a data change notification to all subscribers of an item.
+	 *
+	 * @param handle
+	 *            the handle of the item
+	 * @param dataValue
+	 *            the new value, shared by all subscribers
+	 */
+	public void notifyDataChange(int handle, DataValue dataValue) {
+		final Subscribers subscribers = items.get(handle);
+		if (subscribers != null)
+			subscribers.notifyDataChange(dataValue);
+	}
+
+	/**
+	 * Remove a subscriber of an item.
+	 *
+	 * @param handle
+	 *            the handle of the item
+	 * @param item
+	 *            the monitored item
+	 * @return true, if the subscriber was found
+	 */
+	public boolean remove(int handle, MonitoredDataItem item) {
+		synchronized (locks[handle % STRIPES]) {
+			final Subscribers subscribers = items.get(handle);
+			if ((subscribers == null) || !subscribers.remove(item))
+				return false;
+			if (subscribers.live == 0)
+				items.set(handle, null);
+			else if ((subscribers.size - subscribers.live) > Math.max(CHUNK_SIZE, subscribers.live))
+				items.set(handle, compact(subscribers));
+			return true;
+		}
+	}
+
+	private Subscribers compact(Subscribers subscribers) {
+		final List<MonitoredDataItem> list = new ArrayList<MonitoredDataItem>(subscribers.live);
+		subscribers.toList(list);
+		final Subscribers result = new Subscribers();
+		for (MonitoredDataItem item : list)
+			result.add(item);
+		return result;
+	}
+}
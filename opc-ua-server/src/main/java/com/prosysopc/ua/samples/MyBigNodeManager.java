@@ -6,12 +6,18 @@
  */
 package com.prosysopc.ua.samples;
 
-import java.util.Collection;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import org.opcfoundation.ua.builtintypes.DataValue;
 import org.opcfoundation.ua.builtintypes.DateTime;
@@ -20,20 +26,26 @@ import org.opcfoundation.ua.builtintypes.LocalizedText;
 import org.opcfoundation.ua.builtintypes.NodeId;
 import org.opcfoundation.ua.builtintypes.QualifiedName;
 import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedByte;
 import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.UnsignedShort;
 import org.opcfoundation.ua.builtintypes.Variant;
 import org.opcfoundation.ua.common.ServiceResultException;
 import org.opcfoundation.ua.core.AccessLevel;
 import org.opcfoundation.ua.core.Attributes;
 import org.opcfoundation.ua.core.Identifiers;
+import org.opcfoundation.ua.core.MonitoringMode;
 import org.opcfoundation.ua.core.NodeClass;
+import org.opcfoundation.ua.core.ReadValueId;
 import org.opcfoundation.ua.core.StatusCodes;
 import org.opcfoundation.ua.core.TimestampsToReturn;
+import org.opcfoundation.ua.core.WriteValue;
 import org.opcfoundation.ua.utils.NumericRange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.prosysopc.ua.EventNotifierClass;
+import com.prosysopc.ua.ServiceException;
 import com.prosysopc.ua.StatusException;
 import com.prosysopc.ua.ValueRanks;
 import com.prosysopc.ua.nodes.UaNode;
@@ -54,20 +66,61 @@ import com.prosysopc.ua.server.UaServer;
  */
 public class MyBigNodeManager extends NodeManager {
 
+	/**
+	 * A view to the data of one item. The current value, status and timestamp
+	 * of each item are kept in primitive arrays of the node manager, addressed
+	 * by the handle of the item.
+	 */
 	public class DataItem {
 		private NodeId dataType = Identifiers.Double;
+		// The minimum change of the value to accept, or 0 to accept all
+		// changes
+		private volatile double deadband;
+		private final int handle;
 		private final String name;
-		private StatusCode status = new StatusCode(StatusCodes.Bad_WaitingForInitialData);
-		private DateTime timestamp;
-		private double value;
+		// The values of the NodeId, BrowseName and DisplayName attributes,
+		// created when first read
+		private volatile Variant[] nameAttributes;
+		// The references of the item, created when first browsed
+		private volatile UaReference[] references;
 
 		/**
 		 * @param name
-		 * @param value
+		 * @param handle
+		 *            the index of the item in the value arrays
 		 */
-		public DataItem(String name) {
+		public DataItem(String name, int handle) {
 			super();
 			this.name = name;
+			this.handle = handle;
+		}
+
+		/**
+		 * Get the value of a non-value attribute.
+		 *
+		 * @param attributeId
+		 *            the attribute ID
+		 * @return the value of the attribute, or null if the DataItems do not
+		 *         have it
+		 */
+		public Variant getAttribute(int attributeId) {
+			if (attributeId <= MAX_NAME_ATTRIBUTE) {
+				Variant[] attributes = nameAttributes;
+				if (attributes == null) {
+					// A concurrent read may create them, too, which is harmless
+					attributes = new Variant[MAX_NAME_ATTRIBUTE + 1];
+					attributes[Attributes.NodeId.intValue()] = new Variant(
+							new NodeId(getNamespaceIndex(), name));
+					attributes[Attributes.BrowseName.intValue()] = new Variant(
+							new QualifiedName(getNamespaceIndex(), name));
+					attributes[Attributes.DisplayName.intValue()] = new Variant(
+							new LocalizedText(name, LocalizedText.NO_LOCALE));
+					nameAttributes = attributes;
+				}
+				if (attributes[attributeId] != null)
+					return attributes[attributeId];
+			}
+			return dataItemAttributes[attributeId];
 		}
 
 		/**
@@ -78,13 +131,31 @@ public class MyBigNodeManager extends NodeManager {
 		}
 
 		/**
-		 *
+		 * Fill in the current value, status and timestamps of the item. The
+		 * ServerTimestamp is the time when the value was received from the
+		 * underlying system.
 		 */
 		public void getDataValue(DataValue dataValue) {
-			dataValue.setValue(new Variant(getValue()));
-			dataValue.setStatusCode(getStatus());
-			dataValue.setServerTimestamp(DateTime.currentTime());
-			dataValue.setSourceTimestamp(timestamp);
+			final DataValue current = getDataValue();
+			dataValue.setValue(current.getValue());
+			dataValue.setStatusCode(current.getStatusCode());
+			dataValue.setServerTimestamp(current.getServerTimestamp());
+			dataValue.setSourceTimestamp(current.getSourceTimestamp());
+		}
+
+		/**
+		 * @return the minimum change of the value that is accepted, or 0 if
+		 *         all changes are accepted
+		 */
+		public double getDeadband() {
+			return deadband;
+		}
+
+		/**
+		 * @return the handle of the item
+		 */
+		public int getHandle() {
+			return handle;
 		}
 
 		/**
@@ -94,11 +165,28 @@ public class MyBigNodeManager extends NodeManager {
 			return name;
 		}
 
+		/**
+		 * @return the references of the item, which must not be modified
+		 */
+		public UaReference[] getReferences() {
+			UaReference[] result = references;
+			if (result == null) {
+				final ExpandedNodeId dataItemId = new ExpandedNodeId(null, getNamespaceIndex(), name);
+				result = new UaReference[] {
+						// Inverse reference to the folder
+						new MyReference(getFolder(handle).nodeId, dataItemId, Identifiers.HasComponent),
+						// Type definition
+						new MyReference(dataItemId, DataItemType, Identifiers.HasTypeDefinition) };
+				references = result;
+			}
+			return result;
+		}
+
 		/**
 		 * @return the status
 		 */
 		public StatusCode getStatus() {
-			return status;
+			return getDataValue().getStatusCode();
 		}
 
 		/**
@@ -107,14 +195,29 @@ public class MyBigNodeManager extends NodeManager {
 		 * @return the timestamp
 		 */
 		public DateTime getTimestamp() {
-			return timestamp;
+			return getDataValue().getSourceTimestamp();
 		}
 
 		/**
 		 * @return the value
 		 */
 		public double getValue() {
-			return value;
+			return values[handle];
+		}
+
+		/**
+		 * Define an absolute deadband for the item: value changes that are
+		 * not bigger than the deadband are ignored, so they are not visible
+		 * to the readers and do not cause notifications. Status changes are
+		 * always accepted.
+		 *
+		 * @param deadband
+		 *            the minimum change to accept, or 0 to accept all changes
+		 */
+		public void setAbsoluteDeadband(double deadband) {
+			if (deadband < 0)
+				throw new IllegalArgumentException("deadband must not be negative");
+			this.deadband = deadband;
 		}
 
 		/**
@@ -125,12 +228,29 @@ public class MyBigNodeManager extends NodeManager {
 			this.dataType = dataType;
 		}
 
+		/**
+		 * Define a deadband for the item as a percentage of its engineering
+		 * units range.
+		 *
+		 * @param percent
+		 *            the minimum change to accept, in percent of the range
+		 * @param low
+		 *            the low limit of the range
+		 * @param high
+		 *            the high limit of the range
+		 * @see #setAbsoluteDeadband(double)
+		 */
+		public void setPercentDeadband(double percent, double low, double high) {
+			setAbsoluteDeadband((percent / 100) * Math.abs(high - low));
+		}
+
 		/**
 		 * @param value
 		 *            the value to set
+		 * @return true, if the value changed more than the deadband
 		 */
-		public void setValue(double value) {
-			setValue(value, StatusCode.GOOD);
+		public boolean setValue(double value) {
+			return setValue(value, StatusCode.GOOD);
 		}
 
 		/**
@@ -138,15 +258,160 @@ public class MyBigNodeManager extends NodeManager {
 		 *            the value to set
 		 * @param status
 		 *            the status to set
+		 * @return true, if the status changed or the value changed more than
+		 *         the deadband
+		 */
+		public boolean setValue(double value, StatusCode status) {
+			return setValue(value, status == null ? StatusCode.BAD.getValueAsIntBits() : status.getValueAsIntBits(),
+					DateTime.currentTime().getValue());
+		}
+
+		/**
+		 * The current value as a DataValue, which is shared by all the readers
+		 * and must not be modified. It is created once per change.
+		 */
+		synchronized DataValue getDataValue() {
+			DataValue dataValue = dataValues[handle];
+			if (dataValue == null) {
+				final int status = statuses[handle];
+				dataValue = new DataValue(new Variant(values[handle]),
+						status == StatusCode.GOOD.getValueAsIntBits() ? StatusCode.GOOD : new StatusCode(status));
+				if (timestamps[handle] != 0) {
+					final DateTime timestamp = new DateTime(timestamps[handle]);
+					dataValue.setSourceTimestamp(timestamp);
+					dataValue.setServerTimestamp(timestamp);
+				}
+				dataValues[handle] = dataValue;
+			}
+			return dataValue;
+		}
+
+		/**
+		 * @param value
+		 *            the value to set
+		 * @param status
+		 *            the status code bits
+		 * @param timestamp
+		 *            the time of the change, in DateTime ticks
+		 * @return true, if the status changed or the value changed more than
+		 *         the deadband
+		 */
+		synchronized boolean setValue(double value, int status, long timestamp) {
+			if (statuses[handle] == status) {
+				final double oldValue = values[handle];
+				// Compare the bits, so that NaN values do not cause changes
+				if (Double.doubleToLongBits(oldValue) == Double.doubleToLongBits(value))
+					return false;
+				if ((deadband > 0) && (Math.abs(value - oldValue) <= deadband))
+					return false;
+			}
+			values[handle] = value;
+			statuses[handle] = status;
+			timestamps[handle] = timestamp;
+			dataValues[handle] = null;
+			return true;
+		}
+
+		/**
+		 * Simulate the item again, also if it has been written by a client.
+		 */
+		synchronized void resumeSimulation() {
+			writtenItems[handle] = false;
+		}
+
+		/**
+		 * Set a simulated value, unless the item has been written by a
+		 * client.
+		 *
+		 * @return true, if the status changed or the value changed more than
+		 *         the deadband
+		 */
+		synchronized boolean simulateValue(double value, int status, long timestamp) {
+			return !writtenItems[handle] && setValue(value, status, timestamp);
+		}
+
+		/**
+		 * Set a value written by a client. The value is always stored,
+		 * regardless of the deadband, and the item is no longer simulated.
+		 *
+		 * @param value
+		 *            the value to set
+		 * @param status
+		 *            the status code bits
+		 * @param timestamp
+		 *            the time of the write, in DateTime ticks
+		 */
+		synchronized void writeValue(double value, int status, long timestamp) {
+			writtenItems[handle] = true;
+			values[handle] = value;
+			statuses[handle] = status;
+			timestamps[handle] = timestamp;
+			dataValues[handle] = null;
+		}
+	}
+
+	/**
+	 * A folder of the item hierarchy. The folders at the lowest level contain
+	 * the DataItems, the others contain folders. The children of each folder
+	 * are a range of handles (or folder indexes), so no child lists are
+	 * needed.
+	 */
+	private class Folder {
+		// The range of the children: folder indexes on the next level, or
+		// DataItem handles on the lowest level
+		private final int firstChild;
+		private final int endChild;
+		private final int level;
+		private final String name;
+		private final ExpandedNodeId nodeId;
+		private final Folder parent;
+		// The references of the folder, created when first browsed
+		private volatile UaReference[] references;
+
+		Folder(Folder parent, int level, String name, ExpandedNodeId nodeId, int firstChild, int endChild) {
+			this.parent = parent;
+			this.level = level;
+			this.name = name;
+			this.nodeId = nodeId;
+			this.firstChild = firstChild;
+			this.endChild = endChild;
+		}
+
+		/**
+		 * The references are created on the first browse and reused after
+		 * that. The SDK returns them to the client in pages of
+		 * maxReferencesPerNode, using continuation points.
+		 *
+		 * @return the references of the folder, which must not be modified
 		 */
-		public void setValue(double value, StatusCode status) {
-			if (status == null)
-				status = StatusCode.BAD;
-			if ((this.value != value) || !this.status.equals(status)) {
-				this.value = value;
-				this.status = status;
-				this.timestamp = DateTime.currentTime();
+		UaReference[] getReferences() {
+			UaReference[] result = references;
+			if (result == null) {
+				result = new UaReference[(endChild - firstChild) + 2];
+				// Inverse reference to the parent
+				result[0] = parent == null
+						? new MyReference(new ExpandedNodeId(Identifiers.ObjectsFolder), nodeId, Identifiers.Organizes)
+						: new MyReference(parent.nodeId, nodeId, Identifiers.Organizes);
+				// Type definition reference
+				result[1] = new MyReference(nodeId, getNamespaceTable().toExpandedNodeId(Identifiers.FolderType),
+						Identifiers.HasTypeDefinition);
+				// References to the children, created from their NodeIds only,
+				// so that the references of the children are not created
+				// before they are browsed
+				final boolean lowest = level == (folders.length - 1);
+				for (int i = firstChild; i < endChild; i++) {
+					final UaReference child;
+					if (lowest)
+						child = new MyReference(nodeId,
+								new ExpandedNodeId(null, getNamespaceIndex(), dataItems[i].getName()),
+								Identifiers.HasComponent);
+					else
+						child = new MyReference(nodeId, folders[level + 1][i].nodeId, Identifiers.Organizes);
+					result[(i - firstChild) + 2] = child;
+				}
+				references = result;
 			}
+			return result;
 		}
 	}
 
@@ -177,47 +442,79 @@ public class MyBigNodeManager extends NodeManager {
 		@Override
 		protected void readNonValue(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
 				UnsignedInteger attributeId, DataValue dataValue) throws StatusException {
-			Object value = null;
-			UnsignedInteger status = StatusCodes.Bad_AttributeIdInvalid;
-
-			DataItem dataItem = getDataItem(nodeId);
-			final ExpandedNodeId expandedNodeId = getNamespaceTable().toExpandedNodeId(nodeId);
-			if (attributeId.equals(Attributes.NodeId))
-				value = nodeId;
-			else if (attributeId.equals(Attributes.BrowseName))
-				value = getBrowseName(expandedNodeId, node);
-			else if (attributeId.equals(Attributes.DisplayName))
-				value = getDisplayName(expandedNodeId, node, null);
-			else if (attributeId.equals(Attributes.Description))
-				status = StatusCodes.Bad_AttributeIdInvalid;
-			else if (attributeId.equals(Attributes.NodeClass))
-				value = getNodeClass(expandedNodeId, node);
-			else if (attributeId.equals(Attributes.WriteMask))
-				value = UnsignedInteger.ZERO;
-			// the following are only requested for the DataItems
-			else if (dataItem != null) {
-				if (attributeId.equals(Attributes.DataType))
-					value = Identifiers.Double;
-				else if (attributeId.equals(Attributes.ValueRank))
-					value = ValueRanks.Scalar;
-				else if (attributeId.equals(Attributes.ArrayDimensions))
-					status = StatusCodes.Bad_AttributeIdInvalid;
-				else if (attributeId.equals(Attributes.AccessLevel))
-					value = AccessLevel.getMask(AccessLevel.READONLY);
-				else if (attributeId.equals(Attributes.UserAccessLevel))
-					value = AccessLevel.getMask(AccessLevel.READONLY);
-				else if (attributeId.equals(Attributes.Historizing))
-					value = false;
+			final ReadBatch batch = operationContext instanceof ReadBatch ? (ReadBatch) operationContext : null;
+			DataItem dataItem = batch == null ? null : batch.getDataItem(nodeId, attributeId);
+			if (dataItem == null)
+				// Not found in the batch, e.g. if the SDK splits the request
+				dataItem = getDataItem(nodeId);
+			final int id = attributeId.intValue();
+			Variant value = null;
+			if ((id > 0) && (id < ATTRIBUTE_COUNT)) {
+				if (dataItem != null)
+					value = dataItem.getAttribute(id);
+				else {
+					final Variant[] attributes = nodeAttributes.get(nodeId);
+					if (attributes != null)
+						value = attributes[id];
+				}
 			}
-			// and this is only requested for the folder
-			else if (attributeId.equals(Attributes.EventNotifier))
-				value = EventNotifierClass.getMask(EventNotifierClass.NONE);
-
 			if (value == null)
-				dataValue.setStatusCode(status);
+				dataValue.setStatusCode(StatusCodes.Bad_AttributeIdInvalid);
 			else
-				dataValue.setValue(new Variant(value));
-			dataValue.setServerTimestamp(DateTime.currentTime());
+				dataValue.setValue(value);
+			dataValue.setServerTimestamp(batch == null ? DateTime.currentTime() : batch.getServerTimestamp());
+		}
+
+		/**
+		 * Resolve all the DataItems of a Read request at once and take the
+		 * server timestamp for the whole request. The result is passed to
+		 * readValue and readNonValue as the operationContext.
+		 */
+		@Override
+		protected Object onBeginRead(ServiceContext serviceContext, ReadValueId[] nodesToRead, Double maxAge,
+				TimestampsToReturn timestampsToReturn) throws ServiceException {
+			final long startNanos = System.nanoTime();
+			final DataItem[] items = new DataItem[nodesToRead.length];
+			final DataValue[] values = new DataValue[nodesToRead.length];
+			final DateTime serverTimestamp = DateTime.currentTime();
+			// The values older than maxAge are read from a PollableDataSource
+			final SingleFlightReader r = reader;
+			final long minTime = (r == null) || (maxAge == null) ? Long.MIN_VALUE
+					: serverTimestamp.getValue() - (long) (maxAge * TICKS_PER_MILLISECOND);
+			final int[] staleHandles = new int[nodesToRead.length];
+			final int[] stalePositions = new int[nodesToRead.length];
+			int staleCount = 0;
+			for (int i = 0; i < nodesToRead.length; i++) {
+				final DataItem dataItem = getDataItem(nodesToRead[i].getNodeId());
+				items[i] = dataItem;
+				if ((dataItem != null) && Attributes.Value.equals(nodesToRead[i].getAttributeId())
+						&& (refreshTimes[dataItem.getHandle()] < minTime)) {
+					staleHandles[staleCount] = dataItem.getHandle();
+					stalePositions[staleCount++] = i;
+				}
+			}
+			if (staleCount > 0) {
+				final boolean[] read = readThrough(r, staleCount, staleHandles);
+				for (int i = 0; i < staleCount; i++)
+					if (!read[i])
+						values[stalePositions[i]] = new DataValue(new StatusCode(StatusCodes.Bad_NoCommunication));
+			}
+			for (int i = 0; i < nodesToRead.length; i++)
+				if ((items[i] != null) && (values[i] == null)
+						&& Attributes.Value.equals(nodesToRead[i].getAttributeId()))
+					values[i] = items[i].getDataValue();
+			return new ReadBatch(nodesToRead, items, values, serverTimestamp, startNanos);
+		}
+
+		/**
+		 * Record the duration of a Read request, from onBeginRead.
+		 */
+		@Override
+		protected void onEndRead(ServiceContext serviceContext, Object operationContext, ReadValueId[] nodesToRead)
+				throws ServiceException {
+			final LatencyHistogram histogram = readHistogram;
+			if ((histogram != null) && (operationContext instanceof ReadBatch))
+				histogram.record(System.nanoTime() - ((ReadBatch) operationContext).getStartNanos());
 		}
 
 		/*
@@ -236,38 +533,138 @@ public class MyBigNodeManager extends NodeManager {
 		protected void readValue(ServiceContext serviceContext, Object operationContext, NodeId nodeId,
 				UaValueNode node, NumericRange indexRange, TimestampsToReturn timestampsToReturn, DateTime minTimestamp,
 				DataValue dataValue) throws StatusException {
-			DataItem dataItem = getDataItem(nodeId);
-			if (dataItem == null)
-				throw new StatusException(StatusCodes.Bad_NodeIdInvalid);
-			dataItem.getDataValue(dataValue);
-
-		}
-
-		// If you wish to enable writing, also disable simulation in
-		// MyBigNodeManager.simulate() and check the value of WriteMask returned
-		// (above).
-		// /*
-		// * (non-Javadoc)
-		// *
-		// * @see
-		// *
-		// com.prosysopc.ua.server.IoManager#writeValue(com.prosysopc.ua.server
-		// * .ServiceContext, org.opcfoundation.ua.builtintypes.NodeId,
-		// * com.prosysopc.ua.nodes.UaVariable,
-		// * org.opcfoundation.ua.utils.NumericRange,
-		// * org.opcfoundation.ua.builtintypes.DataValue)
-		// */
-		// @Override
-		// protected boolean writeValue(ServiceContext serviceContext,
-		// NodeId nodeId, UaVariable node, NumericRange indexRange,
-		// DataValue dataValue) throws StatusException {
-		// DataItem dataItem = getDataItem(nodeId);
-		// if (dataItem == null)
-		// throw new StatusException(StatusCodes.Bad_NodeIdInvalid);
-		// dataItem.setValue(dataValue.getValue().doubleValue(),
-		// dataValue.getStatusCode());
-		// return true;
-		// }
+			DataValue value = null;
+			if (operationContext instanceof ReadBatch) {
+				final ReadBatch batch = (ReadBatch) operationContext;
+				value = batch.getValue(nodeId);
+				dataValue.setServerTimestamp(batch.getServerTimestamp());
+			}
+			if (value == null) {
+				// Not in the batch: the per-node path
+				DataItem dataItem = getDataItem(nodeId);
+				if (dataItem == null)
+					throw new StatusException(StatusCodes.Bad_NodeIdInvalid);
+				final SingleFlightReader r = reader;
+				if ((r != null) && (minTimestamp != null)
+						&& (refreshTimes[dataItem.getHandle()] < minTimestamp.getValue())
+						&& !readThrough(r, 1, new int[] { dataItem.getHandle() })[0])
+					throw new StatusException(StatusCodes.Bad_NoCommunication);
+				value = dataItem.getDataValue();
+				if (!(operationContext instanceof ReadBatch))
+					dataValue.setServerTimestamp(DateTime.currentTime());
+			}
+			dataValue.setValue(value.getValue());
+			dataValue.setStatusCode(value.getStatusCode());
+			dataValue.setSourceTimestamp(value.getSourceTimestamp());
+		}
+
+		/**
+		 * Apply all the DataItem values of a Write request as one batch, if
+		 * the write policy is {@link WritePolicy#BATCHED}. The result is
+		 * passed to writeValue as the operationContext, which reports the
+		 * result of each write.
+		 */
+		@Override
+		protected Object onBeginWrite(ServiceContext serviceContext, WriteValue[] nodesToWrite)
+				throws ServiceException {
+			final long startNanos = System.nanoTime();
+			if (writePolicy != WritePolicy.BATCHED)
+				// An empty batch only times the request
+				return writeHistogram == null ? null : new WriteBatch(nodesToWrite, startNanos);
+			final int n = nodesToWrite.length;
+			final WriteBatch batch = new WriteBatch(nodesToWrite, startNanos);
+			final int[] handles = new int[n];
+			final double[] newValues = new double[n];
+			final int[] newStatuses = new int[n];
+			final long[] newTimestamps = new long[n];
+			// The index of each write in the batch; a later write of the same
+			// item replaces the earlier one
+			final int[] slots = new int[n];
+			final Map<Integer, Integer> slotByHandle = new HashMap<Integer, Integer>();
+			final long now = DateTime.currentTime().getValue();
+			int count = 0;
+			for (int i = 0; i < n; i++) {
+				slots[i] = -1;
+				final WriteValue node = nodesToWrite[i];
+				if (!Attributes.Value.equals(node.getAttributeId()) || (node.getIndexRange() != null))
+					continue;
+				final DataItem dataItem = getDataItem(node.getNodeId());
+				if (dataItem == null)
+					continue;
+				final DataValue dataValue = node.getValue();
+				final double value;
+				try {
+					// Check the write like the SDK does after onBeginWrite,
+					// since the batch is applied already here
+					value = toDouble(dataItem, dataValue);
+				} catch (StatusException e) {
+					batch.setResult(i, e.getStatusCode().getValueAsIntBits());
+					continue;
+				}
+				Integer slot = slotByHandle.get(dataItem.getHandle());
+				if (slot == null) {
+					slot = count++;
+					slotByHandle.put(dataItem.getHandle(), slot);
+					handles[slot] = dataItem.getHandle();
+				}
+				newValues[slot] = value;
+				newStatuses[slot] = getStatusBits(dataValue);
+				newTimestamps[slot] = getTimestamp(dataValue, now);
+				slots[i] = slot;
+			}
+			final int[] results = writeValues(count, handles, newValues, newStatuses, newTimestamps);
+			for (int i = 0; i < n; i++)
+				if (slots[i] >= 0)
+					batch.setResult(i, results[slots[i]]);
+			return batch;
+		}
+
+		/**
+		 * Record the duration of a Write request, from onBeginWrite.
+		 */
+		@Override
+		protected void onEndWrite(ServiceContext serviceContext, Object operationContext, WriteValue[] nodesToWrite)
+				throws ServiceException {
+			final LatencyHistogram histogram = writeHistogram;
+			if ((histogram != null) && (operationContext instanceof WriteBatch))
+				histogram.record(System.nanoTime() - ((WriteBatch) operationContext).getStartNanos());
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * com.prosysopc.ua.server.IoManager#writeValue(com.prosysopc.ua.server
+		 * .ServiceContext, org.opcfoundation.ua.builtintypes.NodeId,
+		 * com.prosysopc.ua.nodes.UaVariable,
+		 * org.opcfoundation.ua.utils.NumericRange,
+		 * org.opcfoundation.ua.builtintypes.DataValue)
+		 */
+		@Override
+		protected boolean writeValue(ServiceContext serviceContext, Object operationContext, NodeId nodeId,
+				UaValueNode node, NumericRange indexRange, DataValue dataValue) throws StatusException {
+			final int i = operationContext instanceof WriteBatch ? ((WriteBatch) operationContext).indexOf(nodeId) : -1;
+			final int result;
+			if (i >= 0)
+				result = ((WriteBatch) operationContext).getResult(i);
+			else {
+				// Not in the batch: the per-node path
+				DataItem dataItem = getDataItem(nodeId);
+				if (dataItem == null)
+					throw new StatusException(StatusCodes.Bad_NodeIdInvalid);
+				if (writePolicy == WritePolicy.READ_ONLY)
+					throw new StatusException(StatusCodes.Bad_NotWritable);
+				if (indexRange != null)
+					throw new StatusException(StatusCodes.Bad_WriteNotSupported);
+				result = writeValues(1, new int[] { dataItem.getHandle() }, new double[] { toDouble(dataItem, dataValue) },
+						new int[] { getStatusBits(dataValue) },
+						new long[] { getTimestamp(dataValue, DateTime.currentTime().getValue()) })[0];
+			}
+			// The Bad results have the highest bit set
+			if (result < 0)
+				throw new StatusException(new StatusCode(result));
+			return true;
+		}
 	}
 
 	/**
@@ -409,23 +806,319 @@ public class MyBigNodeManager extends NodeManager {
 
 	}
 
+	/**
+	 * The DataItems and values of a Read request, resolved in
+	 * MyBigIoManager.onBeginRead.
+	 * <p>
+	 * The nodes are read in the order of the request, so the next node is
+	 * checked first; the others are found by a search.
+	 */
+	private static class ReadBatch {
+		private final DataItem[] items;
+		private int next;
+		private final ReadValueId[] nodesToRead;
+		private final DateTime serverTimestamp;
+		private final long startNanos;
+		private final DataValue[] values;
+
+		ReadBatch(ReadValueId[] nodesToRead, DataItem[] items, DataValue[] values, DateTime serverTimestamp,
+				long startNanos) {
+			this.nodesToRead = nodesToRead;
+			this.items = items;
+			this.values = values;
+			this.serverTimestamp = serverTimestamp;
+			this.startNanos = startNanos;
+		}
+
+		DataItem getDataItem(NodeId nodeId, UnsignedInteger attributeId) {
+			final int i = indexOf(nodeId, attributeId);
+			return i < 0 ? null : items[i];
+		}
+
+		DateTime getServerTimestamp() {
+			return serverTimestamp;
+		}
+
+		long getStartNanos() {
+			return startNanos;
+		}
+
+		DataValue getValue(NodeId nodeId) {
+			final int i = indexOf(nodeId, Attributes.Value);
+			return i < 0 ? null : values[i];
+		}
+
+		private int indexOf(NodeId nodeId, UnsignedInteger attributeId) {
+			for (int n = 0; n < nodesToRead.length; n++) {
+				final int i = (next + n) % nodesToRead.length;
+				final ReadValueId node = nodesToRead[i];
+				if (((node.getNodeId() == nodeId) || nodeId.equals(node.getNodeId()))
+						&& attributeId.equals(node.getAttributeId())) {
+					next = i + 1;
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * The timing of the simulation of one shard of the DataItems.
+	 */
+	public static class ShardTiming {
+		private volatile long changes;
+		private volatile long lastNanos;
+		private volatile long maxNanos;
+		private volatile long ticks;
+		private volatile long totalNanos;
+
+		/**
+		 * @return the average duration of a tick in nanoseconds
+		 */
+		public long getAverageNanos() {
+			final long n = ticks;
+			return n == 0 ? 0 : totalNanos / n;
+		}
+
+		/**
+		 * @return the number of item changes in all ticks
+		 */
+		public long getChanges() {
+			return changes;
+		}
+
+		/**
+		 * @return the duration of the latest tick in nanoseconds
+		 */
+		public long getLastNanos() {
+			return lastNanos;
+		}
+
+		/**
+		 * @return the duration of the longest tick in nanoseconds
+		 */
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+
+		/**
+		 * @return the number of ticks
+		 */
+		public long getTicks() {
+			return ticks;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("ticks=%d changes=%d last=%.3fms avg=%.3fms max=%.3fms", ticks, changes,
+					lastNanos / 1e6, getAverageNanos() / 1e6, maxNanos / 1e6);
+		}
+
+		// Only called by the worker of the shard
+		void add(long nanos, int changeCount) {
+			lastNanos = nanos;
+			if (nanos > maxNanos)
+				maxNanos = nanos;
+			totalNanos += nanos;
+			changes += changeCount;
+			ticks++;
+		}
+	}
+
+	/**
+	 * The results of the DataItem values of a Write request, which are
+	 * written as one batch.
+	 */
+	private static class WriteBatch {
+		// Whether each write was handled by the batch
+		private final boolean[] handled;
+		private int handledCount;
+		private int next;
+		private final WriteValue[] nodesToWrite;
+		private final int[] results;
+		private final long startNanos;
+
+		WriteBatch(WriteValue[] nodesToWrite, long startNanos) {
+			this.nodesToWrite = nodesToWrite;
+			this.startNanos = startNanos;
+			handled = new boolean[nodesToWrite.length];
+			results = new int[nodesToWrite.length];
+		}
+
+		int getResult(int index) {
+			return results[index];
+		}
+
+		long getStartNanos() {
+			return startNanos;
+		}
+
+		/**
+		 * Find the next handled Value write of the node. The nodes are
+		 * written in the order of the request, so the next write is checked
+		 * first.
+		 */
+		int indexOf(NodeId nodeId) {
+			if (handledCount == 0)
+				return -1;
+			for (int n = 0; n < nodesToWrite.length; n++) {
+				final int i = (next + n) % nodesToWrite.length;
+				final WriteValue node = nodesToWrite[i];
+				if (handled[i] && ((node.getNodeId() == nodeId) || nodeId.equals(node.getNodeId()))
+						&& Attributes.Value.equals(node.getAttributeId())) {
+					next = i + 1;
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		void setResult(int index, int result) {
+			if (!handled[index])
+				handledCount++;
+			handled[index] = true;
+			results[index] = result;
+		}
+	}
+
+	/**
+	 * The policy for the writes to the Value of the DataItems.
+	 */
+	public enum WritePolicy {
+		/**
+		 * Each write is applied separately, when the SDK handles it.
+		 */
+		IMMEDIATE,
+		/**
+		 * All writes of a Write request are applied as one batch. Repeated
+		 * writes to the same item are coalesced, so that only the last value
+		 * is written.
+		 */
+		BATCHED,
+		/**
+		 * The items are not writable.
+		 */
+		READ_ONLY;
+	}
+
+	// The AccessLevel bit for writing the Value
+	private static final int CURRENT_WRITE = AccessLevel.getMask(EnumSet.of(AccessLevel.CurrentWrite)).intValue();
+
+	// The non-value attributes have IDs 1..ATTRIBUTE_COUNT-1
+	private static final int ATTRIBUTE_COUNT = Attributes.UserExecutable.intValue() + 1;
+
+	// The largest of the IDs of NodeId, BrowseName and DisplayName
+	private static final int MAX_NAME_ATTRIBUTE = Math.max(Attributes.NodeId.intValue(),
+			Math.max(Attributes.BrowseName.intValue(), Attributes.DisplayName.intValue()));
+
+	// The names of the folders below the top level are
+	// FOLDER_PREFIX + level + "_" + index
+	private static final String FOLDER_PREFIX = "Folder_";
+
+	// The names of the DataItems are DATA_ITEM_PREFIX + handle
+	private static final String DATA_ITEM_PREFIX = "DataItem_";
+
 	private static ExpandedNodeId DataItemType;
 
 	private static final Logger logger = LoggerFactory.getLogger(MyBigNodeManager.class);
 
+	private static final long TICKS_PER_MILLISECOND = 10000;
+
+	// The name of the node manager in the ServiceMetrics
+	private static final String METRICS_NAME = "MyBigNodeManager";
+
+	// The shortest poll interval of a PollableDataSource in milliseconds
+	private static final long MIN_POLL_INTERVAL = 50;
+
+	// The maximum time to wait for the read of another thread in milliseconds
+	private static final long READ_TIMEOUT = 5000;
+
+	// The maximum number of items read at once from a PollableDataSource
+	private static final int POLL_BATCH_SIZE = 1024;
+
+	// The maximum number of updates applied at once from the data source
+	private static final int UPDATE_BATCH_SIZE = 4096;
+
 	private final ExpandedNodeId DataItemFolder;
 
-	private final Map<String, DataItem> dataItems;
+	// The durations of the Browse, Read and Write requests, or null
+	private volatile LatencyHistogram browseHistogram;
+	private volatile LatencyHistogram readHistogram;
+	private volatile LatencyHistogram writeHistogram;
+
+	// The non-value attributes that are common to all DataItems, by
+	// attribute ID
+	private final Variant[] dataItemAttributes = new Variant[ATTRIBUTE_COUNT];
+
+	// The items by their handles
+	private final DataItem[] dataItems;
+
+	// The current data of the items, by their handles. The DataValues are
+	// created on demand after each change.
+	private final DataValue[] dataValues;
+	// The source of the item values, or null to simulate them
+	private volatile DataSource dataSource;
+	private final int[] statuses;
+	private final long[] timestamps;
+	private final double[] values;
+	// The items written by the clients, which are no longer simulated
+	private final boolean[] writtenItems;
+
+	// The number of children in each folder
+	private final int folderSize;
+
+	// The folders by level and index; the top level contains DataItemFolder
+	private final Folder[][] folders;
+
+	// The folders by their names
+	private final Map<String, Folder> foldersByName = new HashMap<String, Folder>();
+
+	// The references of the type, created when first browsed
+	private volatile UaReference[] typeReferences;
+
+	// The non-value attributes of the other nodes, by attribute ID
+	private final Map<NodeId, Variant[]> nodeAttributes = new HashMap<NodeId, Variant[]>();
 
-	private final Map<String, Collection<MonitoredDataItem>> monitoredItems = new ConcurrentHashMap<String, Collection<MonitoredDataItem>>();
+	// The monitored items by the handles of the DataItems
+	private final MonitoredItemRegistry monitoredItems;
 
 	@SuppressWarnings("unused")
 	private final MyBigIoManager myBigIoManager;
 
+	// Reads the stale items of a PollableDataSource, or null
+	private volatile SingleFlightReader reader;
+
+	// The time when each value was last received from the data source, in
+	// DateTime ticks
+	private final long[] refreshTimes;
+
+	// Polls the monitored items of a PollableDataSource, or null
+	private volatile PollScheduler pollScheduler;
+	private ScheduledExecutorService pollExecutor;
+
+	// Samples the monitored items at their sampling intervals, or null to
+	// notify them of each change
+	private volatile SamplingWheel samplingWheel;
+
+	// The executor for the simulation shards, or null to simulate in the
+	// calling thread
+	private volatile ExecutorService simulationExecutor;
+
+	// The timing of each simulation shard; the length defines the number of
+	// shards
+	private volatile ShardTiming[] shardTimings = { new ShardTiming() };
+
 	private double t = 0;
 
+	private volatile WritePolicy writePolicy = WritePolicy.READ_ONLY;
+
+	// The updates from the data source
+	private final DataUpdateQueue updateQueue;
+	// The thread that applies the updates from the data source
+	private Thread updateThread;
+
 	/**
-	 * Default constructor
+	 * Default constructor, which puts all items in one folder.
 	 *
 	 * @param server
 	 *            the UaServer, which owns the NodeManager
@@ -435,7 +1128,28 @@ public class MyBigNodeManager extends NodeManager {
 	 *            number of data items to create for the manager
 	 */
 	public MyBigNodeManager(UaServer server, String namespaceUri, int nofItems) {
+		this(server, namespaceUri, nofItems, 0);
+	}
+
+	/**
+	 * Create a node manager, which organizes the items in a tree of folders.
+	 * Each folder contains at most folderSize items or sub folders. The items
+	 * are placed in the folders in the order of their handles.
+	 *
+	 * @param server
+	 *            the UaServer, which owns the NodeManager
+	 * @param namespaceUri
+	 *            the namespace which this node manager handles
+	 * @param nofItems
+	 *            number of data items to create for the manager
+	 * @param folderSize
+	 *            the maximum number of children in a folder, or 0 to put all
+	 *            items in one folder
+	 */
+	public MyBigNodeManager(UaServer server, String namespaceUri, int nofItems, int folderSize) {
 		super(server, namespaceUri);
+		if ((folderSize == 1) || (folderSize < 0))
+			throw new IllegalArgumentException("folderSize must be 0 or greater than 1");
 		DataItemType = new ExpandedNodeId(null, getNamespaceIndex(), "DataItemType");
 		DataItemFolder = new ExpandedNodeId(null, getNamespaceIndex(), "MyBigNodeManager");
 		try {
@@ -444,9 +1158,25 @@ public class MyBigNodeManager extends NodeManager {
 		} catch (ServiceResultException e) {
 			throw new RuntimeException(e);
 		}
-		dataItems = new TreeMap<String, DataItem>();
+		dataItems = new DataItem[nofItems];
+		monitoredItems = new MonitoredItemRegistry(nofItems);
+		updateQueue = new DataUpdateQueue(nofItems);
+		refreshTimes = new long[nofItems];
+		dataValues = new DataValue[nofItems];
+		statuses = new int[nofItems];
+		timestamps = new long[nofItems];
+		values = new double[nofItems];
+		writtenItems = new boolean[nofItems];
+		Arrays.fill(statuses, new StatusCode(StatusCodes.Bad_WaitingForInitialData).getValueAsIntBits());
 		for (int i = 0; i < nofItems; i++)
-			addDataItem(String.format("DataItem_%04d", i));
+			dataItems[i] = new DataItem(String.format(DATA_ITEM_PREFIX + "%04d", i), i);
+		this.folderSize = folderSize == 0 ? Math.max(nofItems, 1) : folderSize;
+		folders = createFolders(nofItems);
+		try {
+			initAttributes();
+		} catch (ServiceResultException e) {
+			throw new RuntimeException(e);
+		}
 
 		myBigIoManager = new MyBigIoManager(this);
 	}
@@ -488,15 +1218,128 @@ public class MyBigNodeManager extends NodeManager {
 	 */
 	@Override
 	public boolean hasNode(NodeId nodeId) {
-		return nodeId.getValue().equals("MyBigNodeManager") || nodeId.equals(DataItemType)
-				|| (getDataItem(nodeId) != null);
+		return (getDataItem(nodeId) != null) || (getFolder(nodeId) != null) || nodeId.equals(DataItemType);
+	}
+
+	/**
+	 * Create the folder tree: enough levels, so that the lowest level can
+	 * contain all the items.
+	 */
+	private Folder[][] createFolders(int nofItems) {
+		int levels = 1;
+		for (long capacity = folderSize; capacity < nofItems; capacity *= folderSize)
+			levels++;
+		final Folder[][] result = new Folder[levels][];
+		// The number of items below each folder on the level
+		long span = 1;
+		for (int level = 0; level < levels; level++)
+			span *= folderSize;
+		for (int level = 0; level < levels; level++) {
+			final int count = level == 0 ? 1 : (int) (((nofItems + span) - 1) / span);
+			final int childCount = level == (levels - 1) ? nofItems : (int) (((nofItems + (span / folderSize)) - 1)
+					/ (span / folderSize));
+			result[level] = new Folder[count];
+			for (int i = 0; i < count; i++) {
+				final String name = level == 0 ? "MyBigNodeManager"
+						: String.format(FOLDER_PREFIX + "%d_%04d", level, i);
+				final Folder folder = new Folder(level == 0 ? null : result[level - 1][i / folderSize], level, name,
+						level == 0 ? DataItemFolder : new ExpandedNodeId(null, getNamespaceIndex(), name),
+						(int) Math.min((long) i * folderSize, childCount),
+						(int) Math.min(((long) i + 1) * folderSize, childCount));
+				result[level][i] = folder;
+				foldersByName.put(name, folder);
+			}
+			span /= folderSize;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the status code bits of a written value
+	 */
+	private static int getStatusBits(DataValue dataValue) {
+		final StatusCode status = dataValue.getStatusCode();
+		return status == null ? StatusCode.GOOD.getValueAsIntBits() : status.getValueAsIntBits();
+	}
+
+	/**
+	 * @return the source timestamp of a written value in DateTime ticks, or
+	 *         now if it is not defined
+	 */
+	private static long getTimestamp(DataValue dataValue, long now) {
+		final DateTime timestamp = dataValue.getSourceTimestamp();
+		return timestamp == null ? now : timestamp.getValue();
+	}
+
+	private static boolean isCurrentWrite(Variant accessLevel) {
+		final Object mask = accessLevel == null ? null : accessLevel.getValue();
+		return (mask instanceof Number) && ((((Number) mask).intValue() & CURRENT_WRITE) != 0);
+	}
+
+	/**
+	 * Check whether a value is of the DataType of the DataItems. Only the
+	 * numeric types that a double can hold are supported.
+	 */
+	private static boolean isOfDataType(Object value, NodeId dataType) {
+		if (Identifiers.Double.equals(dataType))
+			return value instanceof Double;
+		if (Identifiers.Float.equals(dataType))
+			return value instanceof Float;
+		if (Identifiers.Int32.equals(dataType))
+			return value instanceof Integer;
+		if (Identifiers.Int16.equals(dataType))
+			return value instanceof Short;
+		if (Identifiers.SByte.equals(dataType))
+			return value instanceof Byte;
+		if (Identifiers.Byte.equals(dataType))
+			return value instanceof UnsignedByte;
+		if (Identifiers.UInt16.equals(dataType))
+			return value instanceof UnsignedShort;
+		if (Identifiers.UInt32.equals(dataType))
+			return value instanceof UnsignedInteger;
+		return false;
 	}
 
 	/**
-	 * @param name
+	 * Create the attribute values for the DataItems and the other nodes.
+	 *
+	 * @throws ServiceResultException
 	 */
-	private void addDataItem(String name) {
-		dataItems.put(name, new DataItem(name));
+	private void initAttributes() throws ServiceResultException {
+		dataItemAttributes[Attributes.NodeClass.intValue()] = new Variant(NodeClass.Variable);
+		dataItemAttributes[Attributes.WriteMask.intValue()] = new Variant(UnsignedInteger.ZERO);
+		dataItemAttributes[Attributes.DataType.intValue()] = new Variant(Identifiers.Double);
+		dataItemAttributes[Attributes.ValueRank.intValue()] = new Variant(ValueRanks.Scalar);
+		dataItemAttributes[Attributes.AccessLevel.intValue()] = new Variant(AccessLevel.getMask(AccessLevel.READONLY));
+		dataItemAttributes[Attributes.UserAccessLevel.intValue()] = new Variant(
+				AccessLevel.getMask(AccessLevel.READONLY));
+		dataItemAttributes[Attributes.Historizing.intValue()] = new Variant(false);
+
+		final Variant eventNotifier = new Variant(EventNotifierClass.getMask(EventNotifierClass.NONE));
+		for (Folder[] level : folders)
+			for (Folder folder : level)
+				initNodeAttributes(folder.nodeId)[Attributes.EventNotifier.intValue()] = eventNotifier;
+
+		final Variant[] type = initNodeAttributes(DataItemType);
+		type[Attributes.IsAbstract.intValue()] = new Variant(false);
+		type[Attributes.DataType.intValue()] = new Variant(Identifiers.Double);
+		type[Attributes.ValueRank.intValue()] = new Variant(ValueRanks.Scalar);
+	}
+
+	/**
+	 * Create the attribute table of a node with the attributes that are
+	 * common to all node classes.
+	 */
+	private Variant[] initNodeAttributes(ExpandedNodeId expandedNodeId) throws ServiceResultException {
+		final NodeId nodeId = getNamespaceTable().toNodeId(expandedNodeId);
+		final Variant[] attributes = new Variant[ATTRIBUTE_COUNT];
+		attributes[Attributes.NodeId.intValue()] = new Variant(nodeId);
+		attributes[Attributes.NodeClass.intValue()] = new Variant(getNodeClass(nodeId, null));
+		attributes[Attributes.BrowseName.intValue()] = new Variant(getBrowseName(expandedNodeId, null));
+		attributes[Attributes.DisplayName.intValue()] = new Variant(getDisplayName(expandedNodeId, null, null));
+		attributes[Attributes.WriteMask.intValue()] = new Variant(UnsignedInteger.ZERO);
+		nodeAttributes.put(nodeId, attributes);
+		return attributes;
 	}
 
 	/**
@@ -508,8 +1351,7 @@ public class MyBigNodeManager extends NodeManager {
 	 * @return the DataItem object
 	 */
 	private DataItem getDataItem(ExpandedNodeId nodeId) {
-		String name = (String) nodeId.getValue();
-		return dataItems.get(name);
+		return getDataItem(nodeId.getValue());
 	}
 
 	/**
@@ -521,8 +1363,92 @@ public class MyBigNodeManager extends NodeManager {
 	 * @return the DataItem object
 	 */
 	private DataItem getDataItem(NodeId nodeId) {
-		String name = (String) nodeId.getValue();
-		return dataItems.get(name);
+		return getDataItem(nodeId.getValue());
+	}
+
+	/**
+	 * Finds the DataItem by the name. The handle of the item is parsed from
+	 * the name, so no map lookup is needed.
+	 *
+	 * @param value
+	 *            the Value part of the NodeId
+	 * @return the DataItem object, or null if there is no such item
+	 */
+	private DataItem getDataItem(Object value) {
+		if (!(value instanceof String))
+			return null;
+		final String name = (String) value;
+		final int length = name.length();
+		final int prefixLength = DATA_ITEM_PREFIX.length();
+		if ((length <= prefixLength) || (length > prefixLength + 9) || !name.startsWith(DATA_ITEM_PREFIX))
+			return null;
+		int handle = 0;
+		for (int i = prefixLength; i < length; i++) {
+			final char c = name.charAt(i);
+			if ((c < '0') || (c > '9'))
+				return null;
+			handle = (handle * 10) + (c - '0');
+		}
+		if (handle >= dataItems.length)
+			return null;
+		final DataItem dataItem = dataItems[handle];
+		// Leading zeros must match, too
+		return dataItem.getName().length() == length ? dataItem : null;
+	}
+
+	/**
+	 * @param nodeId
+	 *            the node
+	 * @return the references of the node, or null if it is not one of ours
+	 */
+	private UaReference[] findReferences(NodeId nodeId) {
+		// Define references from our DataItems
+		DataItem dataItem = getDataItem(nodeId);
+		if (dataItem != null)
+			return dataItem.getReferences();
+		try {
+			// Define reference to our type
+			if (nodeId.equals(getNamespaceTable().toNodeId(DataItemType)))
+				return getTypeReferences();
+			// Define reference from and to our Folders for the DataItems
+			final Folder folder = getFolder(nodeId);
+			if (folder != null)
+				return folder.getReferences();
+		} catch (ServiceResultException e) {
+			throw new RuntimeException(e);
+		}
+		return null;
+	}
+
+	/**
+	 * @param nodeId
+	 *            ID of the node - the Value part corresponds to the name of the
+	 *            folder
+	 * @return the folder, or null if the node is not a folder
+	 */
+	private Folder getFolder(ExpandedNodeId nodeId) {
+		final Object value = nodeId.getValue();
+		return value instanceof String ? foldersByName.get(value) : null;
+	}
+
+	/**
+	 * @param handle
+	 *            the handle of a DataItem
+	 * @return the folder that contains the item
+	 */
+	private Folder getFolder(int handle) {
+		return folders[folders.length - 1][handle / folderSize];
+	}
+
+	/**
+	 * @param nodeId
+	 *            ID of the node - the Value part corresponds to the name of the
+	 *            folder
+	 * @return the folder, or null if the node is not a folder
+	 */
+	private Folder getFolder(NodeId nodeId) {
+		final Object value = nodeId.getValue();
+		return value instanceof String ? foldersByName.get(value) : null;
 	}
 
 	/**
@@ -533,8 +1459,9 @@ public class MyBigNodeManager extends NodeManager {
 		String name = nodeId.getValue().toString();
 		if (getNamespaceTable().nodeIdEquals(nodeId, DataItemType))
 			name = "DataItemType";
-		if (getNamespaceTable().nodeIdEquals(nodeId, DataItemFolder))
-			name = "MyBigNodeManager";
+		final Folder folder = getFolder(nodeId);
+		if (folder != null)
+			name = folder.name;
 		else {
 			DataItem dataItem = getDataItem(nodeId);
 			// Use the namespaceIndex of the NodeManager name space also for the
@@ -545,6 +1472,70 @@ public class MyBigNodeManager extends NodeManager {
 		return name;
 	}
 
+	/**
+	 * @return the references of the DataItemType, which must not be
+	 *         modified
+	 */
+	private UaReference[] getTypeReferences() {
+		UaReference[] references = typeReferences;
+		if (references == null) {
+			references = new UaReference[] { new MyReference(new ExpandedNodeId(Identifiers.BaseDataVariableType),
+					DataItemType, Identifiers.HasSubtype) };
+			typeReferences = references;
+		}
+		return references;
+	}
+
+	/**
+	 * Apply new values from the data source to the items and notify the
+	 * monitored items of the changes.
+	 */
+	private void applyValues(int count, int[] handles, double[] newValues, int[] newStatuses, long[] newTimestamps) {
+		final long now = DateTime.currentTime().getValue();
+		for (int i = 0; i < count; i++) {
+			final DataItem dataItem = dataItems[handles[i]];
+			final long timestamp = newTimestamps[i] == 0 ? now : newTimestamps[i];
+			if (dataItem.setValue(newValues[i], newStatuses[i], timestamp))
+				notifyMonitoredDataItems(dataItem);
+			// Also an unchanged value is fresh now
+			refreshTimes[handles[i]] = now;
+		}
+	}
+
+	/**
+	 * Read the current values of items from the data source, sharing the
+	 * reads that are already in progress.
+	 *
+	 * @return whether each item was read successfully
+	 */
+	private boolean[] readThrough(SingleFlightReader r, int count, int[] handles) {
+		try {
+			return r.read(count, handles, READ_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new boolean[count];
+		}
+	}
+
+	/**
+	 * Apply the updates from the data source, until the thread is
+	 * interrupted.
+	 */
+	private void applyUpdates() {
+		final int[] handles = new int[UPDATE_BATCH_SIZE];
+		final double[] newValues = new double[UPDATE_BATCH_SIZE];
+		final int[] newStatuses = new int[UPDATE_BATCH_SIZE];
+		final long[] newTimestamps = new long[UPDATE_BATCH_SIZE];
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				final int count = updateQueue.take(handles, newValues, newStatuses, newTimestamps, 1000);
+				applyValues(count, handles, newValues, newStatuses, newTimestamps);
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
 	/**
 	 * Send a data change notification for all monitored data items that are
 	 * monitoring the dataItme
@@ -552,14 +1543,83 @@ public class MyBigNodeManager extends NodeManager {
 	 * @param dataItem
 	 */
 	private void notifyMonitoredDataItems(DataItem dataItem) {
-		// Get the list of items watching dataItem
-		Collection<MonitoredDataItem> c = monitoredItems.get(dataItem.getName());
-		if (c != null)
-			for (MonitoredDataItem item : c) {
-				DataValue dataValue = new DataValue();
-				dataItem.getDataValue(dataValue);
-				item.notifyDataChange(dataValue);
+		// The sampling wheel notifies the changes at the sampling intervals
+		if (samplingWheel != null)
+			return;
+		// The same DataValue is shared by all the items
+		if (monitoredItems.isMonitored(dataItem.getHandle()))
+			monitoredItems.notifyDataChange(dataItem.getHandle(), dataItem.getDataValue());
+	}
+
+	/**
+	 * Update the poll interval of an item to the fastest sampling interval of
+	 * its monitored items, if the data source is polled.
+	 */
+	private void planPolling(int handle) {
+		final PollScheduler scheduler = pollScheduler;
+		if (scheduler == null)
+			return;
+		// Serialize the planning of the item, so that the latest state of the
+		// monitored items wins
+		synchronized (scheduler) {
+			long interval = 0;
+			for (MonitoredDataItem item : monitoredItems.getSubscribers(handle)) {
+				if (item.getMonitoringMode() == MonitoringMode.Disabled)
+					continue;
+				final long samplingInterval = Math.max(MIN_POLL_INTERVAL, (long) Math.ceil(item.getSamplingInterval()));
+				if ((interval == 0) || (samplingInterval < interval))
+					interval = samplingInterval;
+			}
+			scheduler.setInterval(handle, interval);
+		}
+	}
+
+	/**
+	 * Check a write of the Value of a DataItem, like the SDK checks the
+	 * writes: the AccessLevel, UserAccessLevel and DataType of the item.
+	 *
+	 * @return the written value as a double
+	 * @throws StatusException
+	 *             with Bad_NotWritable, Bad_UserAccessDenied or
+	 *             Bad_TypeMismatch, if the value cannot be written
+	 */
+	private double toDouble(DataItem dataItem, DataValue dataValue) throws StatusException {
+		if (!isCurrentWrite(dataItem.getAttribute(Attributes.AccessLevel.intValue())))
+			throw new StatusException(StatusCodes.Bad_NotWritable);
+		if (!isCurrentWrite(dataItem.getAttribute(Attributes.UserAccessLevel.intValue())))
+			throw new StatusException(StatusCodes.Bad_UserAccessDenied);
+		final Variant value = dataValue.getValue();
+		final Object o = value == null ? null : value.getValue();
+		if (!isOfDataType(o, dataItem.getDataType()))
+			throw new StatusException(StatusCodes.Bad_TypeMismatch);
+		return ((Number) o).doubleValue();
+	}
+
+	/**
+	 * Write the values through to the data source, if it is writable, and
+	 * apply the accepted values to the items.
+	 *
+	 * @return the status code bits of each write
+	 */
+	private int[] writeValues(int count, int[] handles, double[] newValues, int[] newStatuses, long[] newTimestamps) {
+		final int[] results = new int[count];
+		final DataSource source = dataSource;
+		if (source instanceof WritableDataSource)
+			((WritableDataSource) source).write(count, handles, newValues, newStatuses, newTimestamps, results);
+		else if (source != null) {
+			Arrays.fill(results, new StatusCode(StatusCodes.Bad_NotWritable).getValueAsIntBits());
+			return results;
+		}
+		for (int i = 0; i < count; i++)
+			// The Bad results have the highest bit set
+			if (results[i] >= 0) {
+				// Bypass the deadband, so that a Good result means that the
+				// value was stored
+				final DataItem dataItem = dataItems[handles[i]];
+				dataItem.writeValue(newValues[i], newStatuses[i], newTimestamps[i]);
+				notifyMonitoredDataItems(dataItem);
 			}
+		return results;
 	}
 
 	/*
@@ -573,15 +1633,37 @@ public class MyBigNodeManager extends NodeManager {
 	@Override
 	protected void afterCreateMonitoredDataItem(ServiceContext serviceContext, Subscription subscription,
 			MonitoredDataItem item) {
-		// Add all items that monitor the same node to the same collection
-		final Object dataItemName = item.getNodeId().getValue();
-		Collection<MonitoredDataItem> c = monitoredItems.get(dataItemName);
-		if (c == null) {
-			c = new CopyOnWriteArrayList<MonitoredDataItem>();
-			monitoredItems.put((String) dataItemName, c);
+		// Only the DataItems change
+		final DataItem dataItem = getDataItem(item.getNodeId());
+		if (dataItem != null) {
+			monitoredItems.add(dataItem.getHandle(), item);
+			planPolling(dataItem.getHandle());
+			final SamplingWheel wheel = samplingWheel;
+			if (wheel != null)
+				wheel.add(dataItem.getHandle(), item);
+		}
+		logger.debug("afterCreateMonitoredDataItem: nodeId={}", item.getNodeId());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.prosysopc.ua.server.NodeManager#afterModifyMonitoredDataItem(com.
+	 * prosysopc.ua.server.ServiceContext, com.prosysopc.ua.server.Subscription,
+	 * com.prosysopc.ua.server.MonitoredDataItem)
+	 */
+	@Override
+	protected void afterModifyMonitoredDataItem(ServiceContext serviceContext, Subscription subscription,
+			MonitoredDataItem item) {
+		// The sampling interval may have changed
+		final DataItem dataItem = getDataItem(item.getNodeId());
+		if (dataItem != null) {
+			planPolling(dataItem.getHandle());
+			final SamplingWheel wheel = samplingWheel;
+			if (wheel != null)
+				wheel.add(dataItem.getHandle(), item);
 		}
-		c.add(item);
-		logger.debug("afterCreateMonitoredDataItem: nodeId={} c.size()={}", item.getNodeId(), c.size());
 	}
 
 	/*
@@ -595,17 +1677,14 @@ public class MyBigNodeManager extends NodeManager {
 	@Override
 	protected void deleteMonitoredItem(ServiceContext serviceContext, Subscription subscription, MonitoredItem item)
 			throws StatusException {
-		// Find the collection in which the monitoredItem is
-		// and remove the item from the collection
-		Object dataItemName = item.getNodeId().getValue();
-		Collection<MonitoredDataItem> c = monitoredItems.get(dataItemName);
-		if (c != null) {
-			logger.debug("deleteMonitoredItem: collection size={}", c.size());
-			c.remove(item);
-			if (c.isEmpty()) {
-				monitoredItems.remove(dataItemName);
-				logger.debug("deleteMonitoredItem: monitoredItems size={}", monitoredItems.size());
-			}
+		final DataItem dataItem = getDataItem(item.getNodeId());
+		if ((dataItem != null) && (item instanceof MonitoredDataItem)) {
+			final boolean removed = monitoredItems.remove(dataItem.getHandle(), (MonitoredDataItem) item);
+			planPolling(dataItem.getHandle());
+			final SamplingWheel wheel = samplingWheel;
+			if (wheel != null)
+				wheel.remove((MonitoredDataItem) item);
+			logger.debug("deleteMonitoredItem: nodeId={} removed={}", item.getNodeId(), removed);
 		}
 	}
 
@@ -647,7 +1726,7 @@ public class MyBigNodeManager extends NodeManager {
 	protected NodeClass getNodeClass(NodeId nodeId, UaNode node) {
 		if (getNamespaceTable().nodeIdEquals(nodeId, DataItemType))
 			return NodeClass.VariableType;
-		if (getNamespaceTable().nodeIdEquals(nodeId, DataItemFolder))
+		if (getFolder(nodeId) != null)
 			return NodeClass.Object;
 		// All data items are variables
 		return NodeClass.Variable;
@@ -662,44 +1741,15 @@ public class MyBigNodeManager extends NodeManager {
 	 */
 	@Override
 	protected UaReference[] getReferences(NodeId nodeId, UaNode node) {
+		final LatencyHistogram histogram = browseHistogram;
+		if (histogram == null)
+			return findReferences(nodeId);
+		final long start = System.nanoTime();
 		try {
-			// Define reference to our type
-			if (nodeId.equals(getNamespaceTable().toNodeId(DataItemType)))
-				return new UaReference[] { new MyReference(new ExpandedNodeId(Identifiers.BaseDataVariableType),
-						DataItemType, Identifiers.HasSubtype) };
-			// Define reference from and to our Folder for the DataItems
-			if (nodeId.equals(getNamespaceTable().toNodeId(DataItemFolder))) {
-				UaReference[] folderItems = new UaReference[dataItems.size() + 2];
-				// Inverse reference to the ObjectsFolder
-				folderItems[0] = new MyReference(new ExpandedNodeId(Identifiers.ObjectsFolder), DataItemFolder,
-						Identifiers.Organizes);
-				// Type definition reference
-				folderItems[1] = new MyReference(DataItemFolder,
-						getTypeDefinition(getNamespaceTable().toExpandedNodeId(nodeId), node),
-						Identifiers.HasTypeDefinition);
-				int i = 2;
-				// Reference to all items in the folder
-				for (DataItem d : dataItems.values()) {
-					folderItems[i] = new MyReference(DataItemFolder,
-							new ExpandedNodeId(null, getNamespaceIndex(), d.getName()), Identifiers.HasComponent);
-					i++;
-				}
-				return folderItems;
-			}
-		} catch (ServiceResultException e) {
-			throw new RuntimeException(e);
+			return findReferences(nodeId);
+		} finally {
+			histogram.record(System.nanoTime() - start);
 		}
-
-		// Define references from our DataItems
-		DataItem dataItem = getDataItem(nodeId);
-		if (dataItem == null)
-			return null;
-		final ExpandedNodeId dataItemId = new ExpandedNodeId(null, getNamespaceIndex(), dataItem.getName());
-		return new UaReference[] {
-				// Inverse reference to the folder
-				new MyReference(DataItemFolder, dataItemId, Identifiers.HasComponent),
-				// Type definition
-				new MyReference(dataItemId, DataItemType, Identifiers.HasTypeDefinition) };
 	}
 
 	/*
@@ -715,18 +1765,275 @@ public class MyBigNodeManager extends NodeManager {
 		// with NamespaceIndex while others use NamespaceUri
 		if (getNamespaceTable().nodeIdEquals(nodeId, DataItemType))
 			return null;
-		if (getNamespaceTable().nodeIdEquals(nodeId, DataItemFolder))
+		if (getFolder(nodeId) != null)
 			return getNamespaceTable().toExpandedNodeId(Identifiers.FolderType);
 		return DataItemType;
 	}
 
+	/**
+	 * @return the source of the item values, or null if the values are
+	 *         simulated
+	 */
+	public DataSource getDataSource() {
+		return dataSource;
+	}
+
+	/**
+	 * @return the tick of the sampling wheel in milliseconds, or 0 if the
+	 *         monitored items are notified of each change
+	 */
+	public long getSamplingTick() {
+		final SamplingWheel wheel = samplingWheel;
+		return wheel == null ? 0 : wheel.getTick();
+	}
+
+	/**
+	 * @return the timing of each simulation shard
+	 */
+	public ShardTiming[] getShardTimings() {
+		return shardTimings.clone();
+	}
+
+	/**
+	 * @return the queue, which the data source pushes the updates to
+	 */
+	public DataUpdateQueue getUpdateQueue() {
+		return updateQueue;
+	}
+
+	/**
+	 * @return the policy for the writes to the DataItems
+	 */
+	public WritePolicy getWritePolicy() {
+		return writePolicy;
+	}
+
+	/**
+	 * Define the source of the item values. The simulation is disabled while
+	 * a source is set. The updates from the source are applied to the items
+	 * by a single thread, which takes them from the queue in batches.
+	 *
+	 * @param dataSource
+	 *            the new source, or null to stop the current source and
+	 *            return to the simulation
+	 * @throws IOException
+	 *             if the source cannot be started
+	 */
+	public synchronized void setDataSource(DataSource dataSource) throws IOException {
+		final DataSource oldSource = this.dataSource;
+		if (oldSource != null) {
+			reader = null;
+			if (pollScheduler != null) {
+				pollScheduler.shutdown();
+				pollScheduler = null;
+				pollExecutor.shutdown();
+				pollExecutor = null;
+			}
+			oldSource.stop();
+			updateThread.interrupt();
+			updateThread = null;
+		}
+		this.dataSource = dataSource;
+		if (dataSource == null)
+			return;
+		final Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				applyUpdates();
+			}
+		}, "MyBigNodeManager updates");
+		thread.setDaemon(true);
+		updateThread = thread;
+		thread.start();
+		try {
+			dataSource.start(updateQueue);
+		} catch (IOException e) {
+			setDataSource(null);
+			throw e;
+		}
+		if (dataSource instanceof PollableDataSource) {
+			pollExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "MyBigNodeManager polling");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			pollScheduler = new PollScheduler((PollableDataSource) dataSource, updateQueue, pollExecutor,
+					POLL_BATCH_SIZE);
+			reader = new SingleFlightReader((PollableDataSource) dataSource, dataItems.length, POLL_BATCH_SIZE) {
+
+				@Override
+				protected void apply(int count, int[] handles, double[] values, int[] statuses, long[] timestamps) {
+					applyValues(count, handles, values, statuses, timestamps);
+				}
+			};
+			// Start polling the items that are already monitored
+			for (int handle = 0; handle < dataItems.length; handle++)
+				if (monitoredItems.isMonitored(handle))
+					planPolling(handle);
+		}
+	}
+
+	/**
+	 * Define how the monitored items are notified of the changes. By
+	 * default, each change is notified immediately to all monitored items of
+	 * the DataItem. With a sampling tick, the monitored items are sampled at
+	 * their own sampling intervals (rounded up to whole ticks) by a timer
+	 * wheel, and only the values changed since the previous sample are
+	 * notified.
+	 *
+	 * @param tick
+	 *            the resolution of the sampling intervals in milliseconds,
+	 *            or 0 to notify each change immediately
+	 */
+	public synchronized void setSamplingTick(long tick) {
+		final SamplingWheel oldWheel = samplingWheel;
+		if (oldWheel != null) {
+			if (oldWheel.getTick() == tick)
+				return;
+			oldWheel.stop();
+		}
+		if (tick == 0) {
+			samplingWheel = null;
+			return;
+		}
+		final SamplingWheel wheel = new SamplingWheel(tick) {
+
+			@Override
+			protected DataValue getDataValue(int handle) {
+				return dataItems[handle].getDataValue();
+			}
+		};
+		// Set first, so that the items created meanwhile are not missed
+		samplingWheel = wheel;
+		for (int handle = 0; handle < dataItems.length; handle++)
+			for (MonitoredDataItem item : monitoredItems.getSubscribers(handle))
+				wheel.add(handle, item);
+		wheel.start();
+	}
+
+	/**
+	 * Record the durations of the Browse, Read and Write requests of the
+	 * node manager. Browse is timed for each node, since the node manager
+	 * only sees the nodes one by one.
+	 *
+	 * @param metrics
+	 *            the metrics to record to, or null to stop recording
+	 */
+	public void setMetrics(ServiceMetrics metrics) {
+		browseHistogram = metrics == null ? null : metrics.getHistogram(METRICS_NAME, "Browse");
+		readHistogram = metrics == null ? null : metrics.getHistogram(METRICS_NAME, "Read");
+		writeHistogram = metrics == null ? null : metrics.getHistogram(METRICS_NAME, "Write");
+	}
+
+	/**
+	 * Define the executor to simulate the items in parallel. The items are
+	 * split to shards of consecutive handles, which are simulated and
+	 * notified by separate tasks.
+	 *
+	 * @param executor
+	 *            the executor, or null to simulate in the calling thread
+	 * @param shards
+	 *            the number of shards
+	 */
+	public void setSimulationExecutor(ExecutorService executor, int shards) {
+		if (shards < 1)
+			throw new IllegalArgumentException("shards must be a positive value");
+		final ShardTiming[] timings = new ShardTiming[shards];
+		for (int i = 0; i < shards; i++)
+			timings[i] = new ShardTiming();
+		shardTimings = timings;
+		simulationExecutor = executor;
+	}
+
+	/**
+	 * Define how the writes to the Value of the DataItems are applied. If the
+	 * data source is a {@link WritableDataSource}, the values are written
+	 * through to it and only the accepted values are applied to the items.
+	 * While another kind of source is set, the writes fail with
+	 * Bad_NotWritable. Without a data source, the written items are no longer
+	 * simulated, so that the written values are kept. Setting the policy to
+	 * {@link WritePolicy#READ_ONLY} resumes the simulation of all items.
+	 *
+	 * @param writePolicy
+	 *            the policy
+	 */
+	public void setWritePolicy(WritePolicy writePolicy) {
+		final Variant accessLevel = new Variant(AccessLevel
+				.getMask(writePolicy == WritePolicy.READ_ONLY ? AccessLevel.READONLY : AccessLevel.READWRITE));
+		dataItemAttributes[Attributes.AccessLevel.intValue()] = accessLevel;
+		dataItemAttributes[Attributes.UserAccessLevel.intValue()] = accessLevel;
+		this.writePolicy = writePolicy;
+		if (writePolicy == WritePolicy.READ_ONLY)
+			for (DataItem dataItem : dataItems)
+				dataItem.resumeSimulation();
+	}
+
+	/**
+	 * Simulate one shard of the items and notify the monitored items of the
+	 * changes.
+	 */
+	private void simulateShard(int shard, int shards, double value, long now, ShardTiming timing) {
+		final long start = System.nanoTime();
+		final int good = StatusCode.GOOD.getValueAsIntBits();
+		final int first = (int) (((long) dataItems.length * shard) / shards);
+		final int end = (int) (((long) dataItems.length * (shard + 1)) / shards);
+		int changes = 0;
+		for (int i = first; i < end; i++)
+			if (dataItems[i].simulateValue(value, good, now)) {
+				notifyMonitoredDataItems(dataItems[i]);
+				changes++;
+			}
+		timing.add(System.nanoTime() - start, changes);
+	}
+
 	void simulate() {
+		if (dataSource != null)
+			return;
 		t = t + (Math.PI / 180);
-		double value = 100 * Math.sin(t);
-		for (DataItem d : dataItems.values()) {
-			d.setValue(value);
-			notifyMonitoredDataItems(d);
+		final double value = 100 * Math.sin(t);
+		final long now = DateTime.currentTime().getValue();
+		final ShardTiming[] timings = shardTimings;
+		final ExecutorService executor = simulationExecutor;
+		final int shards = timings.length;
+		if ((executor == null) || (shards == 1)) {
+			for (int shard = 0; shard < shards; shard++)
+				simulateShard(shard, shards, value, now, timings[shard]);
+			return;
+		}
+		final CountDownLatch done = new CountDownLatch(shards - 1);
+		for (int shard = 1; shard < shards; shard++) {
+			final int s = shard;
+			final Runnable task = new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						simulateShard(s, shards, value, now, timings[s]);
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				task.run();
+			}
+		}
+		// The first shard is simulated by the calling thread
+		simulateShard(0, shards, value, now, timings[0]);
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+		if (logger.isDebugEnabled())
+			logger.debug("simulate: shards={} {}", shards, Arrays.toString(timings));
 	}
 
 }
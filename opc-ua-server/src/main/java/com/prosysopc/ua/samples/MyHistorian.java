@@ -6,12 +6,19 @@
  */
 package com.prosysopc.ua.samples;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.opcfoundation.ua.builtintypes.DataValue;
 import org.opcfoundation.ua.builtintypes.DateTime;
@@ -32,6 +39,7 @@ import org.opcfoundation.ua.core.HistoryReadValueId;
 import org.opcfoundation.ua.core.HistoryUpdateDetails;
 import org.opcfoundation.ua.core.HistoryUpdateResult;
 import org.opcfoundation.ua.core.PerformUpdateType;
+import org.opcfoundation.ua.core.ReadProcessedDetails;
 import org.opcfoundation.ua.core.StatusCodes;
 import org.opcfoundation.ua.core.TimestampsToReturn;
 import org.opcfoundation.ua.utils.NumericRange;
@@ -46,6 +54,7 @@ import com.prosysopc.ua.server.HistoryContinuationPoint;
 import com.prosysopc.ua.server.HistoryManagerListener;
 import com.prosysopc.ua.server.HistoryResult;
 import com.prosysopc.ua.server.ServiceContext;
+import com.prosysopc.ua.server.Session;
 import com.prosysopc.ua.server.nodes.UaObjectNode;
 import com.prosysopc.ua.server.nodes.UaVariableNode;
 
@@ -56,12 +65,77 @@ import com.prosysopc.ua.server.nodes.UaVariableNode;
  * HistoryManager, instead.
  */
 public class MyHistorian implements HistoryManagerListener {
+	/**
+	 * The aggregates calculated in onBeginHistoryRead for a ReadProcessed
+	 * request, used as the operationContext of the request.
+	 */
+	private static class ProcessedResults {
+		private final Map<NodeId, Map<NodeId, DataValue[]>> results = new HashMap<NodeId, Map<NodeId, DataValue[]>>();
+
+		DataValue[] get(NodeId nodeId, NodeId aggregateType) {
+			Map<NodeId, DataValue[]> nodeResults = results.get(nodeId);
+			return nodeResults == null ? null : nodeResults.get(aggregateType);
+		}
+
+		void put(NodeId nodeId, NodeId[] aggregateTypes, DataValue[][] values) {
+			Map<NodeId, DataValue[]> nodeResults = new HashMap<NodeId, DataValue[]>();
+			for (int i = 0; i < aggregateTypes.length; i++)
+				nodeResults.put(aggregateTypes[i], values[i]);
+			results.put(nodeId, nodeResults);
+		}
+	}
+
+	/**
+	 * The operationContext of a HistoryRead request: the start time of the
+	 * request and the aggregates of a ReadProcessed request.
+	 */
+	private static class ReadContext {
+		// The aggregates, or null if the request is not ReadProcessed
+		private final ProcessedResults processedResults;
+		private final long startNanos;
+
+		ReadContext(ProcessedResults processedResults, long startNanos) {
+			this.processedResults = processedResults;
+			this.startNanos = startNanos;
+		}
+	}
+
 	private static Logger logger = LoggerFactory.getLogger(MyHistorian.class);
+
+	// The maximum number of continuation points kept for each session
+	private static final int MAX_CONTINUATION_POINTS_PER_SESSION = 100;
+
+	// The continuation points returned to each session, the oldest first
+	private final Map<Session, Set<HistoryCursor>> continuationPoints = new WeakHashMap<Session, Set<HistoryCursor>>();
+
+	// The number of events kept in memory for each object
+	private int eventCapacity = 10000;
+
 	private final Map<UaObjectNode, EventHistory> eventHistories = new HashMap<UaObjectNode, EventHistory>();
 
+	// The maximum age (ms) and size (bytes) of the event journal of each object
+	private long eventJournalMaxAge = 30L * 24 * 60 * 60 * 1000;
+	private long eventJournalMaxSize = 256L * 1024 * 1024;
+
+	// The storages for the variable histories, per namespace URI
+	private final Map<String, HistoryStorage> storages = new HashMap<String, HistoryStorage>();
+
+	// The durations of the HistoryRead requests, or null
+	private volatile LatencyHistogram readHistogram;
+
+	// The number of 1 hour and 1 minute rollup buckets kept for each variable
+	private int rollupHourBuckets = ValueHistory.DEFAULT_HOUR_BUCKETS;
+	private int rollupMinuteBuckets = ValueHistory.DEFAULT_MINUTE_BUCKETS;
+
+	// The directory in which the storages are created
+	private File storageDirectory;
+
 	// The variable histories
 	private final Map<UaVariableNode, ValueHistory> variableHistories = new HashMap<UaVariableNode, ValueHistory>();
 
+	// The variable histories by NodeId
+	private final Map<NodeId, ValueHistory> variableHistoriesById = new HashMap<NodeId, ValueHistory>();
+
 	public MyHistorian() {
 		super();
 	}
@@ -76,7 +150,18 @@ public class MyHistorian implements HistoryManagerListener {
 	 *            the object to initialize
 	 */
 	public void addEventHistory(UaObjectNode node) {
-		EventHistory history = new EventHistory(node);
+		EventJournal journal = null;
+		if (storageDirectory != null)
+			try {
+				journal = new EventJournal(new File(new File(storageDirectory, "events"),
+						node.getNodeId().toString().replaceAll("[^A-Za-z0-9.-]", "_")));
+				journal.setMaxAge(eventJournalMaxAge);
+				journal.setMaxSize(eventJournalMaxSize);
+			} catch (IOException e) {
+				logger.error("Cannot store the event history of " + node.getNodeId() + ", keeping it in memory only",
+						e);
+			}
+		EventHistory history = new EventHistory(node, eventCapacity, journal);
 		// History can be read
 		EnumSet<EventNotifierClass> eventNotifier = node.getEventNotifier();
 		eventNotifier.add(EventNotifierClass.HistoryRead);
@@ -89,13 +174,21 @@ public class MyHistorian implements HistoryManagerListener {
 	 * Add the variable to the historian.
 	 * <p>
 	 * The historian will mark it to be historized and it will start monitoring
-	 * value changes for it.
+	 * value changes for it. The history of a variable, whose values do not
+	 * fit in a double, e.g. a String or Int64, is kept in memory only.
 	 *
 	 * @param variable
 	 *            the variable to initialize
 	 */
 	public void addVariableHistory(UaVariableNode variable) {
-		ValueHistory history = new ValueHistory(variable);
+		ValueHistory history;
+		try {
+			history = new ValueHistory(variable, getStorage(variable));
+		} catch (IOException e) {
+			logger.error("Cannot store the history of " + variable.getNodeId() + ", keeping it in memory only", e);
+			history = new ValueHistory(variable);
+		}
+		history.setRollupBuckets(rollupMinuteBuckets, rollupHourBuckets);
 		// History is being collected
 		variable.setHistorizing(true);
 		// History can be read
@@ -103,13 +196,72 @@ public class MyHistorian implements HistoryManagerListener {
 				AccessLevel.CurrentWrite, AccessLevel.HistoryRead);
 		variable.setAccessLevel(READ_WRITE_HISTORYREAD);
 		variableHistories.put(variable, history);
+		variableHistoriesById.put(variable.getNodeId(), history);
+	}
+
+	/**
+	 * Close the history storages and the event journals.
+	 */
+	public synchronized void close() {
+		for (HistoryStorage storage : storages.values())
+			storage.close();
+		storages.clear();
+		for (EventHistory history : eventHistories.values())
+			history.close();
+	}
+
+	/**
+	 * @return the number of events kept in memory for each object
+	 */
+	public int getEventCapacity() {
+		return eventCapacity;
+	}
+
+	/**
+	 * @return the maximum age of the events in the event journals (in
+	 *         milliseconds)
+	 */
+	public long getEventJournalMaxAge() {
+		return eventJournalMaxAge;
+	}
+
+	/**
+	 * @return the maximum size of the event journal of each object (in bytes)
+	 */
+	public long getEventJournalMaxSize() {
+		return eventJournalMaxSize;
+	}
+
+	/**
+	 * @return the number of 1 hour rollup buckets kept for each variable
+	 */
+	public int getRollupHourBuckets() {
+		return rollupHourBuckets;
+	}
+
+	/**
+	 * @return the number of 1 minute rollup buckets kept for each variable
+	 */
+	public int getRollupMinuteBuckets() {
+		return rollupMinuteBuckets;
+	}
+
+	/**
+	 * @return the directory in which the history storages are created, or
+	 *         null if the history is kept in memory only
+	 */
+	public File getStorageDirectory() {
+		return storageDirectory;
 	}
 
 	@Override
 	public Object onBeginHistoryRead(ServiceContext serviceContext, HistoryReadDetails details,
 			TimestampsToReturn timestampsToReturn, HistoryReadValueId[] nodesToRead,
 			HistoryContinuationPoint[] continuationPoints, HistoryResult[] results) throws ServiceException {
-		return null;
+		final long startNanos = System.nanoTime();
+		final ProcessedResults processedResults = details instanceof ReadProcessedDetails
+				? calculateAggregates((ReadProcessedDetails) details, nodesToRead) : null;
+		return new ReadContext(processedResults, startNanos);
 	}
 
 	@Override
@@ -160,6 +312,9 @@ public class MyHistorian implements HistoryManagerListener {
 	public void onEndHistoryRead(ServiceContext serviceContext, Object operationContext, HistoryReadDetails details,
 			TimestampsToReturn timestampsToReturn, HistoryReadValueId[] nodesToRead,
 			HistoryContinuationPoint[] continuationPoints, HistoryResult[] results) throws ServiceException {
+		final LatencyHistogram histogram = readHistogram;
+		if ((histogram != null) && (operationContext instanceof ReadContext))
+			histogram.record(System.nanoTime() - ((ReadContext) operationContext).startNanos);
 	}
 
 	@Override
@@ -190,11 +345,10 @@ public class MyHistorian implements HistoryManagerListener {
 		EventHistory history = eventHistories.get(node);
 		if (history != null) {
 			List<HistoryEventFieldList> events = new ArrayList<HistoryEventFieldList>();
-			int firstIndex = continuationPoint == null ? 0 : (Integer) continuationPoint;
-			Integer newContinuationPoint = history.readEvents(startTime, endTime, numValuesPerNode.intValue(), filter,
-					events, firstIndex);
+			HistoryCursor cursor = history.readEvents(startTime, endTime, numValuesPerNode.intValue(), filter,
+					events, getCursor(serviceContext, continuationPoint));
 			historyEvent.setEvents(events.toArray(new HistoryEventFieldList[events.size()]));
-			return newContinuationPoint;
+			return addCursor(serviceContext, cursor);
 		} else
 			throw new StatusException(StatusCodes.Bad_NoData);
 	}
@@ -215,7 +369,21 @@ public class MyHistorian implements HistoryManagerListener {
 			throws StatusException {
 		logger.debug("onReadProcessed: nodeId={}, startTime={}, endime={}, processingInterval={}", nodeId, startTime,
 				endTime, processingInterval);
-		throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
+		ValueHistory history = variableHistories.get(node);
+		if (history == null)
+			throw new StatusException(StatusCodes.Bad_NoData);
+		if (!AggregateCalculator.isSupported(aggregateType))
+			throw new StatusException(StatusCodes.Bad_AggregateNotSupported);
+		DataValue[] values = null;
+		final ProcessedResults processedResults = operationContext instanceof ReadContext
+				? ((ReadContext) operationContext).processedResults : null;
+		if (processedResults != null)
+			values = processedResults.get(nodeId, aggregateType);
+		if (values == null)
+			values = history.readProcessed(startTime, endTime, processingInterval, new NodeId[] { aggregateType },
+					aggregateConfiguration)[0];
+		historyData.setDataValues(values);
+		return null;
 	}
 
 	@Override
@@ -227,11 +395,10 @@ public class MyHistorian implements HistoryManagerListener {
 		ValueHistory history = variableHistories.get(node);
 		if (history != null) {
 			List<DataValue> values = new ArrayList<DataValue>();
-			int firstIndex = continuationPoint == null ? 0 : (Integer) continuationPoint;
-			Integer newContinuationPoint = history.readRaw(startTime, endTime, numValuesPerNode.intValue(),
-					returnBounds, firstIndex, values);
+			HistoryCursor cursor = history.readRaw(startTime, endTime, numValuesPerNode.intValue(), returnBounds,
+					getCursor(serviceContext, continuationPoint), values);
 			historyData.setDataValues(values.toArray(new DataValue[values.size()]));
-			return newContinuationPoint;
+			return addCursor(serviceContext, cursor);
 		}
 		return null;
 	}
@@ -250,6 +417,201 @@ public class MyHistorian implements HistoryManagerListener {
 		throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
 	}
 
+	/**
+	 * @param eventCapacity
+	 *            the number of events kept in memory for each object. With a
+	 *            storage directory, the older events are read from the event
+	 *            journal.
+	 */
+	public void setEventCapacity(int eventCapacity) {
+		this.eventCapacity = eventCapacity;
+		for (EventHistory history : eventHistories.values())
+			history.setCapacity(eventCapacity);
+	}
+
+	/**
+	 * @param eventJournalMaxAge
+	 *            the maximum age of the events in the event journals (in
+	 *            milliseconds)
+	 */
+	public void setEventJournalMaxAge(long eventJournalMaxAge) {
+		this.eventJournalMaxAge = eventJournalMaxAge;
+		for (EventHistory history : eventHistories.values())
+			if (history.getJournal() != null)
+				history.getJournal().setMaxAge(eventJournalMaxAge);
+	}
+
+	/**
+	 * @param eventJournalMaxSize
+	 *            the maximum size of the event journal of each object (in
+	 *            bytes)
+	 */
+	public void setEventJournalMaxSize(long eventJournalMaxSize) {
+		this.eventJournalMaxSize = eventJournalMaxSize;
+		for (EventHistory history : eventHistories.values())
+			if (history.getJournal() != null)
+				history.getJournal().setMaxSize(eventJournalMaxSize);
+	}
+
+	/**
+	 * Record the durations of the HistoryRead requests.
+	 *
+	 * @param metrics
+	 *            the metrics to record to, or null to stop recording
+	 * @param nodeManager
+	 *            the name of the node manager, whose history is read
+	 */
+	public void setMetrics(ServiceMetrics metrics, String nodeManager) {
+		readHistogram = metrics == null ? null : metrics.getHistogram(nodeManager, "HistoryRead");
+	}
+
+	/**
+	 * Define how many rollup buckets are kept for each variable, which are
+	 * used to calculate the aggregates of long periods. Each bucket takes
+	 * about 100 bytes.
+	 *
+	 * @param minuteBuckets
+	 *            the number of 1 minute buckets (default a week)
+	 * @param hourBuckets
+	 *            the number of 1 hour buckets (default a year)
+	 */
+	public void setRollupBuckets(int minuteBuckets, int hourBuckets) {
+		rollupMinuteBuckets = minuteBuckets;
+		rollupHourBuckets = hourBuckets;
+		for (ValueHistory history : variableHistories.values())
+			history.setRollupBuckets(minuteBuckets, hourBuckets);
+	}
+
+	/**
+	 * Define a directory for storing the variable histories to disk. A
+	 * {@link MappedHistoryStore} is created in a sub directory for each
+	 * namespace, and an {@link EventJournal} for each object under the
+	 * "events" sub directory. Must be called before the nodes are added.
+	 *
+	 * @param storageDirectory
+	 *            the directory, or null to keep the history in memory only
+	 */
+	public void setStorageDirectory(File storageDirectory) {
+		this.storageDirectory = storageDirectory;
+	}
+
+	/**
+	 * Remember a continuation point returned to the session. Only the latest
+	 * continuation points are kept for each session.
+	 *
+	 * @param serviceContext
+	 *            the context of the request
+	 * @param cursor
+	 *            the cursor returned by the history, or null
+	 * @return the continuation point to return to the client
+	 */
+	private synchronized HistoryCursor addCursor(ServiceContext serviceContext, HistoryCursor cursor) {
+		if (cursor == null)
+			return null;
+		final Session session = serviceContext.getSession();
+		Set<HistoryCursor> cursors = continuationPoints.get(session);
+		if (cursors == null) {
+			cursors = new LinkedHashSet<HistoryCursor>();
+			continuationPoints.put(session, cursors);
+		}
+		cursors.add(cursor);
+		if (cursors.size() > MAX_CONTINUATION_POINTS_PER_SESSION) {
+			// Forget the oldest one
+			Iterator<HistoryCursor> i = cursors.iterator();
+			i.next();
+			i.remove();
+		}
+		return cursor;
+	}
+
+	/**
+	 * Calculate all the aggregates requested for each node in one pass over
+	 * its history.
+	 *
+	 * @param details
+	 *            the details of the ReadProcessed request
+	 * @param nodesToRead
+	 *            the nodes to read
+	 * @return the results, or null if no aggregates could be calculated in
+	 *         advance
+	 */
+	private ProcessedResults calculateAggregates(ReadProcessedDetails details, HistoryReadValueId[] nodesToRead) {
+		final NodeId[] aggregateTypes = details.getAggregateType();
+		if ((aggregateTypes == null) || (aggregateTypes.length != nodesToRead.length))
+			return null;
+		// Collect the aggregates requested for each node
+		Map<NodeId, List<NodeId>> requests = new LinkedHashMap<NodeId, List<NodeId>>();
+		for (int i = 0; i < nodesToRead.length; i++) {
+			final NodeId nodeId = nodesToRead[i].getNodeId();
+			if (!variableHistoriesById.containsKey(nodeId) || !AggregateCalculator.isSupported(aggregateTypes[i]))
+				continue;
+			List<NodeId> aggregates = requests.get(nodeId);
+			if (aggregates == null) {
+				aggregates = new ArrayList<NodeId>();
+				requests.put(nodeId, aggregates);
+			}
+			if (!aggregates.contains(aggregateTypes[i]))
+				aggregates.add(aggregateTypes[i]);
+		}
+		ProcessedResults results = new ProcessedResults();
+		for (Map.Entry<NodeId, List<NodeId>> request : requests.entrySet()) {
+			final NodeId[] aggregates = request.getValue().toArray(new NodeId[request.getValue().size()]);
+			try {
+				results.put(request.getKey(), aggregates,
+						variableHistoriesById.get(request.getKey()).readProcessed(details.getStartTime(),
+								details.getEndTime(), details.getProcessingInterval(), aggregates,
+								details.getAggregateConfiguration()));
+			} catch (StatusException e) {
+				// onReadProcessed will report the error for the node
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Validate a continuation point from the client. Each continuation point
+	 * can be used once.
+	 *
+	 * @param serviceContext
+	 *            the context of the request
+	 * @param continuationPoint
+	 *            the continuation point, or null for the first request
+	 * @return the cursor to continue from, or null
+	 * @throws StatusException
+	 *             if the continuation point is not known (any more)
+	 */
+	private synchronized HistoryCursor getCursor(ServiceContext serviceContext, Object continuationPoint)
+			throws StatusException {
+		if (continuationPoint == null)
+			return null;
+		final Set<HistoryCursor> cursors = continuationPoints.get(serviceContext.getSession());
+		if ((cursors == null) || !cursors.remove(continuationPoint))
+			throw new StatusException(StatusCodes.Bad_ContinuationPointInvalid);
+		return (HistoryCursor) continuationPoint;
+	}
+
+	/**
+	 * Get the storage for the namespace of the variable, opening it if
+	 * necessary.
+	 *
+	 * @param variable
+	 *            the variable
+	 * @return the storage or null, if no storage directory is defined
+	 * @throws IOException
+	 *             if the storage cannot be opened
+	 */
+	private synchronized HistoryStorage getStorage(UaVariableNode variable) throws IOException {
+		if (storageDirectory == null)
+			return null;
+		final String namespaceUri = variable.getNodeManager().getNamespaceUri();
+		HistoryStorage storage = storages.get(namespaceUri);
+		if (storage == null) {
+			storage = new MappedHistoryStore(new File(storageDirectory, namespaceUri.replaceAll("[^A-Za-z0-9.-]", "_")));
+			storages.put(namespaceUri, storage);
+		}
+		return storage;
+	}
+
 	@Override
 	public void onUpdateStructureData(ServiceContext serviceContext, Object operationContext, NodeId nodeId,
 			UaNode node, DataValue[] updateValues, PerformUpdateType performUpdateType, StatusCode[] operationResults,
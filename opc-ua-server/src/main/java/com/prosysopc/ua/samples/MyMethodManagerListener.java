@@ -29,6 +29,8 @@ import com.prosysopc.ua.server.ServiceContext;
 public class MyMethodManagerListener implements CallableListener {
 
 	private static Logger logger = LoggerFactory.getLogger(MyMethodManagerListener.class);
+	// The durations of the method calls, or null
+	private volatile LatencyHistogram callHistogram;
 	final private UaNode myMethod;
 
 	/**
@@ -44,6 +46,31 @@ public class MyMethodManagerListener implements CallableListener {
 	public boolean onCall(ServiceContext serviceContext, NodeId objectId, UaNode object, NodeId methodId,
 			UaMethod method, final Variant[] inputArguments, final StatusCode[] inputArgumentResults,
 			final DiagnosticInfo[] inputArgumentDiagnosticInfos, final Variant[] outputs) throws StatusException {
+		final LatencyHistogram histogram = callHistogram;
+		if (histogram == null)
+			return call(methodId, inputArguments, inputArgumentResults, inputArgumentDiagnosticInfos, outputs);
+		final long start = System.nanoTime();
+		try {
+			return call(methodId, inputArguments, inputArgumentResults, inputArgumentDiagnosticInfos, outputs);
+		} finally {
+			histogram.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Record the durations of the method calls.
+	 *
+	 * @param metrics
+	 *            the metrics to record to, or null to stop recording
+	 * @param nodeManager
+	 *            the name of the node manager of the methods
+	 */
+	public void setMetrics(ServiceMetrics metrics, String nodeManager) {
+		callHistogram = metrics == null ? null : metrics.getHistogram(nodeManager, "Call");
+	}
+
+	private boolean call(NodeId methodId, final Variant[] inputArguments, final StatusCode[] inputArgumentResults,
+			final DiagnosticInfo[] inputArgumentDiagnosticInfos, final Variant[] outputs) throws StatusException {
 		// Handle method calls
 		// Note that the outputs array is already allocated
 		if (methodId.equals(myMethod.getNodeId())) {
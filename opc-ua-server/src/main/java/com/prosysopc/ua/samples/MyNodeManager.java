@@ -6,7 +6,9 @@
  */
 package com.prosysopc.ua.samples;
 
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
 
@@ -32,7 +34,6 @@ import com.prosysopc.ua.nodes.UaObject;
 import com.prosysopc.ua.nodes.UaObjectType;
 import com.prosysopc.ua.nodes.UaType;
 import com.prosysopc.ua.nodes.UaVariable;
-import com.prosysopc.ua.server.CallableListener;
 import com.prosysopc.ua.server.MethodManagerUaNode;
 import com.prosysopc.ua.server.ModellingRule;
 import com.prosysopc.ua.server.NodeManagerUaNode;
@@ -56,8 +57,41 @@ import com.prosysopc.ua.types.opcua.server.FolderTypeNode;
  * NodeManagerUaNode and initializes the nodes for the demo.
  */
 public class MyNodeManager extends NodeManagerUaNode {
+	/**
+	 * The variables, which publish a latency histogram of the service
+	 * metrics.
+	 */
+	private static class MetricNodes {
+		private final PlainVariable<Long> count;
+		private final PlainVariable<Double> max;
+		private final PlainVariable<Double> mean;
+		private final PlainVariable<Double> p50;
+		private final PlainVariable<Double> p99;
+
+		MetricNodes(PlainVariable<Long> count, PlainVariable<Double> mean, PlainVariable<Double> p50,
+				PlainVariable<Double> p99, PlainVariable<Double> max) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		void update(LatencyHistogram histogram) {
+			count.setCurrentValue(histogram.getCount());
+			mean.setCurrentValue(histogram.getMeanNanos() / 1e6);
+			p50.setCurrentValue(histogram.getPercentileNanos(50) / 1e6);
+			p99.setCurrentValue(histogram.getPercentileNanos(99) / 1e6);
+			max.setCurrentValue(histogram.getMaxNanos() / 1e6);
+		}
+	}
+
 	public static final String NAMESPACE = "http://www.prosysopc.com/OPCUA/SampleAddressSpace";
 	private static final Logger logger = LoggerFactory.getLogger(MyNodeManager.class);
+	// The name of the node manager in the ServiceMetrics
+	private static final String METRICS_NAME = "MyNodeManager";
+	// The name of the folder of the service metrics in the Objects folder
+	private static final String METRICS_FOLDER = "ServiceMetrics";
 	private static boolean stackTraceOnException;
 
 	/**
@@ -90,12 +124,18 @@ public class MyNodeManager extends NodeManagerUaNode {
 
 	private PlainMethod myMethod;
 
-	private CallableListener myMethodManagerListener;
+	private MyMethodManagerListener myMethodManagerListener;
 
 	private FolderTypeNode myObjectsFolder;
 
 	private PlainVariable<Boolean> mySwitch;
 
+	// The folders of the service metrics by their paths
+	private final Map<String, FolderTypeNode> metricsFolders = new HashMap<String, FolderTypeNode>();
+
+	// The variables of the service metrics by "nodeManager/service"
+	private final Map<String, MetricNodes> metricNodes = new HashMap<String, MetricNodes>();
+
 	double dx = 1;
 
 	final MyEventManagerListener myEventManagerListener = new MyEventManagerListener();
@@ -141,6 +181,16 @@ public class MyNodeManager extends NodeManagerUaNode {
 		ev.triggerEvent(null);
 	}
 
+	/**
+	 * Record the durations of the method calls of the node manager.
+	 *
+	 * @param metrics
+	 *            the metrics to record to, or null to stop recording
+	 */
+	public void setMetrics(ServiceMetrics metrics) {
+		myMethodManagerListener.setMetrics(metrics, METRICS_NAME);
+	}
+
 	/**
 	 *
 	 */
@@ -171,6 +221,30 @@ public class MyNodeManager extends NodeManagerUaNode {
 
 	}
 
+	/**
+	 * Publish the current values of the service metrics in the address
+	 * space, in Objects/ServiceMetrics/nodeManager/service. The nodes of new
+	 * metrics are created on demand. A metric that fails is logged and
+	 * skipped, so that it does not stop the other metrics or the later
+	 * updates.
+	 *
+	 * @param metrics
+	 *            the metrics
+	 */
+	public synchronized void updateMetrics(ServiceMetrics metrics) {
+		for (Map.Entry<String, LatencyHistogram> e : metrics.getHistograms().entrySet())
+			try {
+				MetricNodes nodes = metricNodes.get(e.getKey());
+				if (nodes == null) {
+					nodes = createMetricNodes(e.getKey());
+					metricNodes.put(e.getKey(), nodes);
+				}
+				nodes.update(e.getValue());
+			} catch (Exception ex) {
+				logger.error("Error while updating the metrics of " + e.getKey(), ex);
+			}
+	}
+
 	/**
 	 * Creates an alarm, if it is not active
 	 *
@@ -357,6 +431,39 @@ public class MyNodeManager extends NodeManagerUaNode {
 		m.addCallListener(myMethodManagerListener);
 	}
 
+	/**
+	 * Create the variables of a metric in the folders of the node manager and
+	 * the service.
+	 *
+	 * @param key
+	 *            the name of the metric, "nodeManager/service"
+	 */
+	private MetricNodes createMetricNodes(String key) throws StatusException, UaInstantiationException {
+		final UaObject objectsFolder = getServer().getNodeManagerRoot().getObjectsFolder();
+		final int slash = key.indexOf('/');
+		final FolderTypeNode rootFolder = getMetricsFolder(objectsFolder, METRICS_FOLDER, METRICS_FOLDER);
+		final FolderTypeNode nodeManagerFolder = getMetricsFolder(rootFolder,
+				METRICS_FOLDER + "/" + key.substring(0, slash), key.substring(0, slash));
+		final String path = METRICS_FOLDER + "/" + key;
+		final FolderTypeNode folder = getMetricsFolder(nodeManagerFolder, path, key.substring(slash + 1));
+		final PlainVariable<Long> count = createMetricVariable(folder, path, "Count", Identifiers.Int64);
+		final PlainVariable<Double> mean = createMetricVariable(folder, path, "MeanMs", Identifiers.Double);
+		final PlainVariable<Double> p50 = createMetricVariable(folder, path, "P50Ms", Identifiers.Double);
+		final PlainVariable<Double> p99 = createMetricVariable(folder, path, "P99Ms", Identifiers.Double);
+		final PlainVariable<Double> max = createMetricVariable(folder, path, "MaxMs", Identifiers.Double);
+		return new MetricNodes(count, mean, p50, p99, max);
+	}
+
+	private <T> PlainVariable<T> createMetricVariable(FolderTypeNode folder, String path, String name,
+			NodeId dataTypeId) throws StatusException {
+		final NodeId nodeId = new NodeId(getNamespaceIndex(), path + "/" + name);
+		final PlainVariable<T> variable = new PlainVariable<T>(this, nodeId, name, LocalizedText.NO_LOCALE);
+		variable.setDataTypeId(dataTypeId);
+		variable.setTypeDefinitionId(Identifiers.BaseDataVariableType);
+		folder.addComponent(variable);
+		return variable;
+	}
+
 	/**
 	 * @throws StatusException
 	 *             if the necessary type node(s) are not found
@@ -451,6 +558,27 @@ public class MyNodeManager extends NodeManagerUaNode {
 		getServer().registerClass(MyEventType.class, myEventTypeId);
 	}
 
+	/**
+	 * Get a folder of the service metrics, creating it if necessary.
+	 *
+	 * @param parent
+	 *            the parent of the folder
+	 * @param path
+	 *            the path of the folder, used as its NodeId
+	 * @param name
+	 *            the name of the folder
+	 */
+	private FolderTypeNode getMetricsFolder(UaNode parent, String path, String name)
+			throws StatusException, UaInstantiationException {
+		FolderTypeNode folder = metricsFolders.get(path);
+		if (folder == null) {
+			folder = createInstance(FolderTypeNode.class, name, new NodeId(getNamespaceIndex(), path));
+			this.addNodeAndReference(parent, folder, Identifiers.Organizes);
+			metricsFolders.put(path, folder);
+		}
+		return folder;
+	}
+
 	/**
 	 *
 	 */
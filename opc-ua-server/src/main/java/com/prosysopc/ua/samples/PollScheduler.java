@@ -0,0 +1,210 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls the items of a {@link PollableDataSource} and pushes the values to a
+ * {@link DataUpdateQueue}.
+ * <p>
+ * Each item has its own poll interval, or none if nobody needs it. The items
+ * with the same interval form a group, which is polled by one periodic task
+ * in batches. Changing the interval of an item only moves it from one group
+ * to another, so the schedule is never planned again from scratch.
+ */
+class PollScheduler {
+	/**
+	 * The items polled at the same interval.
+	 */
+	private final class PollGroup implements Runnable {
+		private ScheduledFuture<?> future;
+		// The handles of the group; the order is not significant
+		private int[] handles = new int[16];
+		private final long interval;
+		// Only used by the poll task, which never runs concurrently
+		private int[] pollHandles = new int[0];
+		private int size;
+
+		PollGroup(long interval) {
+			this.interval = interval;
+		}
+
+		@Override
+		public void run() {
+			final int count;
+			synchronized (PollScheduler.this) {
+				count = size;
+				if (pollHandles.length < count)
+					pollHandles = new int[handles.length];
+				System.arraycopy(handles, 0, pollHandles, 0, count);
+			}
+			for (int first = 0; first < count; first += batchSize) {
+				final int n = Math.min(batchSize, count - first);
+				System.arraycopy(pollHandles, first, batchHandles, 0, n);
+				try {
+					source.read(n, batchHandles, batchValues, batchStatuses, batchTimestamps);
+					queue.put(n, batchHandles, batchValues, batchStatuses, batchTimestamps);
+				} catch (IOException e) {
+					logger.warn("Poll failed: interval={} items={}: {}", interval, n, e.toString());
+				} catch (RuntimeException e) {
+					logger.error("Poll failed: interval=" + interval, e);
+				}
+			}
+			polls++;
+			polledItems += count;
+		}
+
+		void add(int handle) {
+			if (size == handles.length)
+				handles = Arrays.copyOf(handles, size * 2);
+			positions[handle] = size;
+			handles[size++] = handle;
+		}
+
+		void remove(int handle) {
+			final int position = positions[handle];
+			final int last = handles[--size];
+			handles[position] = last;
+			positions[last] = position;
+		}
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(PollScheduler.class);
+
+	// The buffers of the poll tasks; the tasks of one scheduler must not run
+	// concurrently, so that they can share them
+	private final int[] batchHandles;
+	private final int batchSize;
+	private final int[] batchStatuses;
+	private final long[] batchTimestamps;
+	private final double[] batchValues;
+	private final ScheduledExecutorService executor;
+	private final Map<Long, PollGroup> groups = new HashMap<Long, PollGroup>();
+	// The poll interval of each item in milliseconds, or 0 if not polled
+	private final long[] intervals;
+	private volatile long polledItems;
+	private volatile long polls;
+	// The position of each polled item in the handles of its group
+	private final int[] positions;
+	private final DataUpdateQueue queue;
+	private final PollableDataSource source;
+
+	/**
+	 * @param source
+	 *            the source to poll
+	 * @param queue
+	 *            the queue to push the values to
+	 * @param executor
+	 *            the executor for the poll tasks; it must have a single
+	 *            thread
+	 * @param batchSize
+	 *            the maximum number of items read from the source at once
+	 */
+	public PollScheduler(PollableDataSource source, DataUpdateQueue queue, ScheduledExecutorService executor,
+			int batchSize) {
+		super();
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be a positive value");
+		this.source = source;
+		this.queue = queue;
+		this.executor = executor;
+		this.batchSize = batchSize;
+		batchHandles = new int[batchSize];
+		batchStatuses = new int[batchSize];
+		batchTimestamps = new long[batchSize];
+		batchValues = new double[batchSize];
+		intervals = new long[queue.getCapacity()];
+		positions = new int[queue.getCapacity()];
+	}
+
+	/**
+	 * @return the number of poll groups, i.e. different intervals
+	 */
+	public synchronized int getGroupCount() {
+		return groups.size();
+	}
+
+	/**
+	 * @param handle
+	 *            the handle of the item
+	 * @return the poll interval of the item in milliseconds, or 0 if it is
+	 *         not polled
+	 */
+	public synchronized long getInterval(int handle) {
+		return intervals[handle];
+	}
+
+	/**
+	 * @return the total number of items polled
+	 */
+	public long getPolledItemCount() {
+		return polledItems;
+	}
+
+	/**
+	 * @return the number of poll cycles of all groups
+	 */
+	public long getPollCount() {
+		return polls;
+	}
+
+	/**
+	 * Change the poll interval of an item.
+	 *
+	 * @param handle
+	 *            the handle of the item
+	 * @param interval
+	 *            the new interval in milliseconds, or 0 to stop polling the
+	 *            item
+	 */
+	public synchronized void setInterval(int handle, long interval) {
+		if (interval < 0)
+			throw new IllegalArgumentException("interval must not be negative");
+		final long oldInterval = intervals[handle];
+		if (oldInterval == interval)
+			return;
+		if (oldInterval != 0) {
+			final PollGroup group = groups.get(oldInterval);
+			group.remove(handle);
+			if (group.size == 0) {
+				group.future.cancel(false);
+				groups.remove(oldInterval);
+			}
+		}
+		intervals[handle] = interval;
+		if (interval != 0) {
+			PollGroup group = groups.get(interval);
+			if (group == null) {
+				group = new PollGroup(interval);
+				groups.put(interval, group);
+				group.future = executor.scheduleAtFixedRate(group, 0, interval, TimeUnit.MILLISECONDS);
+			}
+			group.add(handle);
+		}
+		logger.debug("setInterval: handle={} interval={} groups={}", handle, interval, groups.size());
+	}
+
+	/**
+	 * Stop all polling.
+	 */
+	public synchronized void shutdown() {
+		for (PollGroup group : groups.values())
+			group.future.cancel(false);
+		groups.clear();
+		Arrays.fill(intervals, 0);
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.io.IOException;
+
+/**
+ * A {@link DataSource}, whose values are read on demand, for example from a
+ * device that must be polled. {@link MyBigNodeManager} polls only the
+ * monitored items, at the fastest sampling interval of their monitored
+ * items.
+ */
+public interface PollableDataSource extends DataSource {
+	/**
+	 * Read the current values of a batch of items.
+	 *
+	 * @param count
+	 *            the number of items to read
+	 * @param handles
+	 *            the handles of the items
+	 * @param values
+	 *            the array to fill with the values
+	 * @param statuses
+	 *            the array to fill with the status code bits of the values
+	 * @param timestamps
+	 *            the array to fill with the source timestamps in DateTime
+	 *            ticks, or 0 to use the time when the value is applied
+	 * @throws IOException
+	 *             if the underlying system cannot be read
+	 */
+	void read(int count, int[] handles, double[] values, int[] statuses, long[] timestamps) throws IOException;
+}
@@ -0,0 +1,306 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+/**
+ * Pre-calculated aggregate statistics of a variable history in fixed-length
+ * buckets, e.g. one per minute.
+ * <p>
+ * The tier is updated incrementally as the samples arrive. The statistics of
+ * each bucket (see {@link AggregateBucket}) are stored in columns of primitive
+ * arrays, which grow on demand up to the maximum number of buckets, after
+ * which the oldest buckets are overwritten. The last bucket is the one that
+ * is currently being filled.
+ * <p>
+ * The class is not thread safe; the owner is responsible for the locking.
+ */
+class RollupTier {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] badCounts = new int[0];
+	private int[] counts = new int[0];
+	private final AggregateBucket current = new AggregateBucket();
+	private final long duration;
+	private double[] firsts = new double[0];
+	private long[] firstTimes = new long[0];
+	private int head;
+	private double[] lasts = new double[0];
+	private long[] lastTimes = new long[0];
+	private int maxBuckets;
+	private double[] maxs = new double[0];
+	private long[] maxTimes = new long[0];
+	private double[] mins = new double[0];
+	private long[] minTimes = new long[0];
+	private int size;
+	private long[] starts = new long[0];
+	private double[] sums = new double[0];
+	private int[] uncertainCounts = new int[0];
+	private long validFrom = Long.MIN_VALUE;
+	private int[] worstStatuses = new int[0];
+
+	/**
+	 * @param duration
+	 *            the length of each bucket, in DateTime ticks
+	 * @param maxBuckets
+	 *            the maximum number of buckets to keep
+	 */
+	public RollupTier(long duration, int maxBuckets) {
+		super();
+		if ((duration <= 0) || (maxBuckets <= 0))
+			throw new IllegalArgumentException("duration and maxBuckets must be positive values");
+		this.duration = duration;
+		this.maxBuckets = maxBuckets;
+	}
+
+	/**
+	 * Add a sample to the bucket it belongs to.
+	 *
+	 * @param time
+	 *            the timestamp of the sample
+	 * @param value
+	 *            the value of the sample
+	 * @param status
+	 *            the status code bits of the sample
+	 */
+	public void add(long time, double value, int status) {
+		final long start = getBucketStart(time);
+		int index;
+		if ((size > 0) && (start == getStart(size - 1)))
+			index = size - 1;
+		else if ((size == 0) || (start > getStart(size - 1))) {
+			append(start);
+			index = size - 1;
+		} else {
+			// A late sample: update the bucket, if we still have it
+			index = lowerBound(start);
+			if ((index == size) || (getStart(index) != start))
+				return;
+		}
+		get(index, current);
+		current.add(time, value, status, false);
+		set(index, current);
+	}
+
+	/**
+	 * Read the statistics of a bucket.
+	 *
+	 * @param index
+	 *            the index of the bucket, 0 being the oldest one
+	 * @param bucket
+	 *            the bucket to fill in
+	 */
+	public void get(int index, AggregateBucket bucket) {
+		final int i = physical(index);
+		bucket.count = counts[i];
+		bucket.badCount = badCounts[i];
+		bucket.uncertainCount = uncertainCounts[i];
+		bucket.sum = sums[i];
+		bucket.min = mins[i];
+		bucket.minTime = minTimes[i];
+		bucket.max = maxs[i];
+		bucket.maxTime = maxTimes[i];
+		bucket.first = firsts[i];
+		bucket.firstTime = firstTimes[i];
+		bucket.last = lasts[i];
+		bucket.lastTime = lastTimes[i];
+		bucket.worstStatus = worstStatuses[i];
+	}
+
+	/**
+	 * @param time
+	 *            a timestamp
+	 * @return the start time of the bucket containing the timestamp
+	 */
+	public long getBucketStart(long time) {
+		final long offset = time % duration;
+		return offset < 0 ? time - offset - duration : time - offset;
+	}
+
+	/**
+	 * @return the length of each bucket, in DateTime ticks
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return the maximum number of buckets to keep
+	 */
+	public int getMaxBuckets() {
+		return maxBuckets;
+	}
+
+	/**
+	 * @param index
+	 *            the index of the bucket
+	 * @return the start time of the bucket
+	 */
+	public long getStart(int index) {
+		return starts[physical(index)];
+	}
+
+	/**
+	 * @return the time from which on the tier contains all the samples; the
+	 *         buckets before it have been evicted or were never collected
+	 */
+	public long getValidFrom() {
+		return validFrom;
+	}
+
+	/**
+	 * Find the first bucket, which starts at or after the given time.
+	 *
+	 * @param time
+	 *            the time to look for
+	 * @return the index of the bucket, or size() if there is no such bucket
+	 */
+	public int lowerBound(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (getStart(mid) < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Replace the statistics of a bucket, e.g. after samples were deleted.
+	 *
+	 * @param index
+	 *            the index of the bucket
+	 * @param bucket
+	 *            the new statistics
+	 */
+	public void set(int index, AggregateBucket bucket) {
+		final int i = physical(index);
+		counts[i] = bucket.count;
+		badCounts[i] = bucket.badCount;
+		uncertainCounts[i] = bucket.uncertainCount;
+		sums[i] = bucket.sum;
+		mins[i] = bucket.min;
+		minTimes[i] = bucket.minTime;
+		maxs[i] = bucket.max;
+		maxTimes[i] = bucket.maxTime;
+		firsts[i] = bucket.first;
+		firstTimes[i] = bucket.firstTime;
+		lasts[i] = bucket.last;
+		lastTimes[i] = bucket.lastTime;
+		worstStatuses[i] = bucket.worstStatus;
+	}
+
+	/**
+	 * Change the maximum number of buckets to keep. If the tier contains more
+	 * buckets, the oldest ones are evicted and the columns are shrunk.
+	 *
+	 * @param maxBuckets
+	 *            the maximum number of buckets to keep
+	 */
+	public void setMaxBuckets(int maxBuckets) {
+		if (maxBuckets <= 0)
+			throw new IllegalArgumentException("maxBuckets must be a positive value");
+		this.maxBuckets = maxBuckets;
+		while (size > maxBuckets)
+			evict();
+		if (starts.length > maxBuckets)
+			resize(maxBuckets);
+	}
+
+	/**
+	 * Define the time from which on the tier contains all the samples, e.g.
+	 * when the earlier samples are only available in a storage.
+	 *
+	 * @param validFrom
+	 *            the time to set
+	 */
+	public void setValidFrom(long validFrom) {
+		this.validFrom = validFrom;
+	}
+
+	/**
+	 * @return the number of buckets in the tier
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Add a new, empty bucket to the end, evicting the oldest one if the tier
+	 * is full.
+	 */
+	private void append(long start) {
+		if (size == starts.length) {
+			if (size < maxBuckets)
+				resize(Math.min(Math.max(size * 2, INITIAL_CAPACITY), maxBuckets));
+			else
+				evict();
+		}
+		final int i = physical(size);
+		size++;
+		starts[i] = start;
+		current.reset();
+		set(size - 1, current);
+	}
+
+	/**
+	 * Remove the oldest bucket.
+	 */
+	private void evict() {
+		head = physical(1);
+		size--;
+		validFrom = Math.max(validFrom, getStart(0));
+	}
+
+	private int physical(int index) {
+		final int i = head + index;
+		return i >= starts.length ? i - starts.length : i;
+	}
+
+	private void resize(int capacity) {
+		// Unroll the ring, so that the oldest bucket is at index 0
+		final int oldCapacity = starts.length;
+		starts = unroll(starts, oldCapacity, capacity);
+		counts = unroll(counts, oldCapacity, capacity);
+		badCounts = unroll(badCounts, oldCapacity, capacity);
+		uncertainCounts = unroll(uncertainCounts, oldCapacity, capacity);
+		worstStatuses = unroll(worstStatuses, oldCapacity, capacity);
+		sums = unroll(sums, oldCapacity, capacity);
+		mins = unroll(mins, oldCapacity, capacity);
+		maxs = unroll(maxs, oldCapacity, capacity);
+		firsts = unroll(firsts, oldCapacity, capacity);
+		lasts = unroll(lasts, oldCapacity, capacity);
+		minTimes = unroll(minTimes, oldCapacity, capacity);
+		maxTimes = unroll(maxTimes, oldCapacity, capacity);
+		firstTimes = unroll(firstTimes, oldCapacity, capacity);
+		lastTimes = unroll(lastTimes, oldCapacity, capacity);
+		head = 0;
+	}
+
+	private double[] unroll(double[] a, int oldCapacity, int capacity) {
+		double[] b = new double[capacity];
+		for (int i = 0; i < size; i++)
+			b[i] = a[(head + i) % oldCapacity];
+		return b;
+	}
+
+	private int[] unroll(int[] a, int oldCapacity, int capacity) {
+		int[] b = new int[capacity];
+		for (int i = 0; i < size; i++)
+			b[i] = a[(head + i) % oldCapacity];
+		return b;
+	}
+
+	private long[] unroll(long[] a, int oldCapacity, int capacity) {
+		long[] b = new long[capacity];
+		for (int i = 0; i < size; i++)
+			b[i] = a[(head + i) % oldCapacity];
+		return b;
+	}
+}
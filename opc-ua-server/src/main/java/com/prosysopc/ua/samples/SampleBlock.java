@@ -0,0 +1,318 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.util.Arrays;
+
+/**
+ * An immutable, compressed block of time-ordered history samples.
+ * <p>
+ * The samples are encoded to a bit stream in the style of the Gorilla time
+ * series compression: the timestamps as delta-of-deltas, the values XORed with
+ * the previous value and the status codes as a flag, when they are unchanged.
+ * Regularly sampled, slowly changing values take a few bits per sample.
+ */
+class SampleBlock {
+	/**
+	 * Writes bits to a growing array of longs.
+	 */
+	private static class BitWriter {
+		private int bitCount;
+		private long[] words;
+
+		BitWriter(int expectedBits) {
+			words = new long[Math.max(1, (expectedBits + 63) >>> 6)];
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(words, (bitCount + 63) >>> 6);
+		}
+
+		void write(long value, int n) {
+			// Write the n lowest bits of the value, highest bit first
+			if (n == 0)
+				return;
+			if (((bitCount + n + 63) >>> 6) > words.length)
+				words = Arrays.copyOf(words, words.length * 2);
+			value &= mask(n);
+			final int word = bitCount >>> 6;
+			final int free = 64 - (bitCount & 63);
+			if (n <= free)
+				words[word] |= value << (free - n);
+			else {
+				words[word] |= value >>> (n - free);
+				words[word + 1] |= value << (64 - (n - free));
+			}
+			bitCount += n;
+		}
+
+		void writeBit(boolean bit) {
+			write(bit ? 1 : 0, 1);
+		}
+	}
+
+	/**
+	 * Reads the bits written by the BitWriter.
+	 */
+	private static class BitReader {
+		private int position;
+		private final long[] words;
+
+		BitReader(long[] words) {
+			this.words = words;
+		}
+
+		long read(int n) {
+			if (n == 0)
+				return 0;
+			final int word = position >>> 6;
+			final int free = 64 - (position & 63);
+			long value;
+			if (n <= free)
+				value = (words[word] >>> (free - n)) & mask(n);
+			else {
+				final int rest = n - free;
+				value = ((words[word] & mask(free)) << rest) | (words[word + 1] >>> (64 - rest));
+			}
+			position += n;
+			return value;
+		}
+
+		boolean readBit() {
+			final long word = words[position >>> 6];
+			final boolean bit = ((word >>> (63 - (position & 63))) & 1) != 0;
+			position++;
+			return bit;
+		}
+
+		long readSigned(int n) {
+			// Sign-extend the n-bit two's complement value
+			return (read(n) << (64 - n)) >> (64 - n);
+		}
+	}
+
+	/**
+	 * Decodes the samples of a block one at a time.
+	 */
+	private class Decoder {
+		private long delta;
+		private int index;
+		private int leading;
+		private final BitReader reader = new BitReader(bits);
+		private int status;
+		private long time;
+		private int trailing;
+		private long valueBits;
+
+		boolean hasNext() {
+			return index < count;
+		}
+
+		void next() {
+			if (index == 0) {
+				time = reader.read(64);
+				valueBits = reader.read(64);
+				status = (int) reader.read(32);
+			} else {
+				delta += readDeltaOfDelta();
+				time += delta;
+				if (reader.readBit()) {
+					if (reader.readBit()) {
+						leading = (int) reader.read(5);
+						final int length = (int) reader.read(6);
+						trailing = 64 - leading - (length == 0 ? 64 : length);
+					}
+					valueBits ^= reader.read(64 - leading - trailing) << trailing;
+				}
+				if (reader.readBit())
+					status = (int) reader.read(32);
+			}
+			index++;
+		}
+
+		private long readDeltaOfDelta() {
+			if (!reader.readBit())
+				return 0;
+			if (!reader.readBit())
+				return reader.readSigned(16);
+			if (!reader.readBit())
+				return reader.readSigned(24);
+			if (!reader.readBit())
+				return reader.readSigned(32);
+			return reader.read(64);
+		}
+	}
+
+	private static long mask(int n) {
+		return n == 64 ? -1L : (1L << n) - 1;
+	}
+
+	/**
+	 * Encode samples to a new block.
+	 *
+	 * @param times
+	 *            the timestamps of the samples, in ascending order
+	 * @param values
+	 *            the values of the samples
+	 * @param statuses
+	 *            the status code bits of the samples
+	 * @param from
+	 *            the index of the first sample to encode
+	 * @param to
+	 *            the index after the last sample to encode
+	 * @return the block
+	 */
+	static SampleBlock encode(long[] times, double[] values, int[] statuses, int from, int to) {
+		if (from >= to)
+			throw new IllegalArgumentException("Cannot encode an empty block");
+		final BitWriter writer = new BitWriter((to - from) * 16);
+		long prevTime = times[from];
+		long prevDelta = 0;
+		long prevValue = Double.doubleToRawLongBits(values[from]);
+		int prevStatus = statuses[from];
+		int leading = Integer.MAX_VALUE;
+		int trailing = 0;
+		writer.write(prevTime, 64);
+		writer.write(prevValue, 64);
+		writer.write(prevStatus, 32);
+		for (int i = from + 1; i < to; i++) {
+			final long delta = times[i] - prevTime;
+			writeDeltaOfDelta(writer, delta - prevDelta);
+			prevTime = times[i];
+			prevDelta = delta;
+
+			final long valueBits = Double.doubleToRawLongBits(values[i]);
+			final long xor = valueBits ^ prevValue;
+			prevValue = valueBits;
+			if (xor == 0)
+				writer.writeBit(false);
+			else {
+				writer.writeBit(true);
+				final int l = Math.min(Long.numberOfLeadingZeros(xor), 31);
+				final int t = Long.numberOfTrailingZeros(xor);
+				if ((leading != Integer.MAX_VALUE) && (l >= leading) && (t >= trailing))
+					// The meaningful bits fit in the previous window
+					writer.writeBit(false);
+				else {
+					leading = l;
+					trailing = t;
+					final int length = 64 - l - t;
+					writer.writeBit(true);
+					writer.write(leading, 5);
+					writer.write(length == 64 ? 0 : length, 6);
+				}
+				writer.write(xor >>> trailing, 64 - leading - trailing);
+			}
+
+			if (statuses[i] == prevStatus)
+				writer.writeBit(false);
+			else {
+				writer.writeBit(true);
+				writer.write(statuses[i], 32);
+				prevStatus = statuses[i];
+			}
+		}
+		return new SampleBlock(writer.toArray(), to - from, times[from], times[to - 1]);
+	}
+
+	private static void writeDeltaOfDelta(BitWriter writer, long dod) {
+		if (dod == 0)
+			writer.writeBit(false);
+		else if ((dod >= -(1L << 15)) && (dod < (1L << 15))) {
+			writer.write(0x2, 2);
+			writer.write(dod, 16);
+		} else if ((dod >= -(1L << 23)) && (dod < (1L << 23))) {
+			writer.write(0x6, 3);
+			writer.write(dod, 24);
+		} else if ((dod >= -(1L << 31)) && (dod < (1L << 31))) {
+			writer.write(0xE, 4);
+			writer.write(dod, 32);
+		} else {
+			writer.write(0xF, 4);
+			writer.write(dod, 64);
+		}
+	}
+
+	private final long[] bits;
+	private final int count;
+	private final long firstTime;
+	private final long lastTime;
+
+	private SampleBlock(long[] bits, int count, long firstTime, long lastTime) {
+		super();
+		this.bits = bits;
+		this.count = count;
+		this.firstTime = firstTime;
+		this.lastTime = lastTime;
+	}
+
+	/**
+	 * Decode all the samples of the block to arrays.
+	 *
+	 * @param times
+	 *            receives the timestamps
+	 * @param values
+	 *            receives the values
+	 * @param statuses
+	 *            receives the status code bits
+	 */
+	public void decode(long[] times, double[] values, int[] statuses) {
+		final Decoder decoder = new Decoder();
+		for (int i = 0; decoder.hasNext(); i++) {
+			decoder.next();
+			times[i] = decoder.time;
+			values[i] = Double.longBitsToDouble(decoder.valueBits);
+			statuses[i] = decoder.status;
+		}
+	}
+
+	/**
+	 * Decode the samples of the block in time order, until the visitor wants
+	 * to stop.
+	 *
+	 * @param visitor
+	 *            receives the samples
+	 * @return false if the visitor stopped the decoding
+	 */
+	public boolean decode(SampleVisitor visitor) {
+		final Decoder decoder = new Decoder();
+		while (decoder.hasNext()) {
+			decoder.next();
+			if (!visitor.visit(decoder.time, Double.longBitsToDouble(decoder.valueBits), decoder.status))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of samples in the block
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the timestamp of the first sample
+	 */
+	public long getFirstTime() {
+		return firstTime;
+	}
+
+	/**
+	 * @return the timestamp of the last sample
+	 */
+	public long getLastTime() {
+		return lastTime;
+	}
+
+	/**
+	 * @return the size of the encoded samples in bytes
+	 */
+	public int getSizeInBytes() {
+		return bits.length * 8;
+	}
+}
@@ -0,0 +1,312 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+/**
+ * A fixed-capacity ring buffer of history samples, stored in columns of
+ * primitive arrays.
+ * <p>
+ * Each sample consists of a timestamp (in the 100 ns ticks used by
+ * {@link org.opcfoundation.ua.builtintypes.DateTime#getValue()}), a double
+ * value and the status code bits. Appending is O(1): when the buffer is full,
+ * the oldest sample is overwritten. Samples are addressed by their logical
+ * index, 0 being the oldest one.
+ * <p>
+ * The samples are kept in timestamp order, which enables binary searches by
+ * time with {@link #lowerBound(long)} and {@link #upperBound(long)}. Samples
+ * normally arrive in order, in which case they are just appended; a late
+ * sample is inserted to its place in O(n).
+ * <p>
+ * The class is not thread safe; the owner is responsible for the locking.
+ */
+class SampleBuffer {
+	private int head;
+	private int size;
+	private int[] statuses;
+	private long[] times;
+	private double[] values;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of samples to keep
+	 */
+	public SampleBuffer(int capacity) {
+		super();
+		allocate(capacity);
+	}
+
+	/**
+	 * Add a new sample to the end of the buffer. If the buffer is full, the
+	 * oldest sample is evicted.
+	 *
+	 * @param time
+	 *            the timestamp of the sample
+	 * @param value
+	 *            the value of the sample
+	 * @param status
+	 *            the status code bits of the sample
+	 * @return true, if an old sample was evicted to make room for the new one
+	 */
+	public boolean add(long time, double value, int status) {
+		final int capacity = times.length;
+		if (capacity == 0)
+			return true;
+		if ((size > 0) && (time < times[physical(size - 1)]))
+			return insert(upperBound(time), time, value, status);
+		boolean evicted = size == capacity;
+		int i;
+		if (evicted) {
+			i = head;
+			head = next(head);
+		} else {
+			i = physical(size);
+			size++;
+		}
+		times[i] = time;
+		values[i] = value;
+		statuses[i] = status;
+		return evicted;
+	}
+
+	/**
+	 * Remove all samples from the buffer.
+	 */
+	public void clear() {
+		head = 0;
+		size = 0;
+	}
+
+	/**
+	 * @return the maximum number of samples in the buffer
+	 */
+	public int getCapacity() {
+		return times.length;
+	}
+
+	/**
+	 * @param index
+	 *            the logical index of the sample
+	 * @return the status code bits of the sample
+	 */
+	public int getStatus(int index) {
+		return statuses[physical(checkIndex(index))];
+	}
+
+	/**
+	 * @param index
+	 *            the logical index of the sample
+	 * @return the timestamp of the sample
+	 */
+	public long getTime(int index) {
+		return times[physical(checkIndex(index))];
+	}
+
+	/**
+	 * @param index
+	 *            the logical index of the sample
+	 * @return the value of the sample
+	 */
+	public double getValue(int index) {
+		return values[physical(checkIndex(index))];
+	}
+
+	/**
+	 * @return true if there are no samples in the buffer
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Find the first sample, whose timestamp is greater than or equal to the
+	 * given time.
+	 *
+	 * @param time
+	 *            the time to look for
+	 * @return the logical index of the sample, or size() if there is no such
+	 *         sample
+	 */
+	public int lowerBound(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (times[physical(mid)] < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Remove the oldest samples from the buffer, copying them to the arrays.
+	 *
+	 * @param count
+	 *            the number of samples to remove
+	 * @param times
+	 *            receives the timestamps
+	 * @param values
+	 *            receives the values
+	 * @param statuses
+	 *            receives the status code bits
+	 * @return the number of samples removed
+	 */
+	public int removeFirst(int count, long[] times, double[] values, int[] statuses) {
+		final int n = Math.min(count, size);
+		for (int i = 0; i < n; i++) {
+			final int j = physical(i);
+			times[i] = this.times[j];
+			values[i] = this.values[j];
+			statuses[i] = this.statuses[j];
+		}
+		removeRange(0, n);
+		return n;
+	}
+
+	/**
+	 * Remove the samples between the logical indexes. The samples after the
+	 * range are moved back to fill the gap, which makes this O(n). It is
+	 * intended for the (rare) history deletes only.
+	 *
+	 * @param fromIndex
+	 *            the logical index of the first sample to remove
+	 * @param toIndex
+	 *            the logical index after the last sample to remove
+	 */
+	public void removeRange(int fromIndex, int toIndex) {
+		if ((fromIndex < 0) || (toIndex > size) || (fromIndex > toIndex))
+			throw new IndexOutOfBoundsException("fromIndex=" + fromIndex + ", toIndex=" + toIndex + ", size=" + size);
+		final int count = toIndex - fromIndex;
+		if (count == 0)
+			return;
+		if (fromIndex == 0) {
+			// Removing from the start only moves the head
+			head = physical(count);
+			size -= count;
+			return;
+		}
+		for (int i = toIndex; i < size; i++) {
+			final int from = physical(i);
+			final int to = physical(i - count);
+			times[to] = times[from];
+			values[to] = values[from];
+			statuses[to] = statuses[from];
+		}
+		size -= count;
+	}
+
+	/**
+	 * Change the capacity of the buffer. If the new capacity is smaller than
+	 * the current size, the oldest samples are dropped.
+	 *
+	 * @param capacity
+	 *            the new capacity
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity == times.length)
+			return;
+		final long[] oldTimes = times;
+		final double[] oldValues = values;
+		final int[] oldStatuses = statuses;
+		final int oldHead = head;
+		final int oldCapacity = oldTimes.length;
+		final int keep = Math.min(size, capacity);
+		final int skip = size - keep;
+		allocate(capacity);
+		for (int i = 0; i < keep; i++) {
+			final int from = (oldHead + skip + i) % oldCapacity;
+			times[i] = oldTimes[from];
+			values[i] = oldValues[from];
+			statuses[i] = oldStatuses[from];
+		}
+		size = keep;
+	}
+
+	/**
+	 * @return the number of samples in the buffer
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Find the first sample, whose timestamp is greater than the given time.
+	 *
+	 * @param time
+	 *            the time to look for
+	 * @return the logical index of the sample, or size() if there is no such
+	 *         sample
+	 */
+	public int upperBound(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (times[physical(mid)] <= time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private void allocate(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity must be a positive value");
+		times = new long[capacity];
+		values = new double[capacity];
+		statuses = new int[capacity];
+		head = 0;
+		size = 0;
+	}
+
+	private int checkIndex(int index) {
+		if ((index < 0) || (index >= size))
+			throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+		return index;
+	}
+
+	/**
+	 * Insert a sample in the middle of the buffer, moving the later samples
+	 * forward. If the buffer is full, the oldest sample is evicted.
+	 */
+	private boolean insert(int index, long time, double value, int status) {
+		boolean evicted = size == times.length;
+		if (evicted) {
+			if (index == 0)
+				// Older than anything we can keep
+				return true;
+			head = next(head);
+			size--;
+			index--;
+		}
+		for (int i = size; i > index; i--) {
+			final int from = physical(i - 1);
+			final int to = physical(i);
+			times[to] = times[from];
+			values[to] = values[from];
+			statuses[to] = statuses[from];
+		}
+		final int i = physical(index);
+		times[i] = time;
+		values[i] = value;
+		statuses[i] = status;
+		size++;
+		return evicted;
+	}
+
+	private int next(int i) {
+		return (i + 1) == times.length ? 0 : i + 1;
+	}
+
+	private int physical(int index) {
+		int i = head + index;
+		final int capacity = times.length;
+		return i >= capacity ? i - capacity : i;
+	}
+}
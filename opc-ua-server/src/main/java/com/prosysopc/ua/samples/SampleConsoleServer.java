@@ -14,13 +14,13 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.cert.CertificateException;
 import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.PropertyConfigurator;
 import org.opcfoundation.ua.builtintypes.DateTime;
@@ -50,6 +50,7 @@ import com.prosysopc.ua.UaApplication.Protocol;
 import com.prosysopc.ua.nodes.UaProperty;
 import com.prosysopc.ua.server.FileNodeManager;
 import com.prosysopc.ua.server.NodeBuilderException;
+import com.prosysopc.ua.server.NodeManager;
 import com.prosysopc.ua.server.NodeManagerListener;
 import com.prosysopc.ua.server.UaInstantiationException;
 import com.prosysopc.ua.server.UaServer;
@@ -116,6 +117,18 @@ public class SampleConsoleServer {
 				s.sendEvent();
 				return ActionResult.NOTHING;
 			}
+		},
+
+		SIMULATION_STATISTICS('s', "show the simulation statistics") {
+			@Override
+			ActionResult performAction(SampleConsoleServer s) {
+				println(String.valueOf(s.simulationScheduler));
+				for (MyBigNodeManager.ShardTiming timing : s.myBigNodeManager.getShardTimings())
+					println("MyBigNodeManager shard: " + timing);
+				for (Entry<String, LatencyHistogram> e : s.serviceMetrics.getHistograms().entrySet())
+					println(e.getKey() + ": " + e.getValue());
+				return ActionResult.NOTHING;
+			}
 		};
 
 		static Map<Character, Action> actionMap = new TreeMap<Character, Action>();
@@ -165,12 +178,46 @@ public class SampleConsoleServer {
 		CLOSE_SERVER, NOTHING;
 	}
 
+	/**
+	 * Number of children in each folder of the Big Node Manager; 0 puts all
+	 * nodes in one folder. This can be modified from the command line.
+	 */
+	private static int bigAddressSpaceFolderSize = 0;
 	/**
 	 * Number of nodes to create for the Big Node Manager. This can be modified
 	 * from the command line.
 	 */
 	private static int bigAddressSpaceNodes = 1000;
+	/**
+	 * Directory for storing the variable history. If null, the history is only
+	 * kept in memory. This can be modified from the command line.
+	 */
+	private static String historyDirectory = null;
 	private static Logger logger = LoggerFactory.getLogger(SampleConsoleServer.class);
+	/**
+	 * File to write the service metrics to in the Prometheus text format on
+	 * every simulation tick. If null, the metrics are only published in the
+	 * address space. This can be modified from the command line.
+	 */
+	private static String metricsFile = null;
+	/**
+	 * File of recorded updates to replay to the Big Node Manager instead of
+	 * the simulation. This can be modified from the command line.
+	 */
+	private static String replayFile = null;
+	/**
+	 * Tick of the sampling wheel of the Big Node Manager in milliseconds; 0
+	 * notifies each change. This can be modified from the command line.
+	 */
+	private static long samplingTick = 0;
+	// What to do with the simulation ticks missed because of an overrun
+	private static final SimulationScheduler.OverrunPolicy SIMULATION_OVERRUN_POLICY =
+			SimulationScheduler.OverrunPolicy.SKIP;
+	// The number of threads (and shards) for the simulation of the big
+	// address space
+	private static final int SHARD_THREADS = Runtime.getRuntime().availableProcessors();
+	// The period of the simulation in milliseconds
+	private static final long SIMULATION_PERIOD = 1000;
 	private static boolean stackTraceOnException = false;
 	protected static String APP_NAME = "SampleConsoleServer";
 
@@ -302,6 +349,16 @@ public class SampleConsoleServer {
 				stackTraceOnException = true;
 			else if (args[i].equals("-b"))
 				bigAddressSpaceNodes = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-f"))
+				bigAddressSpaceFolderSize = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-H"))
+				historyDirectory = args[++i];
+			else if (args[i].equals("-m"))
+				metricsFile = args[++i];
+			else if (args[i].equals("-r"))
+				replayFile = args[++i];
+			else if (args[i].equals("-s"))
+				samplingTick = Long.parseLong(args[++i]);
 			else if (args[i].equals("-k"))
 				CertificateUtils.setKeySize(Integer.parseInt(args[++i]));
 			else if (args[i].equals("-d"))
@@ -323,6 +380,11 @@ public class SampleConsoleServer {
 	protected static void usage() {
 		println("Usage: " + APP_NAME + " [-b] [-t] [serverUri]");
 		println("   -b n       Define number of nodes to create in the BigNodeManager (default=1000)");
+		println("   -f n       Organize the nodes of the BigNodeManager in folders of n children (default=0, one folder)");
+		println("   -H dir     Store the variable history to memory-mapped files in the directory");
+		println("   -m file    Write the service metrics to the file in the Prometheus text format");
+		println("   -r file    Replay the updates (time,handle,value[,status] per line) in the file to the BigNodeManager");
+		println("   -s ms      Sample the monitored items of the BigNodeManager with a timer wheel of the given tick (default=0, notify each change)");
 		println("   -k keySize Define the size of the public key of the application certificate (default 1024; other valid values 2048, 4096)");
 		println("   -d url     Define the DiscoveryServerUrl to register the application to");
 		println("   -d-        Define that the application should not be registered to a DiscoveryServer");
@@ -340,24 +402,22 @@ public class SampleConsoleServer {
 			println("- Enter " + a.getKey() + " to " + a.getValue().getDescription());
 	}
 
-	private final Runnable simulationTask = new Runnable() {
-
-		@Override
-		public void run() {
-			if (server.isRunning()) {
-				logger.debug("Simulating");
-				simulate();
-			}
-		}
-	};
-
-	private final ScheduledExecutorService simulator = Executors.newScheduledThreadPool(10);
+	// The workers of the shards of the big address space, separate from the
+	// simulator, so that the shards cannot delay the other tasks
+	private final ExecutorService shardSimulator = Executors.newFixedThreadPool(SHARD_THREADS);
+	// Runs the simulation of the node managers; created in startSimulation
+	private SimulationScheduler simulationScheduler;
+	// The workers of the simulation tasks, one less than the tasks, since the
+	// scheduler thread runs one of them; created in startSimulation
+	private ExecutorService simulator;
 	protected ComplianceNodeManager complianceNodeManager;
 	protected FileNodeManager fileNodeManager;
 	protected MyBigNodeManager myBigNodeManager;
 	protected MyHistorian myHistorian = new MyHistorian();
 	protected MyNodeManager myNodeManager;
 	protected NodeManagerListener myNodeManagerListener = new MyNodeManagerListener();
+	// The latency histograms of the services of the node managers
+	protected final ServiceMetrics serviceMetrics = new ServiceMetrics();
 	protected NonUaNodeComplianceNodeManager nonUaNodeComplianceManager;
 	protected UaServer server;
 	protected UserValidator userValidator;
@@ -374,7 +434,22 @@ public class SampleConsoleServer {
 	 */
 	private void createBigNodeManager() {
 		myBigNodeManager = new MyBigNodeManager(server, "http://www.prosysopc.com/OPCUA/SampleBigAddressSpace",
-				bigAddressSpaceNodes);
+				bigAddressSpaceNodes, bigAddressSpaceFolderSize);
+		// Simulate the big address space in parallel, in a pool of its own
+		myBigNodeManager.setSimulationExecutor(shardSimulator, SHARD_THREADS);
+		// Apply the values of each Write request at once
+		myBigNodeManager.setWritePolicy(MyBigNodeManager.WritePolicy.BATCHED);
+		myBigNodeManager.setSamplingTick(samplingTick);
+		myBigNodeManager.setMetrics(serviceMetrics);
+		if (replayFile != null) {
+			final FileDataSource dataSource = new FileDataSource(new File(replayFile));
+			dataSource.setLoop(true);
+			try {
+				myBigNodeManager.setDataSource(dataSource);
+			} catch (IOException e) {
+				logger.error("Cannot replay " + replayFile, e);
+			}
+		}
 	}
 
 	/**
@@ -425,6 +500,10 @@ public class SampleConsoleServer {
 		// My HistoryManager
 		myNodeManager.getHistoryManager().setListener(myHistorian);
 
+		// Time the services of My Node Manager
+		myNodeManager.setMetrics(serviceMetrics);
+		myHistorian.setMetrics(serviceMetrics, "MyNodeManager");
+
 		// ComplianceNodeManagers
 		complianceNodeManager = new ComplianceNodeManager(server, "http://www.prosysopc.com/OPCUA/ComplianceNodes");
 		nonUaNodeComplianceManager = new NonUaNodeComplianceNodeManager(server,
@@ -478,6 +557,8 @@ public class SampleConsoleServer {
 	 *
 	 */
 	protected void initHistory() {
+		if (historyDirectory != null)
+			myHistorian.setStorageDirectory(new File(historyDirectory));
 		for (UaVariableNode v : myNodeManager.getHistorizableVariables())
 			myHistorian.addVariableHistory(v);
 		for (UaObjectNode o : myNodeManager.getHistorizableEvents())
@@ -712,6 +793,7 @@ public class SampleConsoleServer {
 		// Notify the clients about a shutdown, with a 5 second delay
 		println("Shutting down...");
 		server.shutdown(5, new LocalizedText("Closed by user", Locale.ENGLISH));
+		myHistorian.close();
 		println("Closed.");
 	}
 
@@ -722,16 +804,59 @@ public class SampleConsoleServer {
 		myNodeManager.sendEvent();
 	}
 
+	/**
+	 * Simulates all the node managers one after another.
+	 */
 	protected void simulate() {
-		myNodeManager.simulate();
-		myBigNodeManager.simulate();
+		simulate(myNodeManager);
+		simulate(myBigNodeManager);
 	}
 
 	/**
-	 * Starts the simulation of the level measurement.
+	 * Simulates a node manager; called by the simulation scheduler on every
+	 * tick, in parallel for each node manager.
+	 *
+	 * @param nodeManager
+	 *            the node manager to simulate
+	 */
+	protected void simulate(NodeManager nodeManager) {
+		if (nodeManager == myNodeManager)
+			myNodeManager.simulate();
+		else if (nodeManager == myBigNodeManager)
+			myBigNodeManager.simulate();
+	}
+
+	/**
+	 * Starts the simulation of the level measurement and the big address
+	 * space. The node managers are simulated and the metrics are updated in
+	 * parallel on every tick.
 	 */
 	protected void startSimulation() {
-		simulator.scheduleAtFixedRate(simulationTask, 1000, 1000, TimeUnit.MILLISECONDS);
+		final Map<String, Runnable> tasks = new LinkedHashMap<String, Runnable>();
+		for (final NodeManager nodeManager : new NodeManager[] { myNodeManager, myBigNodeManager })
+			tasks.put(nodeManager.getClass().getSimpleName(), new Runnable() {
+
+				@Override
+				public void run() {
+					if (server.isRunning())
+						simulate(nodeManager);
+				}
+			});
+		tasks.put("Metrics", new Runnable() {
+
+			@Override
+			public void run() {
+				if (server.isRunning())
+					updateMetrics();
+			}
+		});
+		simulator = Executors.newFixedThreadPool(Math.max(1, tasks.size() - 1));
+		simulationScheduler = new SimulationScheduler("Simulation", SIMULATION_PERIOD, SIMULATION_OVERRUN_POLICY,
+				simulator);
+		for (Entry<String, Runnable> task : tasks.entrySet())
+			simulationScheduler.addTask(task.getKey(), task.getValue());
+		serviceMetrics.putHistogram("Simulation", "Tick", simulationScheduler.getTickHistogram());
+		simulationScheduler.start(SIMULATION_PERIOD);
 		logger.info("Simulation started.");
 	}
 
@@ -739,7 +864,24 @@ public class SampleConsoleServer {
 	 * Ends simulation.
 	 */
 	protected void stopSimulation() {
+		simulationScheduler.stop();
 		simulator.shutdown();
+		shardSimulator.shutdown();
 		logger.info("Simulation stopped.");
+		logger.info("Simulation statistics: {}", simulationScheduler);
+	}
+
+	/**
+	 * Publish the service metrics in the address space and write them to the
+	 * metrics file, if defined.
+	 */
+	protected void updateMetrics() {
+		myNodeManager.updateMetrics(serviceMetrics);
+		if (metricsFile != null)
+			try {
+				serviceMetrics.dump(new File(metricsFile));
+			} catch (IOException e) {
+				logger.warn("Cannot write the metrics to {}: {}", metricsFile, e.toString());
+			}
 	}
 }
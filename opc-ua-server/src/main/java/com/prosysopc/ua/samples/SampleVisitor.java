@@ -0,0 +1,25 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+/**
+ * A callback for receiving history samples from a {@link HistoryStorage},
+ * without creating an object for every sample.
+ */
+interface SampleVisitor {
+
+	/**
+	 * @param time
+	 *            the timestamp of the sample, in DateTime ticks
+	 * @param value
+	 *            the value of the sample
+	 * @param status
+	 *            the status code bits of the sample
+	 * @return true to continue with the next sample, false to stop
+	 */
+	boolean visit(long time, double value, int status);
+}
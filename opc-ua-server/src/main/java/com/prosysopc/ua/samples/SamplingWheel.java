@@ -0,0 +1,310 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.core.MonitoringMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.prosysopc.ua.server.MonitoredDataItem;
+
+/**
+ * Samples monitored data items at their sampling intervals with a hashed
+ * timer wheel.
+ * <p>
+ * The monitored items with the same sampling interval (rounded up to whole
+ * ticks) form a group, and the groups are the entries of the wheel. A group
+ * is sampled in one pass when its deadline comes, and only the monitored
+ * items whose value changed since their previous sample are notified. A
+ * value has changed, if the DataValue of the item is not the same instance,
+ * since the node manager creates a new DataValue for each change. Therefore
+ * the cost of the timers depends on the number of different intervals, not
+ * on the number of monitored items.
+ */
+abstract class SamplingWheel {
+	/**
+	 * A monitored item in a group.
+	 */
+	private static final class Entry {
+		private SampleGroup group;
+		private final int handle;
+		private final MonitoredDataItem item;
+		private DataValue last;
+		private int position;
+
+		Entry(int handle, MonitoredDataItem item) {
+			this.handle = handle;
+			this.item = item;
+		}
+	}
+
+	/**
+	 * The monitored items with the same sampling interval.
+	 */
+	private static final class SampleGroup {
+		private long deadline;
+		private Entry[] entries = new Entry[16];
+		private final long interval;
+		// The next group in the same slot of the wheel
+		private SampleGroup next;
+		private int size;
+
+		SampleGroup(long interval) {
+			this.interval = interval;
+		}
+
+		void add(Entry entry) {
+			if (size == entries.length)
+				entries = Arrays.copyOf(entries, size * 2);
+			entry.group = this;
+			entry.position = size;
+			entries[size++] = entry;
+		}
+
+		void remove(Entry entry) {
+			final Entry last = entries[--size];
+			entries[entry.position] = last;
+			last.position = entry.position;
+			entries[size] = null;
+			entry.group = null;
+		}
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(SamplingWheel.class);
+
+	// The number of slots; a power of two
+	private static final int WHEEL_SIZE = 512;
+
+	private long currentTick;
+	private final Map<MonitoredDataItem, Entry> entries = new IdentityHashMap<MonitoredDataItem, Entry>();
+	private final Map<Long, SampleGroup> groups = new HashMap<Long, SampleGroup>();
+	private volatile long notifications;
+	private volatile long overruns;
+	private volatile long samples;
+	private Thread thread;
+	private final long tick;
+	private final SampleGroup[] wheel = new SampleGroup[WHEEL_SIZE];
+
+	/**
+	 * @param tick
+	 *            the resolution of the sampling intervals in milliseconds
+	 */
+	public SamplingWheel(long tick) {
+		super();
+		if (tick < 1)
+			throw new IllegalArgumentException("tick must be a positive value");
+		this.tick = tick;
+	}
+
+	/**
+	 * Start sampling a monitored item. If the item is already sampled, its
+	 * sampling interval is updated.
+	 *
+	 * @param handle
+	 *            the handle of the sampled item
+	 * @param item
+	 *            the monitored item
+	 */
+	public synchronized void add(int handle, MonitoredDataItem item) {
+		Entry entry = entries.get(item);
+		final long interval = Math.max(1, (long) Math.ceil(item.getSamplingInterval() / tick));
+		if (entry != null) {
+			if (entry.group.interval == interval)
+				return;
+			removeFromGroup(entry);
+		} else {
+			entry = new Entry(handle, item);
+			// The current value is not a change
+			entry.last = getDataValue(handle);
+			entries.put(item, entry);
+		}
+		SampleGroup group = groups.get(interval);
+		if (group == null) {
+			group = new SampleGroup(interval);
+			groups.put(interval, group);
+			group.deadline = currentTick + interval;
+			schedule(group);
+		}
+		group.add(entry);
+	}
+
+	/**
+	 * @return the number of groups, i.e. different sampling intervals
+	 */
+	public synchronized int getGroupCount() {
+		return groups.size();
+	}
+
+	/**
+	 * @return the number of data change notifications sent
+	 */
+	public long getNotificationCount() {
+		return notifications;
+	}
+
+	/**
+	 * @return the number of ticks, which were processed late, because the
+	 *         previous ticks took too long
+	 */
+	public long getOverrunCount() {
+		return overruns;
+	}
+
+	/**
+	 * @return the number of monitored items sampled
+	 */
+	public long getSampleCount() {
+		return samples;
+	}
+
+	/**
+	 * @return the resolution of the sampling intervals in milliseconds
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	/**
+	 * Stop sampling a monitored item.
+	 *
+	 * @param item
+	 *            the monitored item
+	 * @return true, if the item was sampled
+	 */
+	public synchronized boolean remove(MonitoredDataItem item) {
+		final Entry entry = entries.remove(item);
+		if (entry == null)
+			return false;
+		removeFromGroup(entry);
+		return true;
+	}
+
+	/**
+	 * Start the sampling thread.
+	 */
+	public synchronized void start() {
+		if (thread != null)
+			throw new IllegalStateException("Already started");
+		thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				runTicks();
+			}
+		}, "SamplingWheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the sampling thread.
+	 */
+	public synchronized void stop() {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * @param handle
+	 *            the handle of the item
+	 * @return the current value of the item
+	 */
+	protected abstract DataValue getDataValue(int handle);
+
+	/**
+	 * Sample the groups of the current tick and advance the wheel.
+	 */
+	private synchronized void processTick() {
+		final int slot = (int) (currentTick & (WHEEL_SIZE - 1));
+		SampleGroup group = wheel[slot];
+		wheel[slot] = null;
+		while (group != null) {
+			final SampleGroup next = group.next;
+			group.next = null;
+			// An emptied group is dropped, when it comes up
+			if (group.size > 0) {
+				if (group.deadline <= currentTick) {
+					sample(group);
+					// Keep the phase, so that the intervals do not drift
+					group.deadline += group.interval;
+				}
+				schedule(group);
+			}
+			group = next;
+		}
+		currentTick++;
+	}
+
+	private void removeFromGroup(Entry entry) {
+		final SampleGroup group = entry.group;
+		group.remove(entry);
+		if (group.size == 0)
+			groups.remove(group.interval);
+	}
+
+	private void runTicks() {
+		final long tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+		long nextTick = System.nanoTime();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				processTick();
+				nextTick += tickNanos;
+				final long delay = nextTick - System.nanoTime();
+				if (delay > 0)
+					TimeUnit.NANOSECONDS.sleep(delay);
+				else
+					// Catch up without sleeping
+					overruns++;
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (RuntimeException e) {
+			logger.error("Sampling failed", e);
+		} finally {
+			// Allow restarting, if the thread ended unexpectedly
+			synchronized (this) {
+				if (thread == Thread.currentThread())
+					thread = null;
+			}
+		}
+	}
+
+	private void sample(SampleGroup group) {
+		int notified = 0;
+		for (int i = 0; i < group.size; i++) {
+			final Entry entry = group.entries[i];
+			try {
+				final DataValue value = getDataValue(entry.handle);
+				if ((value != entry.last) && (entry.item.getMonitoringMode() != MonitoringMode.Disabled)) {
+					entry.last = value;
+					entry.item.notifyDataChange(value);
+					notified++;
+				}
+			} catch (RuntimeException e) {
+				// Keep sampling the other items
+				logger.error("Sampling of item " + entry.handle + " failed", e);
+			}
+		}
+		samples += group.size;
+		notifications += notified;
+	}
+
+	private void schedule(SampleGroup group) {
+		final int slot = (int) (group.deadline & (WHEEL_SIZE - 1));
+		group.next = wheel[slot];
+		wheel[slot] = group;
+	}
+}
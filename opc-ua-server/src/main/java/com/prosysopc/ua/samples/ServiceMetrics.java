@@ -0,0 +1,137 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The latency histograms of the services, by node manager and service name.
+ * <p>
+ * The histograms are created on demand and they are never removed. The
+ * components look up their histograms once and record the durations to
+ * them directly, so recording is lock free. The throughput is the rate of
+ * the count of a histogram.
+ */
+public class ServiceMetrics {
+	private static final String METRIC = "opcua_service_latency_seconds";
+
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private static String key(String nodeManager, String service) {
+		if (nodeManager.indexOf('/') >= 0)
+			throw new IllegalArgumentException("Invalid node manager name: " + nodeManager);
+		return nodeManager + "/" + service;
+	}
+
+	/**
+	 * Write the histograms to a file in the Prometheus text format. The file
+	 * is replaced atomically, so that a collector never sees a partial file.
+	 *
+	 * @param file
+	 *            the file
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void dump(File file) throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		final PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+		try {
+			writePrometheus(writer);
+		} finally {
+			writer.close();
+		}
+		if (writer.checkError())
+			throw new IOException("Cannot write " + tmp);
+		if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file)))
+			throw new IOException("Cannot rename " + tmp + " to " + file);
+	}
+
+	/**
+	 * Get the histogram of a service, creating it if necessary.
+	 *
+	 * @param nodeManager
+	 *            the name of the node manager
+	 * @param service
+	 *            the name of the service, such as Read or Write
+	 * @return the histogram
+	 */
+	public LatencyHistogram getHistogram(String nodeManager, String service) {
+		final String key = key(nodeManager, service);
+		LatencyHistogram histogram = histograms.get(key);
+		if (histogram == null) {
+			final LatencyHistogram newHistogram = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(key, newHistogram);
+			if (histogram == null)
+				histogram = newHistogram;
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return the histograms by "nodeManager/service", in alphabetical order
+	 */
+	public Map<String, LatencyHistogram> getHistograms() {
+		return new TreeMap<String, LatencyHistogram>(histograms);
+	}
+
+	/**
+	 * Publish a histogram that is recorded elsewhere, such as the tick
+	 * histogram of a scheduler.
+	 *
+	 * @param nodeManager
+	 *            the name of the node manager
+	 * @param service
+	 *            the name of the service
+	 * @param histogram
+	 *            the histogram
+	 */
+	public void putHistogram(String nodeManager, String service, LatencyHistogram histogram) {
+		histograms.put(key(nodeManager, service), histogram);
+	}
+
+	/**
+	 * Write the histograms in the Prometheus text format.
+	 *
+	 * @param writer
+	 *            the writer
+	 */
+	public void writePrometheus(PrintWriter writer) {
+		writer.println("# HELP " + METRIC + " Duration of the OPC UA service calls by node manager.");
+		writer.println("# TYPE " + METRIC + " histogram");
+		for (Map.Entry<String, LatencyHistogram> e : getHistograms().entrySet()) {
+			final String key = e.getKey();
+			final int slash = key.indexOf('/');
+			final String labels = "node_manager=\"" + escape(key.substring(0, slash)) + "\",service=\""
+					+ escape(key.substring(slash + 1)) + "\"";
+			final LatencyHistogram histogram = e.getValue();
+			long cumulative = 0;
+			for (int i = 0; i < histogram.getBuckets() - 1; i++) {
+				cumulative += histogram.getBucketCount(i);
+				writer.println(METRIC + "_bucket{" + labels + ",le=\"" + (histogram.getBucketUpperBound(i) / 1e9)
+						+ "\"} " + cumulative);
+			}
+			// The count is summed from the buckets, so that it is consistent
+			// with them, while the histogram is being recorded
+			final long count = cumulative + histogram.getBucketCount(histogram.getBuckets() - 1);
+			writer.println(METRIC + "_bucket{" + labels + ",le=\"+Inf\"} " + count);
+			writer.println(METRIC + "_sum{" + labels + "} " + (histogram.getTotalNanos() / 1e9));
+			writer.println(METRIC + "_count{" + labels + "} " + count);
+		}
+	}
+
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
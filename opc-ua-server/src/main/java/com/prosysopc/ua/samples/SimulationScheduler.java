@@ -0,0 +1,306 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the simulation tasks periodically, all tasks of a tick in parallel.
+ * <p>
+ * The ticks are scheduled on a fixed grid from the start time, so that the
+ * period does not drift, however long each tick takes. If a tick takes longer
+ * than the period, the next deadlines are missed: the overrun is counted and
+ * the missed ticks are handled according to the {@link OverrunPolicy}. The
+ * durations of the ticks and of each task are recorded in histograms.
+ */
+class SimulationScheduler {
+	/**
+	 * What to do with the ticks, whose deadline passed while a previous tick
+	 * was still running.
+	 */
+	public enum OverrunPolicy {
+		/**
+		 * Run all missed ticks back to back, until the schedule is reached.
+		 */
+		CATCH_UP,
+		/**
+		 * Run one tick immediately in place of all the missed ones.
+		 */
+		COALESCE,
+		/**
+		 * Drop the missed ticks and wait for the next deadline.
+		 */
+		SKIP;
+	}
+
+	/**
+	 * A task and the histogram of its durations. A task that throws an
+	 * exception is stopped, like a periodic task of a ScheduledExecutorService.
+	 */
+	private static final class Task {
+		private final LatencyHistogram histogram = new LatencyHistogram();
+		private final String name;
+		private volatile boolean stopped;
+		private final Runnable task;
+
+		Task(String name, Runnable task) {
+			this.name = name;
+			this.task = task;
+		}
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(SimulationScheduler.class);
+
+	private final String name;
+	private volatile long overruns;
+	private final long period;
+	private final OverrunPolicy policy;
+	private volatile long skippedTicks;
+	private final List<Task> tasks = new ArrayList<Task>();
+	private Thread thread;
+	private final LatencyHistogram tickHistogram = new LatencyHistogram();
+	private final ExecutorService workers;
+
+	/**
+	 * @param name
+	 *            the name of the scheduler thread
+	 * @param period
+	 *            the period of the ticks in milliseconds
+	 * @param policy
+	 *            the policy for the missed ticks
+	 * @param workers
+	 *            the executor that runs the tasks in parallel, or null to run
+	 *            them one by one in the scheduler thread
+	 */
+	public SimulationScheduler(String name, long period, OverrunPolicy policy, ExecutorService workers) {
+		super();
+		if (period < 1)
+			throw new IllegalArgumentException("period must be a positive value");
+		this.name = name;
+		this.period = period;
+		this.policy = policy;
+		this.workers = workers;
+	}
+
+	/**
+	 * Add a task to run on every tick. The tasks must be added before the
+	 * scheduler is started.
+	 *
+	 * @param taskName
+	 *            the name of the task in the statistics
+	 * @param task
+	 *            the task
+	 */
+	public synchronized void addTask(String taskName, Runnable task) {
+		if (thread != null)
+			throw new IllegalStateException("Already started");
+		tasks.add(new Task(taskName, task));
+	}
+
+	/**
+	 * @return the number of ticks, which ended after the deadline of the next
+	 *         tick
+	 */
+	public long getOverrunCount() {
+		return overruns;
+	}
+
+	/**
+	 * @return the period of the ticks in milliseconds
+	 */
+	public long getPeriod() {
+		return period;
+	}
+
+	/**
+	 * @return the policy for the missed ticks
+	 */
+	public OverrunPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return the number of ticks dropped because of overruns
+	 */
+	public long getSkippedTickCount() {
+		return skippedTicks;
+	}
+
+	/**
+	 * @return the histogram of the durations of each task, by the task names
+	 */
+	public synchronized Map<String, LatencyHistogram> getTaskHistograms() {
+		final Map<String, LatencyHistogram> result = new LinkedHashMap<String, LatencyHistogram>();
+		for (Task task : tasks)
+			result.put(task.name, task.histogram);
+		return result;
+	}
+
+	/**
+	 * @return the histogram of the durations of the ticks, from the start of
+	 *         the first task to the end of the last one
+	 */
+	public LatencyHistogram getTickHistogram() {
+		return tickHistogram;
+	}
+
+	/**
+	 * Start running the ticks.
+	 *
+	 * @param initialDelay
+	 *            the delay before the first tick in milliseconds
+	 */
+	public synchronized void start(final long initialDelay) {
+		if (thread != null)
+			throw new IllegalStateException("Already started");
+		final Task[] tickTasks = tasks.toArray(new Task[tasks.size()]);
+		thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				runTicks(tickTasks, initialDelay);
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop running the ticks. A tick in progress is completed.
+	 */
+	public synchronized void stop() {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format("period=%dms policy=%s overruns=%d skipped=%d%n", period, policy, overruns,
+				skippedTicks));
+		sb.append("tick: ").append(tickHistogram);
+		for (Map.Entry<String, LatencyHistogram> e : getTaskHistograms().entrySet())
+			sb.append(String.format("%n%s: %s", e.getKey(), e.getValue()));
+		return sb.toString();
+	}
+
+	/**
+	 * Handle an overrun: the tick ended after the deadline of the next tick.
+	 *
+	 * @return the new deadline of the next tick
+	 */
+	private long overrun(long deadline, long now, long periodNanos) {
+		overruns++;
+		// The number of deadlines that have passed
+		final long behind = ((now - deadline) / periodNanos) + 1;
+		long skip = 0;
+		switch (policy) {
+		case CATCH_UP:
+			break;
+		case COALESCE:
+			skip = behind - 1;
+			break;
+		case SKIP:
+			skip = behind;
+			break;
+		}
+		skippedTicks += skip;
+		// Rate limit the warnings to 1, 10, 100, ... overruns
+		long n = overruns;
+		while ((n % 10) == 0)
+			n /= 10;
+		if (n == 1)
+			logger.warn("{}: tick overran the period of {} ms: overruns={} skipped={} tick: {}", name, period,
+					overruns, skippedTicks, tickHistogram);
+		return deadline + (skip * periodNanos);
+	}
+
+	private void runTick(Task[] tickTasks) {
+		final ExecutorService executor = workers;
+		if ((executor == null) || (tickTasks.length == 1)) {
+			for (Task task : tickTasks)
+				runTask(task);
+			return;
+		}
+		final CountDownLatch done = new CountDownLatch(tickTasks.length - 1);
+		for (int i = 1; i < tickTasks.length; i++) {
+			final Task task = tickTasks[i];
+			final Runnable worker = new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						runTask(task);
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			try {
+				executor.execute(worker);
+			} catch (RejectedExecutionException e) {
+				worker.run();
+			}
+		}
+		// The first task is run by the scheduler thread
+		runTask(tickTasks[0]);
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void runTicks(Task[] tickTasks, long initialDelay) {
+		final long periodNanos = TimeUnit.MILLISECONDS.toNanos(period);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelay);
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				final long delay = deadline - System.nanoTime();
+				if (delay > 0)
+					TimeUnit.NANOSECONDS.sleep(delay);
+				final long start = System.nanoTime();
+				if (tickTasks.length > 0)
+					runTick(tickTasks);
+				final long now = System.nanoTime();
+				tickHistogram.record(now - start);
+				deadline += periodNanos;
+				if (now > deadline)
+					deadline = overrun(deadline, now, periodNanos);
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+		logger.debug("{} stopped", name);
+	}
+
+	private void runTask(Task task) {
+		if (task.stopped)
+			return;
+		final long start = System.nanoTime();
+		try {
+			task.task.run();
+		} catch (RuntimeException e) {
+			task.stopped = true;
+			logger.error(name + ": task " + task.name + " failed and was stopped", e);
+		} finally {
+			task.histogram.record(System.nanoTime() - start);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the current values of items from a {@link PollableDataSource}, so
+ * that concurrent reads of the same item are collapsed to one read from the
+ * source.
+ * <p>
+ * The first thread to request an item reads it from the source and the
+ * others wait for that read to complete, instead of reading the item again.
+ * The values read are passed to {@link #apply}, before the waiting threads
+ * are released.
+ */
+abstract class SingleFlightReader {
+	/**
+	 * The read of a batch of items by one thread.
+	 */
+	private static final class Fetch {
+		private final CountDownLatch done = new CountDownLatch(1);
+		// The handles that could not be read, sorted, or null if all were read
+		private volatile int[] failed;
+
+		/**
+		 * @param handle
+		 *            the handle of an item of the fetch
+		 * @return true if the item was read successfully; valid after done
+		 */
+		boolean isRead(int handle) {
+			final int[] f = failed;
+			return (f == null) || (Arrays.binarySearch(f, handle) < 0);
+		}
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(SingleFlightReader.class);
+
+	private final int batchSize;
+	// The fetch in progress for each item, or null
+	private final AtomicReferenceArray<Fetch> fetches;
+	private final AtomicLong fetchedItems = new AtomicLong();
+	private final AtomicLong joinedItems = new AtomicLong();
+	private final PollableDataSource source;
+
+	/**
+	 * @param source
+	 *            the source to read
+	 * @param capacity
+	 *            the number of item handles
+	 * @param batchSize
+	 *            the maximum number of items read from the source at once
+	 */
+	public SingleFlightReader(PollableDataSource source, int capacity, int batchSize) {
+		super();
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be a positive value");
+		this.source = source;
+		this.batchSize = batchSize;
+		fetches = new AtomicReferenceArray<Fetch>(capacity);
+	}
+
+	/**
+	 * @return the number of items read from the source
+	 */
+	public long getFetchedItemCount() {
+		return fetchedItems.get();
+	}
+
+	/**
+	 * @return the number of item reads, which waited for the read of another
+	 *         thread instead of reading the source
+	 */
+	public long getJoinedItemCount() {
+		return joinedItems.get();
+	}
+
+	/**
+	 * Read the current values of items.
+	 *
+	 * @param count
+	 *            the number of items
+	 * @param handles
+	 *            the handles of the items
+	 * @param timeout
+	 *            the maximum time to wait for the reads of the other threads
+	 *            in milliseconds
+	 * @return whether each item was read successfully
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public boolean[] read(int count, int[] handles, long timeout) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		final boolean[] result = new boolean[count];
+		final Fetch own = new Fetch();
+		// The fetch of another thread that each item waits for, or null
+		final Fetch[] joined = new Fetch[count];
+		final int[] ownHandles = new int[count];
+		final int[] ownPositions = new int[count];
+		int owned = 0;
+		for (int i = 0; i < count; i++) {
+			final int handle = handles[i];
+			while (true) {
+				final Fetch fetch = fetches.get(handle);
+				if (fetch == own) {
+					// The same item twice in the request
+					joined[i] = own;
+					break;
+				}
+				if (fetch != null) {
+					joined[i] = fetch;
+					joinedItems.incrementAndGet();
+					break;
+				}
+				if (fetches.compareAndSet(handle, null, own)) {
+					ownHandles[owned] = handle;
+					ownPositions[owned++] = i;
+					break;
+				}
+			}
+		}
+		try {
+			if (owned > 0)
+				fetch(owned, ownHandles, ownPositions, result);
+		} finally {
+			// Published before the waiting threads are released
+			own.failed = getFailed(owned, ownHandles, ownPositions, result);
+			for (int i = 0; i < owned; i++)
+				fetches.compareAndSet(ownHandles[i], own, null);
+			own.done.countDown();
+		}
+		for (int i = 0; i < count; i++)
+			if (joined[i] != null) {
+				final long wait = deadline - System.nanoTime();
+				result[i] = joined[i].done.await(Math.max(0, wait), TimeUnit.NANOSECONDS)
+						&& joined[i].isRead(handles[i]);
+			}
+		return result;
+	}
+
+	/**
+	 * Apply the values read from the source.
+	 *
+	 * @param count
+	 *            the number of values
+	 * @param handles
+	 *            the handles of the items
+	 * @param values
+	 *            the values
+	 * @param statuses
+	 *            the status code bits of the values
+	 * @param timestamps
+	 *            the source timestamps in DateTime ticks, or 0 if not defined
+	 */
+	protected abstract void apply(int count, int[] handles, double[] values, int[] statuses, long[] timestamps);
+
+	private void fetch(int owned, int[] ownHandles, int[] ownPositions, boolean[] result) {
+		final int size = Math.min(batchSize, owned);
+		final int[] batchHandles = new int[size];
+		final double[] values = new double[size];
+		final int[] statuses = new int[size];
+		final long[] timestamps = new long[size];
+		for (int first = 0; first < owned; first += size) {
+			final int n = Math.min(size, owned - first);
+			System.arraycopy(ownHandles, first, batchHandles, 0, n);
+			try {
+				source.read(n, batchHandles, values, statuses, timestamps);
+			} catch (IOException e) {
+				logger.warn("Read failed: items={}: {}", n, e.toString());
+				continue;
+			}
+			apply(n, batchHandles, values, statuses, timestamps);
+			fetchedItems.addAndGet(n);
+			for (int i = first; i < first + n; i++)
+				result[ownPositions[i]] = true;
+		}
+	}
+
+	/**
+	 * @return the sorted handles of the own items that were not read, or null
+	 *         if all were read
+	 */
+	private static int[] getFailed(int owned, int[] ownHandles, int[] ownPositions, boolean[] result) {
+		int n = 0;
+		for (int i = 0; i < owned; i++)
+			if (!result[ownPositions[i]])
+				n++;
+		if (n == 0)
+			return null;
+		final int[] failed = new int[n];
+		n = 0;
+		for (int i = 0; i < owned; i++)
+			if (!result[ownPositions[i]])
+				failed[n++] = ownHandles[i];
+		Arrays.sort(failed);
+		return failed;
+	}
+}
@@ -6,15 +6,23 @@
  */
 package com.prosysopc.ua.samples;
 
+import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.opcfoundation.ua.builtintypes.DataValue;
 import org.opcfoundation.ua.builtintypes.DateTime;
 import org.opcfoundation.ua.builtintypes.DiagnosticInfo;
+import org.opcfoundation.ua.builtintypes.NodeId;
 import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedByte;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
 import org.opcfoundation.ua.builtintypes.UnsignedShort;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.AggregateConfiguration;
+import org.opcfoundation.ua.core.Identifiers;
 import org.opcfoundation.ua.core.StatusCodes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.prosysopc.ua.StatusException;
 import com.prosysopc.ua.nodes.DataChangeListener;
@@ -24,24 +32,212 @@ import com.prosysopc.ua.server.nodes.UaVariableNode;
 
 /**
  * A sample class for keeping a history of a variable node.
+ * <p>
+ * The samples are kept in a {@link SampleBuffer}, which stores the timestamps,
+ * values and status codes in primitive arrays. DataValue objects are only
+ * created when the history is read, with the original data type of the
+ * variable. This is done for the Boolean and numeric data types, whose values
+ * a double holds exactly; a value of another type is stored as
+ * Bad_TypeMismatch. The history of the other data types, e.g. the 64-bit
+ * integers and strings, is kept as the original DataValues in a
+ * {@link DataValueBuffer} instead, in memory only and without aggregates.
+ * <p>
+ * When the buffer gets full, its oldest samples are sealed to compressed
+ * blocks (see {@link CompressedSamples}), instead of dropping them. Only the
+ * hot tail of the history is kept uncompressed. By default, 10000 samples
+ * are kept in total; use {@link #setCompressedCapacity(int)} to keep more.
+ * <p>
+ * If a {@link HistoryStorage} is defined, all samples are also stored there
+ * and the raw history is read from the storage, instead of the buffer.
+ * <p>
+ * The history also maintains {@link RollupTier}s of 1 minute and 1 hour
+ * statistics, which are used to calculate the aggregates of long periods
+ * without reading all the raw samples. By default, a week of minutes and a
+ * year of hours are kept, which takes about 2 MB per variable once the tiers
+ * are full; use {@link #setRollupBuckets(int, int)} to keep less.
  */
 class ValueHistory {
-	private int capacity = 10000;
+	/**
+	 * Collects the samples of a raw read to the history list.
+	 */
+	private class RawReader implements SampleVisitor {
+		private final List<DataValue> history;
+		private long lastTime;
+		private final long limit;
+		private final int maxValues;
+		private boolean more;
+		private int seq;
+		private int skip;
+
+		/**
+		 * @param cursor
+		 *            the cursor to continue from, or null for the first page
+		 * @param limit
+		 *            the samples at or after this time are not read
+		 */
+		RawReader(HistoryCursor cursor, long limit, int maxValues, List<DataValue> history) {
+			this.limit = limit;
+			this.maxValues = maxValues;
+			this.history = history;
+			if (cursor != null) {
+				lastTime = cursor.getTime();
+				seq = cursor.getSeq();
+				skip = seq;
+			}
+		}
+
+		@Override
+		public boolean visit(long time, double value, int status) {
+			if (isSkipped(time))
+				return true;
+			if (isFull(time))
+				return false;
+			add(time, getDataValue(time, value, status));
+			return true;
+		}
+
+		/**
+		 * Visit a sample kept as a DataValue.
+		 *
+		 * @return false to stop reading
+		 */
+		boolean visit(long time, DataValue value) {
+			if (isSkipped(time))
+				return true;
+			if (isFull(time))
+				return false;
+			add(time, value);
+			return true;
+		}
+
+		private void add(long time, DataValue value) {
+			history.add(value);
+			if ((seq > 0) && (time == lastTime))
+				seq++;
+			else {
+				lastTime = time;
+				seq = 1;
+			}
+		}
+
+		/**
+		 * @return true if no more samples are read, at or after the time
+		 */
+		private boolean isFull(long time) {
+			if (time >= limit)
+				return true;
+			if ((maxValues > 0) && (history.size() == maxValues)) {
+				more = true;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return true if the sample was already returned on the previous page
+		 */
+		private boolean isSkipped(long time) {
+			if ((skip > 0) && (time == lastTime)) {
+				skip--;
+				return true;
+			}
+			skip = 0;
+			return false;
+		}
+	}
+
+	private static final int BLOCK_SIZE = 1024;
+	// The uncompressed samples: two blocks, so that one can be sealed
+	private static final int BUFFER_CAPACITY = 2 * BLOCK_SIZE;
+	// The samples kept in memory in total by default
+	private static final int DEFAULT_RETENTION = 10000;
+	private static final int DEFAULT_COMPRESSED_CAPACITY = DEFAULT_RETENTION - BUFFER_CAPACITY;
+	// A week of minutes and a year of hours
+	static final int DEFAULT_HOUR_BUCKETS = 365 * 24;
+	static final int DEFAULT_MINUTE_BUCKETS = 7 * 24 * 60;
+	private static final Logger logger = LoggerFactory.getLogger(ValueHistory.class);
+	private static final long TICKS_PER_MILLISECOND = 10000;
+	private static final long TICKS_PER_MINUTE = 60 * 1000 * TICKS_PER_MILLISECOND;
+	private static final long TICKS_PER_HOUR = 60 * TICKS_PER_MINUTE;
+
+	private final AggregateBucket bucket = new AggregateBucket();
+	private final CompressedSamples compressed;
+	// The samples of the data types that do not fit in a double, or null
+	private final DataValueBuffer dataValues;
+	// Incremented when samples are deleted, to invalidate the cursors
+	private long generation;
 	private final DataChangeListener listener = new DataChangeListener() {
 
 		@Override
 		public void onDataChange(UaNode uaNode, DataValue prevValue, DataValue value) {
-			values.add(value);
-			while (values.size() > capacity)
-				values.remove(0);
+			add(value);
 		}
 	};
-	private final List<DataValue> values = new CopyOnWriteArrayList<DataValue>();
+	private final int nodeIndex;
+	// The buffer contains all the samples from this time on
+	private long rawFrom = Long.MIN_VALUE;
+	private final SampleBuffer samples;
+	private final HistoryStorage storage;
+	// From the finest to the coarsest: minutes and hours
+	private final RollupTier[] tiers = { new RollupTier(TICKS_PER_MINUTE, DEFAULT_MINUTE_BUCKETS),
+			new RollupTier(TICKS_PER_HOUR, DEFAULT_HOUR_BUCKETS) };
+	// The class of the values, defined by the data type of the variable, or
+	// null if they are kept as DataValues
+	private final Class<?> valueClass;
 	private final UaVariable variable;
 
+	/**
+	 * @param variable
+	 *            the variable to keep history for
+	 */
 	public ValueHistory(UaVariableNode variable) {
 		super();
 		this.variable = variable;
+		valueClass = getValueClass(variable);
+		storage = null;
+		nodeIndex = -1;
+		if (valueClass == null) {
+			dataValues = new DataValueBuffer(DEFAULT_RETENTION);
+			samples = new SampleBuffer(0);
+			compressed = new CompressedSamples(0);
+		} else {
+			dataValues = null;
+			samples = new SampleBuffer(BUFFER_CAPACITY);
+			compressed = new CompressedSamples(DEFAULT_COMPRESSED_CAPACITY);
+		}
+		variable.addDataChangeListener(listener);
+	}
+
+	/**
+	 * @param variable
+	 *            the variable to keep history for
+	 * @param storage
+	 *            the storage in which to keep the history, or null to keep it
+	 *            in memory only. The storage is not used for the data types
+	 *            that do not fit in a double.
+	 * @throws IOException
+	 *             if the variable cannot be registered to the storage
+	 */
+	public ValueHistory(UaVariableNode variable, HistoryStorage storage) throws IOException {
+		super();
+		this.variable = variable;
+		valueClass = getValueClass(variable);
+		this.storage = valueClass == null ? null : storage;
+		nodeIndex = this.storage == null ? -1 : storage.getNodeIndex(variable.getNodeId().toString());
+		if (valueClass == null) {
+			dataValues = new DataValueBuffer(DEFAULT_RETENTION);
+			samples = new SampleBuffer(0);
+			compressed = new CompressedSamples(0);
+		} else {
+			dataValues = null;
+			samples = new SampleBuffer(BUFFER_CAPACITY);
+			// The storage keeps the older samples
+			compressed = new CompressedSamples(storage == null ? DEFAULT_COMPRESSED_CAPACITY : 0);
+		}
+		if (this.storage != null)
+			// The tiers only know the samples added from now on
+			for (RollupTier tier : tiers)
+				tier.setValidFrom(Long.MAX_VALUE);
 		variable.addDataChangeListener(listener);
 	}
 
@@ -50,7 +246,7 @@ class ValueHistory {
 	 * @param operationResults
 	 * @param operationDiagnostics
 	 */
-	public void deleteAtTimes(DateTime[] reqTimes, StatusCode[] operationResults,
+	public synchronized void deleteAtTimes(DateTime[] reqTimes, StatusCode[] operationResults,
 			DiagnosticInfo[] operationDiagnostics) {
 		for (int i = 0; i < reqTimes.length; i++)
 			try {
@@ -67,29 +263,38 @@ class ValueHistory {
 	 * @param endTime
 	 * @throws StatusException
 	 */
-	public void deleteRaw(DateTime startTime, DateTime endTime) throws StatusException {
-		int i = 0;
+	public synchronized void deleteRaw(DateTime startTime, DateTime endTime) throws StatusException {
 		// boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) >
 		// 0;
 		boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
 		if (!endTimeDefined)
 			throw new StatusException(StatusCodes.Bad_InvalidArgument);
-		while (values.size() > i) {
-			DataValue value = values.get(i);
-			DateTime t = value.getSourceTimestamp();
-			if (t == null)
-				t = value.getServerTimestamp();
-			if (t.compareTo(startTime) >= 0)
-				values.remove(i);
-			else if (t.compareTo(endTime) >= 0)
-				break;
-			else
-				i++;
+		generation++;
+		if (dataValues != null) {
+			dataValues.removeRange(dataValues.lowerBound(startTime.getValue()),
+					dataValues.lowerBound(endTime.getValue()));
+			return;
 		}
+		samples.removeRange(samples.lowerBound(startTime.getValue()), samples.lowerBound(endTime.getValue()));
+		compressed.deleteRaw(startTime.getValue(), endTime.getValue());
+		if (storage != null)
+			storage.deleteRaw(nodeIndex, startTime.getValue(), endTime.getValue());
+		updateTiers(startTime.getValue(), endTime.getValue());
+	}
+
+	/**
+	 * @return the maximum number of uncompressed samples in memory, or the
+	 *         maximum number of DataValues for the other data types
+	 */
+	public synchronized int getCapacity() {
+		return dataValues != null ? dataValues.getCapacity() : samples.getCapacity();
 	}
 
-	public int getCapacity() {
-		return capacity;
+	/**
+	 * @return the maximum number of compressed samples in memory
+	 */
+	public synchronized int getCompressedCapacity() {
+		return compressed.getCapacity();
 	}
 
 	/**
@@ -103,22 +308,84 @@ class ValueHistory {
 	 * @param reqTimes
 	 * @return
 	 */
-	public DataValue[] readAtTimes(DateTime[] reqTimes) {
+	public synchronized DataValue[] readAtTimes(DateTime[] reqTimes) {
 		if (reqTimes == null)
 			return null;
 		DataValue[] values = new DataValue[reqTimes.length];
+		if ((storage != null) || (dataValues != null)) {
+			readAtTimes(reqTimes, values);
+			return values;
+		}
+		final boolean sorted = isSorted(reqTimes);
+		int j = sorted && (reqTimes.length > 0) ? getIndex(reqTimes[0].getValue()) : -1;
 		for (int i = 0; i < reqTimes.length; i++) {
 			DateTime t = reqTimes[i];
+			final long time = t.getValue();
 			// Stepped interpolation used to get values
-			DataValue v = getValue(t);
-			values[i] = new DataValue(v == null ? null : v.getValue(),
-					v == null ? new StatusCode(StatusCodes.Bad_NoData) : v.getStatusCode(), t, UnsignedShort.ZERO, null,
-					null);
+			if (sorted) {
+				// Merge-walk: the times are ascending, so just continue from
+				// the previous position instead of searching again
+				while (((j + 1) < samples.size()) && (samples.getTime(j + 1) <= time))
+					j++;
+			} else
+				j = getIndex(time);
+			// Before the buffer, the value may be in the compressed samples
+			values[i] = j < 0 ? readAtTime(t) : getInterpolatedValue(t, samples.getValue(j), samples.getStatus(j));
 		}
 		return values;
 
 	}
 
+	/**
+	 * Calculate aggregates from the history.
+	 * <p>
+	 * All the aggregates are calculated in a single pass over the samples.
+	 *
+	 * @param startTime
+	 *            the start of the period
+	 * @param endTime
+	 *            the end of the period
+	 * @param processingInterval
+	 *            the length of each interval, in milliseconds; 0 to calculate
+	 *            one value for the whole period
+	 * @param aggregateTypes
+	 *            the aggregates to calculate
+	 * @param aggregateConfiguration
+	 *            the configuration for the calculation
+	 * @return the values for each interval, for each of the aggregateTypes
+	 * @throws StatusException
+	 *             if the period is not valid, or if the values are not
+	 *             numeric
+	 */
+	public synchronized DataValue[][] readProcessed(DateTime startTime, DateTime endTime, Double processingInterval,
+			NodeId[] aggregateTypes, AggregateConfiguration aggregateConfiguration) throws StatusException {
+		if ((startTime.compareTo(DateTime.MIN_VALUE) <= 0) || (endTime.compareTo(DateTime.MIN_VALUE) <= 0)
+				|| (startTime.compareTo(endTime) == 0))
+			throw new StatusException(StatusCodes.Bad_InvalidArgument);
+		if (dataValues != null)
+			throw new StatusException(StatusCodes.Bad_AggregateInvalidInputs);
+		final long interval = processingInterval == null ? 0
+				: (long) (processingInterval.doubleValue() * TICKS_PER_MILLISECOND);
+		final AggregateCalculator calculator;
+		try {
+			calculator = new AggregateCalculator(aggregateTypes, startTime.getValue(), endTime.getValue(), interval,
+					aggregateConfiguration);
+		} catch (IllegalArgumentException e) {
+			throw new StatusException(StatusCodes.Bad_InvalidArgument);
+		}
+		final RollupTier tier = getTier(calculator);
+		if (tier != null)
+			// Time proportional to the number of buckets, not samples
+			for (int i = tier.lowerBound(calculator.getStartTime()); (i < tier.size())
+					&& (tier.getStart(i) < calculator.getEndTime()); i++) {
+				tier.get(i, bucket);
+				calculator.add(tier.getStart(i), bucket);
+			}
+		else
+			scan(calculator.getStartTime(), calculator.getEndTime(), calculator);
+		return calculator.getResults();
+	}
+
 	/**
 	 * Get the values from the history that are between startTime and endTime.
 	 *
@@ -131,68 +398,148 @@ class ValueHistory {
 	 * @param returnBounds
 	 *            whether values at the ends of the interval should be returned
 	 *            as well
-	 * @param firstIndex
-	 *            the index of the first entry in the history data to return
-	 *            (i.e. the continuationPoint returned for the previous request)
+	 * @param cursor
+	 *            the position to continue from (i.e. the continuationPoint
+	 *            returned for the previous request), or null to start from the
+	 *            beginning
 	 * @param history
 	 *            the list of values to fill in
-	 * @return the first index that was not added to the history, in case there
-	 *         are more than maxValues entries to return (i.e. the
+	 * @return the position after the last entry added to the history, in case
+	 *         there are more than maxValues entries to return (i.e. the
 	 *         continuationPoint to return)
+	 * @throws StatusException
+	 *             if the history has been modified after the cursor was
+	 *             returned
 	 */
-	public Integer readRaw(DateTime startTime, DateTime endTime, int maxValues, boolean returnBounds, int firstIndex,
-			List<DataValue> history) {
-		int i = 0;
+	public synchronized HistoryCursor readRaw(DateTime startTime, DateTime endTime, int maxValues,
+			boolean returnBounds, HistoryCursor cursor, List<DataValue> history) throws StatusException {
+		if ((cursor != null) && (cursor.getGeneration() != generation))
+			throw new StatusException(StatusCodes.Bad_ContinuationPointInvalid);
 		boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
 		boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
-		if (startTimeDefined || !endTimeDefined)
-			for (DataValue value : values) {
-				DateTime t = value.getSourceTimestamp();
-				if (t == null)
-					t = value.getServerTimestamp();
-				final int compareToEnd = endTimeDefined ? t.compareTo(endTime) : -1;
-				if ((compareToEnd > 0) || (!returnBounds && (compareToEnd == 0)))
-					break;
-				else {
-					final int compareToStart = t.compareTo(startTime);
-					if ((compareToStart > 0) || (returnBounds && (compareToStart == 0))) {
-						if (i >= firstIndex)
-							history.add(value);
-						i++;
-						if (history.size() == maxValues)
-							return i;
-					}
-				}
-			}
+		final long start = startTime.getValue();
+		final long end = endTimeDefined ? endTime.getValue() : Long.MAX_VALUE;
+		final boolean forward = startTimeDefined || !endTimeDefined;
+		// When continuing, seek to the last returned timestamp and let the
+		// reader skip the samples that were already returned
+		final long limit = forward && endTimeDefined && !returnBounds ? end : Long.MAX_VALUE;
+		RawReader reader = new RawReader(cursor, limit, maxValues, history);
+		final boolean includeBounds = (cursor != null) || returnBounds;
+		if (dataValues != null)
+			readDataValues(cursor == null ? (forward ? start : end) : cursor.getTime(), end, forward, includeBounds,
+					reader);
+		else if (forward)
+			read(cursor == null ? start : cursor.getTime(), end, includeBounds, reader);
 		else
-			// !startTimeDefined && endTimeDefined
-			for (int j = values.size() - 1; j >= 0; j--) {
-				DataValue value = values.get(j);
-				DateTime t = value.getSourceTimestamp();
-				if (t == null)
-					t = value.getServerTimestamp();
-				final int compareToEnd = t.compareTo(endTime);
-				if ((compareToEnd > 0) || (!returnBounds && (compareToEnd == 0)))
-					continue;
-				else {
-					if (i >= firstIndex)
-						history.add(value);
-					i++;
-					if (history.size() == maxValues)
-						return i;
-				}
-			}
-		return null;
+			readReverse(cursor == null ? end : cursor.getTime(), includeBounds, reader);
+		return reader.more ? new HistoryCursor(reader.lastTime, reader.seq, generation) : null;
 	}
 
 	/**
 	 * @param capacity
-	 *            the capacity to set
+	 *            the maximum number of uncompressed samples to keep in memory,
+	 *            or the maximum number of DataValues for the other data types
+	 *            (default 10000)
 	 */
-	public void setCapacity(int capacity) {
+	public synchronized void setCapacity(int capacity) {
 		if (capacity < 0)
 			throw new IllegalArgumentException("capacity must be a positive value");
-		this.capacity = capacity;
+		if (dataValues != null) {
+			dataValues.setCapacity(capacity);
+			return;
+		}
+		if ((compressed.getCapacity() > 0) && (samples.size() > capacity))
+			seal(samples.size() - capacity);
+		final int size = samples.size();
+		samples.setCapacity(capacity);
+		if (samples.size() < size)
+			rawFrom = getFirstTime();
+	}
+
+	/**
+	 * @param compressedCapacity
+	 *            the maximum number of compressed samples to keep in memory
+	 *            (default 7952, for 10000 samples in total); 0 to drop the
+	 *            samples that do not fit in the buffer. Not used for the data
+	 *            types that are kept as DataValues.
+	 */
+	public synchronized void setCompressedCapacity(int compressedCapacity) {
+		if (dataValues != null)
+			return;
+		final int size = compressed.size();
+		compressed.setCapacity(compressedCapacity);
+		if (compressed.size() < size)
+			rawFrom = getFirstTime();
+	}
+
+	/**
+	 * Define how many buckets the rollup tiers keep. The tiers grow on demand,
+	 * so the memory is only used as the history accumulates.
+	 *
+	 * @param minuteBuckets
+	 *            the number of 1 minute buckets to keep (default a week)
+	 * @param hourBuckets
+	 *            the number of 1 hour buckets to keep (default a year)
+	 */
+	public synchronized void setRollupBuckets(int minuteBuckets, int hourBuckets) {
+		tiers[0].setMaxBuckets(minuteBuckets);
+		tiers[1].setMaxBuckets(hourBuckets);
+	}
+
+	/**
+	 * Add a new value to the history.
+	 *
+	 * @param value
+	 *            the new value of the variable
+	 */
+	private synchronized void add(DataValue value) {
+		DateTime t = value.getSourceTimestamp();
+		if (t == null)
+			t = value.getServerTimestamp();
+		if (t == null)
+			t = DateTime.currentTime();
+		final StatusCode status = value.getStatusCode();
+		final long time = t.getValue();
+		if (dataValues != null) {
+			dataValues.add(time, value);
+			return;
+		}
+		final Object o = value.getValue() == null ? null : value.getValue().getValue();
+		final double v;
+		int statusBits = status == null ? StatusCode.GOOD.getValueAsIntBits() : status.getValueAsIntBits();
+		if (valueClass.isInstance(o))
+			v = toDouble(o);
+		else {
+			v = Double.NaN;
+			if (o != null) {
+				// Keep the gap in the history, instead of a wrong value
+				logger.warn("Value of type {} stored as Bad_TypeMismatch in the history of {}",
+						o.getClass().getSimpleName(), variable.getNodeId());
+				statusBits = new StatusCode(StatusCodes.Bad_TypeMismatch).getValueAsIntBits();
+			}
+		}
+		if (!compressed.isEmpty() && (time < compressed.getLastTime())) {
+			// A late sample, which belongs to the compressed blocks
+			if (compressed.insert(time, v, statusBits))
+				rawFrom = getFirstTime();
+		} else {
+			if ((samples.size() == samples.getCapacity()) && (compressed.getCapacity() > 0))
+				seal(BLOCK_SIZE);
+			if (samples.add(time, v, statusBits))
+				rawFrom = getFirstTime();
+		}
+		for (RollupTier tier : tiers) {
+			if ((tier.size() == 0) && (tier.getValidFrom() == Long.MAX_VALUE))
+				// The storage may contain earlier samples of the first bucket
+				tier.setValidFrom(tier.getBucketStart(time) + tier.getDuration());
+			tier.add(time, v, statusBits);
+		}
+		if (storage != null)
+			try {
+				storage.append(nodeIndex, time, v, statusBits);
+			} catch (IOException e) {
+				logger.error("Failed to store the history of " + variable.getNodeId(), e);
+			}
 	}
 
 	/**
@@ -204,18 +551,83 @@ class ValueHistory {
 	 *             if no sample with the given timestamp is found
 	 */
 	private void deleteAtTime(DateTime timestamp) throws StatusException {
-		boolean found = false;
-		for (int i = values.size() - 1; i >= 0; i--) {
-			int compareTo = timestamp.compareTo(values.get(i).getSourceTimestamp());
-			if (compareTo == 0) {
-				values.remove(i);
-				found = true;
-			} else if (compareTo < 0)
-				break;
-		}
-		if (!found)
+		final long t = timestamp.getValue();
+		generation++;
+		if (dataValues != null) {
+			final int from = dataValues.lowerBound(t);
+			final int to = dataValues.upperBound(t);
+			if (from == to)
+				throw new StatusException(StatusCodes.Bad_NoData);
+			dataValues.removeRange(from, to);
+			return;
+		}
+		final int from = samples.lowerBound(t);
+		final int to = samples.upperBound(t);
+		samples.removeRange(from, to);
+		int deleted = compressed.deleteAtTime(t);
+		if (storage != null)
+			deleted += storage.deleteAtTime(nodeIndex, t);
+		if ((from == to) && (deleted == 0))
 			throw new StatusException(StatusCodes.Bad_NoData);
+		updateTiers(t, t + 1);
+	}
 
+	/**
+	 * Find the last sample at or before the given time.
+	 *
+	 * @return true if a sample was found
+	 */
+	private boolean findAtOrBefore(long time, SampleVisitor visitor) {
+		if (storage != null)
+			return storage.findAtOrBefore(nodeIndex, time, visitor);
+		final int j = getIndex(time);
+		if (j < 0)
+			return compressed.findAtOrBefore(time, visitor);
+		visitor.visit(samples.getTime(j), samples.getValue(j), samples.getStatus(j));
+		return true;
+	}
+
+	/**
+	 * Create a DataValue for a sample.
+	 */
+	private DataValue getDataValue(long time, double value, int status) {
+		final DateTime t = new DateTime(time);
+		return new DataValue(getVariant(value, status), new StatusCode(status), t, UnsignedShort.ZERO, t,
+				UnsignedShort.ZERO);
+	}
+
+	/**
+	 * @return the timestamp of the oldest sample in memory, or
+	 *         Long.MAX_VALUE if there are none
+	 */
+	private long getFirstTime() {
+		if (!compressed.isEmpty())
+			return compressed.getFirstTime();
+		return samples.isEmpty() ? Long.MAX_VALUE : samples.getTime(0);
+	}
+
+	/**
+	 * Find the coarsest rollup tier that can be used for the calculation.
+	 *
+	 * @param calculator
+	 *            the calculator to feed
+	 * @return the tier, or null if the raw samples must be used
+	 */
+	private RollupTier getTier(AggregateCalculator calculator) {
+		// The tiers do not separate the Uncertain samples from the values
+		if (calculator.isTreatUncertainAsBad())
+			return null;
+		final long start = calculator.getStartTime();
+		final long end = calculator.getEndTime();
+		for (int i = tiers.length - 1; i >= 0; i--) {
+			final RollupTier tier = tiers[i];
+			final long d = tier.getDuration();
+			// Each processing interval must consist of whole buckets
+			if (((calculator.getInterval() % d) == 0) && (tier.getBucketStart(start) == start)
+					&& (((end - start) % d) == 0) && (start >= tier.getValidFrom()))
+				return tier;
+		}
+		return null;
 	}
 
 	/**
@@ -224,14 +636,274 @@ class ValueHistory {
 	 *
 	 * @param requestedTime
 	 *            the requested time for the value
-	 * @return the last value with a smaller or equal timestamp than the
-	 *         requestedTime
+	 * @return the index of the last value with a smaller or equal timestamp
+	 *         than the requestedTime, or -1 if there is no such value
+	 */
+	private int getIndex(long requestedTime) {
+		return samples.upperBound(requestedTime) - 1;
+	}
+
+	/**
+	 * Create a DataValue for a requested time, using the value and status of
+	 * the sample before it.
+	 */
+	private DataValue getInterpolatedValue(DateTime requestedTime, double value, int status) {
+		return new DataValue(getVariant(value, status), new StatusCode(status), requestedTime, UnsignedShort.ZERO,
+				null, null);
+	}
+
+	/**
+	 * Create a DataValue for a requested time with no data.
+	 */
+	private DataValue getNoDataValue(DateTime requestedTime) {
+		return new DataValue(null, new StatusCode(StatusCodes.Bad_NoData), requestedTime, UnsignedShort.ZERO, null,
+				null);
+	}
+
+	/**
+	 * @return the value of a sample as a Variant of the original type
+	 */
+	private Variant getVariant(double value, int status) {
+		if (Double.isNaN(value) && new StatusCode(status).isBad())
+			return Variant.NULL;
+		if (valueClass == Boolean.class)
+			return new Variant(Boolean.valueOf(value != 0));
+		if (valueClass == Byte.class)
+			return new Variant(Byte.valueOf((byte) value));
+		if (valueClass == Float.class)
+			return new Variant(Float.valueOf((float) value));
+		if (valueClass == Integer.class)
+			return new Variant(Integer.valueOf((int) value));
+		if (valueClass == Short.class)
+			return new Variant(Short.valueOf((short) value));
+		if (valueClass == UnsignedByte.class)
+			return new Variant(new UnsignedByte((int) value));
+		if (valueClass == UnsignedInteger.class)
+			return new Variant(new UnsignedInteger((long) value));
+		if (valueClass == UnsignedShort.class)
+			return new Variant(new UnsignedShort((int) value));
+		return new Variant(Double.valueOf(value));
+	}
+
+	/**
+	 * @return the class of the values of the variable, or null if the values
+	 *         do not fit in a double
+	 */
+	private static Class<?> getValueClass(UaVariableNode variable) {
+		final NodeId dataType = variable.getDataTypeId();
+		if (Identifiers.Boolean.equals(dataType))
+			return Boolean.class;
+		if (Identifiers.Byte.equals(dataType))
+			return UnsignedByte.class;
+		if (Identifiers.Double.equals(dataType))
+			return Double.class;
+		if (Identifiers.Float.equals(dataType))
+			return Float.class;
+		if (Identifiers.Int16.equals(dataType))
+			return Short.class;
+		if (Identifiers.Int32.equals(dataType))
+			return Integer.class;
+		if (Identifiers.SByte.equals(dataType))
+			return Byte.class;
+		if (Identifiers.UInt16.equals(dataType))
+			return UnsignedShort.class;
+		if (Identifiers.UInt32.equals(dataType))
+			return UnsignedInteger.class;
+		return null;
+	}
+
+	/**
+	 * Read the samples between the times, in time order.
+	 *
+	 * @param startTime
+	 *            the start of the interval
+	 * @param endTime
+	 *            the end of the interval
+	 * @param includeBounds
+	 *            whether samples exactly at startTime and endTime are included
+	 * @param visitor
+	 *            receives the samples
+	 */
+	private void read(long startTime, long endTime, boolean includeBounds, SampleVisitor visitor) {
+		if (storage != null) {
+			storage.read(nodeIndex, startTime, endTime, includeBounds, visitor);
+			return;
+		}
+		if (!compressed.isEmpty() && !compressed.read(startTime, endTime, includeBounds, visitor))
+			return;
+		// Seek directly to the first requested sample
+		final int last = includeBounds ? samples.upperBound(endTime) : samples.lowerBound(endTime);
+		for (int j = includeBounds ? samples.lowerBound(startTime) : samples.upperBound(startTime); j < last; j++)
+			if (!visitor.visit(samples.getTime(j), samples.getValue(j), samples.getStatus(j)))
+				return;
+	}
+
+	/**
+	 * Find the value at the requested time, using stepped interpolation.
+	 */
+	private DataValue readAtTime(final DateTime requestedTime) {
+		if (dataValues != null) {
+			final int j = dataValues.upperBound(requestedTime.getValue()) - 1;
+			if (j < 0)
+				return getNoDataValue(requestedTime);
+			final DataValue value = dataValues.get(j);
+			return new DataValue(value.getValue(), value.getStatusCode(), requestedTime, UnsignedShort.ZERO, null,
+					null);
+		}
+		final DataValue[] result = new DataValue[1];
+		if (!findAtOrBefore(requestedTime.getValue(), new SampleVisitor() {
+
+			@Override
+			public boolean visit(long time, double value, int status) {
+				result[0] = getInterpolatedValue(requestedTime, value, status);
+				return false;
+			}
+		}))
+			return getNoDataValue(requestedTime);
+		return result[0];
+	}
+
+	/**
+	 * Read the values at the requested times from the storage or the
+	 * DataValues, using stepped interpolation.
+	 */
+	private void readAtTimes(DateTime[] reqTimes, DataValue[] values) {
+		for (int i = 0; i < reqTimes.length; i++)
+			values[i] = readAtTime(reqTimes[i]);
+	}
+
+	/**
+	 * Read the samples kept as DataValues.
+	 *
+	 * @param time
+	 *            the time to start from
+	 * @param endTime
+	 *            the end of the interval, when reading forward
+	 * @param forward
+	 *            whether to read forward from the time, or backwards
+	 * @param includeBounds
+	 *            whether samples exactly at the time and endTime are included
+	 * @param reader
+	 *            receives the samples
+	 */
+	private void readDataValues(long time, long endTime, boolean forward, boolean includeBounds, RawReader reader) {
+		if (forward) {
+			final int last = includeBounds ? dataValues.upperBound(endTime) : dataValues.lowerBound(endTime);
+			for (int j = includeBounds ? dataValues.lowerBound(time) : dataValues.upperBound(time); j < last; j++)
+				if (!reader.visit(dataValues.getTime(j), dataValues.get(j)))
+					return;
+		} else
+			for (int j = (includeBounds ? dataValues.upperBound(time) : dataValues.lowerBound(time)) - 1; j >= 0; j--)
+				if (!reader.visit(dataValues.getTime(j), dataValues.get(j)))
+					return;
+	}
+
+	/**
+	 * Read the samples at or before the given time, starting from the latest
+	 * one and going backwards in time.
+	 */
+	private void readReverse(long endTime, boolean includeBounds, SampleVisitor visitor) {
+		if (storage != null) {
+			storage.readReverse(nodeIndex, endTime, includeBounds, visitor);
+			return;
+		}
+		final int last = includeBounds ? samples.upperBound(endTime) : samples.lowerBound(endTime);
+		for (int j = last - 1; j >= 0; j--)
+			if (!visitor.visit(samples.getTime(j), samples.getValue(j), samples.getStatus(j)))
+				return;
+		compressed.readReverse(endTime, includeBounds, visitor);
+	}
+
+	/**
+	 * Pass the samples between the times to the visitor, in time order.
+	 *
+	 * @param startTime
+	 *            the start of the interval (inclusive)
+	 * @param endTime
+	 *            the end of the interval (exclusive)
+	 * @param visitor
+	 *            receives the samples
+	 */
+	private void scan(long startTime, final long endTime, final SampleVisitor visitor) {
+		read(startTime, endTime, true, new SampleVisitor() {
+
+			@Override
+			public boolean visit(long time, double value, int status) {
+				return (time < endTime) && visitor.visit(time, value, status);
+			}
+		});
+	}
+
+	/**
+	 * Compress the oldest samples of the buffer.
+	 *
+	 * @param count
+	 *            the number of samples to compress
+	 */
+	private void seal(int count) {
+		final int n = Math.min(count, samples.size());
+		final long[] times = new long[n];
+		final double[] values = new double[n];
+		final int[] statuses = new int[n];
+		samples.removeFirst(n, times, values, statuses);
+		if (compressed.seal(times, values, statuses, n))
+			rawFrom = getFirstTime();
+	}
+
+	/**
+	 * Recalculate the rollup buckets that overlap the interval, after samples
+	 * have been deleted from it.
+	 *
+	 * @param startTime
+	 *            the start of the interval (inclusive)
+	 * @param endTime
+	 *            the end of the interval (exclusive)
+	 */
+	private void updateTiers(long startTime, long endTime) {
+		// Without a storage, the evicted samples are not available any more
+		final long rawFrom = storage != null ? Long.MIN_VALUE : this.rawFrom;
+		final SampleVisitor collector = new SampleVisitor() {
+
+			@Override
+			public boolean visit(long time, double value, int status) {
+				bucket.add(time, value, status, false);
+				return true;
+			}
+		};
+		for (RollupTier tier : tiers)
+			for (int i = tier.lowerBound(tier.getBucketStart(startTime)); (i < tier.size())
+					&& (tier.getStart(i) < endTime); i++) {
+				final long bucketStart = tier.getStart(i);
+				if (bucketStart < rawFrom) {
+					tier.setValidFrom(Math.max(tier.getValidFrom(), bucketStart + tier.getDuration()));
+					continue;
+				}
+				bucket.reset();
+				scan(bucketStart, bucketStart + tier.getDuration(), collector);
+				tier.set(i, bucket);
+			}
+	}
+
+	/**
+	 * @param times
+	 *            the requested times
+	 * @return true if the times are in ascending order
+	 */
+	private boolean isSorted(DateTime[] times) {
+		for (int i = 1; i < times.length; i++)
+			if (times[i].getValue() < times[i - 1].getValue())
+				return false;
+		return true;
+	}
+
+	/**
+	 * @param o
+	 *            the value to convert, of the class of the values
+	 * @return the value as a double
 	 */
-	private DataValue getValue(DateTime requestedTime) {
-		// a "brute" find starting from the end
-		int i = values.size() - 1;
-		while ((i >= 0) && (values.get(i).getSourceTimestamp().compareTo(requestedTime) > 0))
-			i--;
-		return i < 0 ? null : values.get(i);
+	private static double toDouble(Object o) {
+		if (o instanceof Boolean)
+			return ((Boolean) o).booleanValue() ? 1 : 0;
+		return ((Number) o).doubleValue();
 	}
-}
\ No newline at end of file
+}
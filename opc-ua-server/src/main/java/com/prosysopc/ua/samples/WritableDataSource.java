@@ -0,0 +1,34 @@
+/**
+ * Prosys OPC UA Java SDK
+ *
+ * Copyright (c) Prosys PMS Ltd., <http://www.prosysopc.com>.
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples;
+
+/**
+ * A {@link DataSource}, which also accepts new values for the items, for
+ * example setpoints written by the clients.
+ */
+public interface WritableDataSource extends DataSource {
+	/**
+	 * Write a batch of values to the underlying system. Each item is written
+	 * at most once per batch.
+	 *
+	 * @param count
+	 *            the number of values in the arrays
+	 * @param handles
+	 *            the handles of the items
+	 * @param values
+	 *            the new values
+	 * @param statuses
+	 *            the status code bits of the values
+	 * @param timestamps
+	 *            the source timestamps in DateTime ticks
+	 * @param results
+	 *            the array to fill with the status code bits of each write;
+	 *            the values, whose result is not Bad, are applied to the
+	 *            items
+	 */
+	void write(int count, int[] handles, double[] values, int[] statuses, long[] timestamps, int[] results);
+}